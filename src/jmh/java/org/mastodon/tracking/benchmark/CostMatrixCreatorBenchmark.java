@@ -0,0 +1,230 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.benchmark;
+
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_GAP_CLOSING;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_MERGING;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_SPLITTING;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_CUTOFF_PERCENTILE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_FEATURE_PENALTIES;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_FEATURE_PENALTIES;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_FEATURE_PENALTIES;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_MAX_DISTANCE;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.collection.RefCollection;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.tracking.linking.sequential.lap.costfunction.CostFunction;
+import org.mastodon.tracking.linking.sequential.lap.costfunction.SquareDistCostFunction;
+import org.mastodon.tracking.linking.sequential.lap.costmatrix.JaqamanLinkingCostMatrixCreator;
+import org.mastodon.tracking.linking.sequential.lap.costmatrix.JaqamanSegmentCostMatrixCreator;
+import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.scijava.Context;
+
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+
+/**
+ * Benchmarks the creation of the frame-to-frame and segment-linking cost
+ * matrices on synthetic Brownian tracks.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class CostMatrixCreatorBenchmark
+{
+
+	/**
+	 * The number of tracks, also the number of spots per frame.
+	 */
+	@Param( { "1000", "10000" } )
+	public int nTracks;
+
+	/**
+	 * The number of spots per unit volume in one frame.
+	 */
+	@Param( { "0.01" } )
+	public double density;
+
+	@Param( { "2", "3" } )
+	public int nDims;
+
+	/**
+	 * The maximal linking distance, in units of the mean inter-spot
+	 * distance.
+	 */
+	@Param( { "1.5" } )
+	public double maxDistanceFactor;
+
+	private static final int N_FRAMES = 10;
+
+	private static final double GAP_PROBABILITY = 0.05;
+
+	private static final Comparator< Spot > SPOT_COMPARATOR = new Comparator< Spot >()
+	{
+
+		@Override
+		public int compare( final Spot o1, final Spot o2 )
+		{
+			return o1.getInternalPoolIndex() - o2.getInternalPoolIndex();
+		}
+	};
+
+	private Context context;
+
+	private OpService ops;
+
+	private Model model;
+
+	private RefCollection< Spot > refcol;
+
+	private SpatialIndex< Spot > sources;
+
+	private SpatialIndex< Spot > targets;
+
+	private double maxDistance;
+
+	private Map< String, Object > segmentSettings;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		context = new Context( OpService.class );
+		ops = context.getService( OpService.class );
+
+		final Random ran = new Random( 1l );
+		model = SyntheticData.brokenTracks( nTracks, N_FRAMES, density, nDims, GAP_PROBABILITY, ran );
+		refcol = model.getGraph().vertices();
+		sources = model.getSpatioTemporalIndex().getSpatialIndex( 0 );
+		targets = model.getSpatioTemporalIndex().getSpatialIndex( 1 );
+		maxDistance = maxDistanceFactor * Math.pow( 1. / density, 1. / nDims );
+
+		segmentSettings = new HashMap<>();
+		segmentSettings.put( KEY_ALLOW_GAP_CLOSING, true );
+		segmentSettings.put( KEY_GAP_CLOSING_FEATURE_PENALTIES, new HashMap<>() );
+		segmentSettings.put( KEY_GAP_CLOSING_MAX_DISTANCE, maxDistance );
+		segmentSettings.put( KEY_GAP_CLOSING_MAX_FRAME_GAP, 2 );
+		segmentSettings.put( KEY_ALLOW_TRACK_SPLITTING, true );
+		segmentSettings.put( KEY_SPLITTING_FEATURE_PENALTIES, new HashMap<>() );
+		segmentSettings.put( KEY_SPLITTING_MAX_DISTANCE, maxDistance );
+		segmentSettings.put( KEY_ALLOW_TRACK_MERGING, true );
+		segmentSettings.put( KEY_MERGING_FEATURE_PENALTIES, new HashMap<>() );
+		segmentSettings.put( KEY_MERGING_MAX_DISTANCE, maxDistance );
+		segmentSettings.put( KEY_ALTERNATIVE_LINKING_COST_FACTOR, 1.05 );
+		segmentSettings.put( KEY_CUTOFF_PERCENTILE, 0.9 );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		context.dispose();
+	}
+
+	@Benchmark
+	public SparseCostMatrix frameToFrameAllPairs()
+	{
+		return frameToFrame( Double.NaN );
+	}
+
+	@Benchmark
+	public SparseCostMatrix frameToFrameRadius()
+	{
+		return frameToFrame( maxDistance );
+	}
+
+	@Benchmark
+	public SparseCostMatrix segments()
+	{
+		@SuppressWarnings( "unchecked" )
+		final JaqamanSegmentCostMatrixCreator< Spot, Link > creator = ( JaqamanSegmentCostMatrixCreator< Spot, Link > ) Functions.nullary( ops, JaqamanSegmentCostMatrixCreator.class, SparseCostMatrix.class,
+				model.getGraph(), model.getFeatureModel(), segmentSettings, SPOT_COMPARATOR );
+		return check( creator.calculate(), creator.getErrorMessage() );
+	}
+
+	private SparseCostMatrix frameToFrame( final double searchRadius )
+	{
+		final CostFunction< Spot, Spot > costFunction = new SquareDistCostFunction<>();
+		@SuppressWarnings( "unchecked" )
+		final JaqamanLinkingCostMatrixCreator< Spot, Spot > creator = ( JaqamanLinkingCostMatrixCreator< Spot, Spot > ) Functions.nullary( ops, JaqamanLinkingCostMatrixCreator.class, SparseCostMatrix.class,
+				sources, targets, costFunction, maxDistance * maxDistance, 1.05, 1d,
+				refcol, refcol,
+				SPOT_COMPARATOR, SPOT_COMPARATOR,
+				searchRadius );
+		return check( creator.calculate(), creator.getErrorMessage() );
+	}
+
+	private static SparseCostMatrix check( final SparseCostMatrix cm, final String errorMessage )
+	{
+		if ( null == cm )
+			throw new IllegalStateException( errorMessage );
+		return cm;
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		final Options opt = new OptionsBuilder()
+				.include( CostMatrixCreatorBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( opt ).run();
+	}
+}
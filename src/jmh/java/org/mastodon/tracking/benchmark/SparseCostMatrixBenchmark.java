@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks the block operations of {@link SparseCostMatrix} used to build
+ * the Jaqaman augmented cost matrix.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class SparseCostMatrixBenchmark
+{
+
+	@Param( { "1000", "10000" } )
+	public int nRows;
+
+	@Param( { "0.001", "0.01" } )
+	public double density;
+
+	private SparseCostMatrix tl;
+
+	private SparseCostMatrix tr;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final Random ran = new Random( 1l );
+		tl = SyntheticData.randomCostMatrix( nRows, nRows, density, ran );
+		tr = SyntheticData.diagonal( nRows, 1. );
+	}
+
+	@Benchmark
+	public SparseCostMatrix hcat()
+	{
+		return tl.hcat( tr );
+	}
+
+	@Benchmark
+	public SparseCostMatrix vcat()
+	{
+		return tl.vcat( tr );
+	}
+
+	@Benchmark
+	public SparseCostMatrix transpose()
+	{
+		return tl.transpose();
+	}
+
+	@Benchmark
+	public SparseCostMatrix augment()
+	{
+		return SyntheticData.augment( tl, 1. );
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		final Options opt = new OptionsBuilder()
+				.include( SparseCostMatrixBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( opt ).run();
+	}
+}
@@ -0,0 +1,343 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mastodon.RefPool;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.AbstractModelImporter;
+import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
+
+import net.imglib2.algorithm.convolution.kernel.Kernel1D;
+import net.imglib2.algorithm.convolution.kernel.SeparableKernelConvolution;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Generates synthetic inputs for the benchmarks: point clouds, tracks, sparse
+ * cost matrices and images, with controllable size, density and
+ * dimensionality.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SyntheticData
+{
+
+	/**
+	 * Returns the side of the hypercube that contains <code>n</code> points
+	 * with the specified density.
+	 *
+	 * @param n
+	 *            the number of points.
+	 * @param density
+	 *            the number of points per unit volume.
+	 * @param nDims
+	 *            the number of dimensions.
+	 * @return the side of the hypercube.
+	 */
+	public static double boxSide( final int n, final double density, final int nDims )
+	{
+		return Math.pow( n / density, 1. / nDims );
+	}
+
+	/**
+	 * Returns <code>n</code> random 3D positions uniformly distributed in a
+	 * hypercube with the specified density. In 2D, the Z coordinate is 0.
+	 *
+	 * @param n
+	 *            the number of points.
+	 * @param density
+	 *            the number of points per unit volume.
+	 * @param nDims
+	 *            the number of dimensions, 2 or 3.
+	 * @param ran
+	 *            the random generator.
+	 * @return a new <code>double[n][3]</code> array.
+	 */
+	public static double[][] randomPoints( final int n, final double density, final int nDims, final Random ran )
+	{
+		final double side = boxSide( n, density, nDims );
+		final double[][] points = new double[ n ][ 3 ];
+		for ( final double[] point : points )
+			for ( int d = 0; d < nDims; d++ )
+				point[ d ] = side * ran.nextDouble();
+		return points;
+	}
+
+	/**
+	 * Returns a copy of the specified points, displaced by a random Gaussian
+	 * step of the specified standard deviation in each dimension.
+	 *
+	 * @param points
+	 *            the points to displace.
+	 * @param sigma
+	 *            the standard deviation of the displacement.
+	 * @param nDims
+	 *            the number of dimensions, 2 or 3.
+	 * @param ran
+	 *            the random generator.
+	 * @return a new <code>double[n][3]</code> array.
+	 */
+	public static double[][] displace( final double[][] points, final double sigma, final int nDims, final Random ran )
+	{
+		final double[][] displaced = new double[ points.length ][];
+		for ( int i = 0; i < points.length; i++ )
+		{
+			displaced[ i ] = Arrays.copyOf( points[ i ], 3 );
+			for ( int d = 0; d < nDims; d++ )
+				displaced[ i ][ d ] += sigma * ran.nextGaussian();
+		}
+		return displaced;
+	}
+
+	/**
+	 * Adds the specified points as spots in the specified time-point of the
+	 * model.
+	 *
+	 * @param model
+	 *            the model to add spots to.
+	 * @param points
+	 *            the spot positions.
+	 * @param timepoint
+	 *            the time-point.
+	 * @param radius
+	 *            the spot radius.
+	 */
+	public static void addSpots( final Model model, final double[][] points, final int timepoint, final double radius )
+	{
+		new AbstractModelImporter< Model >( model ){{ startImport(); }};
+		final ModelGraph graph = model.getGraph();
+		final Spot ref = graph.vertexRef();
+		for ( final double[] point : points )
+			graph.addVertex( ref ).init( timepoint, point, radius );
+		graph.releaseRef( ref );
+		new AbstractModelImporter< Model >( model ){{ finishImport(); }};
+	}
+
+	/**
+	 * Creates a model made of track segments undergoing Brownian motion.
+	 * Tracks are broken by randomly missing detections, so that they are
+	 * suitable for gap-closing, merging and splitting.
+	 *
+	 * @param nTracks
+	 *            the number of tracks.
+	 * @param nFrames
+	 *            the number of frames.
+	 * @param density
+	 *            the number of spots per unit volume in one frame.
+	 * @param nDims
+	 *            the number of dimensions, 2 or 3.
+	 * @param gapProbability
+	 *            the probability that a detection is missing in a frame.
+	 * @param ran
+	 *            the random generator.
+	 * @return a new model.
+	 */
+	public static Model brokenTracks( final int nTracks, final int nFrames, final double density, final int nDims, final double gapProbability, final Random ran )
+	{
+		final Model model = new Model();
+		new AbstractModelImporter< Model >( model ){{ startImport(); }};
+		final ModelGraph graph = model.getGraph();
+		final RefPool< Spot > vertexPool = graph.getGraphIdBimap().vertexIdBimap();
+		final Spot source = graph.vertexRef();
+		final Spot target = graph.vertexRef();
+		final Link eref = graph.edgeRef();
+
+		final double step = 0.1 * boxSide( nTracks, density, nDims );
+		double[][] positions = randomPoints( nTracks, density, nDims, ran );
+		final boolean[] present = new boolean[ nTracks ];
+		final int[] previous = new int[ nTracks ];
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			for ( int i = 0; i < nTracks; i++ )
+			{
+				if ( ran.nextDouble() < gapProbability )
+				{
+					present[ i ] = false;
+					continue;
+				}
+				graph.addVertex( target ).init( t, positions[ i ], 1. );
+				if ( present[ i ] )
+				{
+					vertexPool.getObject( previous[ i ], source );
+					graph.addEdge( source, target, eref ).init();
+				}
+				previous[ i ] = vertexPool.getId( target );
+				present[ i ] = true;
+			}
+			positions = displace( positions, step, nDims, ran );
+		}
+
+		graph.releaseRef( source );
+		graph.releaseRef( target );
+		graph.releaseRef( eref );
+		new AbstractModelImporter< Model >( model ){{ finishImport(); }};
+		return model;
+	}
+
+	/**
+	 * Returns a random sparse cost matrix. Each row receives on average
+	 * <code>density × nCols</code> random positive costs, and every row and
+	 * column has at least one cost.
+	 *
+	 * @param nRows
+	 *            the number of rows.
+	 * @param nCols
+	 *            the number of columns.
+	 * @param density
+	 *            the fraction of non-infinite costs.
+	 * @param ran
+	 *            the random generator.
+	 * @return a new sparse cost matrix.
+	 */
+	public static SparseCostMatrix randomCostMatrix( final int nRows, final int nCols, final double density, final Random ran )
+	{
+		final int perRow = Math.max( 1, ( int ) Math.round( density * nCols ) );
+		final int[][] rowCols = new int[ nRows ][];
+		int cardinality = 0;
+		for ( int i = 0; i < nRows; i++ )
+		{
+			// Random columns, plus the columns this row is responsible for.
+			final int nForced = ( nCols - 1 - i ) / nRows + 1;
+			final int[] cols = new int[ perRow + nForced ];
+			for ( int k = 0; k < perRow; k++ )
+				cols[ k ] = ran.nextInt( nCols );
+			for ( int k = 0; k < nForced; k++ )
+				cols[ perRow + k ] = i + k * nRows;
+			Arrays.sort( cols );
+
+			int n = 0;
+			for ( int k = 0; k < cols.length; k++ )
+				if ( cols[ k ] < nCols && ( n == 0 || cols[ k ] != cols[ n - 1 ] ) )
+					cols[ n++ ] = cols[ k ];
+			rowCols[ i ] = Arrays.copyOf( cols, n );
+			cardinality += n;
+		}
+
+		final double[] cc = new double[ cardinality ];
+		final int[] kk = new int[ cardinality ];
+		final int[] number = new int[ nRows ];
+		int index = 0;
+		for ( int i = 0; i < nRows; i++ )
+		{
+			number[ i ] = rowCols[ i ].length;
+			for ( final int j : rowCols[ i ] )
+			{
+				kk[ index ] = j;
+				cc[ index ] = 1. + 100. * ran.nextDouble();
+				index++;
+			}
+		}
+		return new SparseCostMatrix( cc, kk, number, nCols );
+	}
+
+	/**
+	 * Returns the cost matrix complemented with the alternative no-linking
+	 * blocks, as it is built by the Jaqaman linker. The resulting matrix
+	 * always admits a full assignment.
+	 *
+	 * @param tl
+	 *            the top-left linking cost matrix.
+	 * @param alternativeCost
+	 *            the no-linking cost.
+	 * @return a new sparse cost matrix.
+	 */
+	public static SparseCostMatrix augment( final SparseCostMatrix tl, final double alternativeCost )
+	{
+		final SparseCostMatrix tr = diagonal( tl.getNRows(), alternativeCost );
+		final SparseCostMatrix bl = diagonal( tl.getNCols(), alternativeCost );
+		final SparseCostMatrix br = tl.transpose();
+		br.fillWith( alternativeCost );
+		return ( tl.hcat( tr ) ).vcat( bl.hcat( br ) );
+	}
+
+	/**
+	 * Returns a square diagonal sparse matrix filled with the specified value.
+	 *
+	 * @param n
+	 *            the matrix size.
+	 * @param value
+	 *            the diagonal value.
+	 * @return a new sparse cost matrix.
+	 */
+	public static SparseCostMatrix diagonal( final int n, final double value )
+	{
+		final double[] cc = new double[ n ];
+		final int[] kk = new int[ n ];
+		final int[] number = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			cc[ i ] = value;
+			kk[ i ] = i;
+			number[ i ] = 1;
+		}
+		return new SparseCostMatrix( cc, kk, number, n );
+	}
+
+	/**
+	 * Returns an image of smoothed noise, whose density of local maxima is set
+	 * by the smoothing scale.
+	 *
+	 * @param size
+	 *            the image size along each dimension.
+	 * @param nDims
+	 *            the number of dimensions.
+	 * @param sigma
+	 *            the smoothing scale, in pixels.
+	 * @param ran
+	 *            the random generator.
+	 * @return a new image.
+	 */
+	public static Img< FloatType > smoothedNoise( final int size, final int nDims, final double sigma, final Random ran )
+	{
+		final long[] dims = new long[ nDims ];
+		Arrays.fill( dims, size );
+		final Img< FloatType > noise = ArrayImgs.floats( dims );
+		for ( final FloatType p : noise )
+			p.set( ran.nextFloat() );
+
+		final double[] sigmas = new double[ nDims ];
+		Arrays.fill( sigmas, sigma );
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+		SeparableKernelConvolution.convolution( Kernel1D.symmetric( Gauss3.halfkernels( sigmas ) ) )
+				.process( Views.extendMirrorSingle( noise ), img );
+		return img;
+	}
+
+	private SyntheticData()
+	{}
+}
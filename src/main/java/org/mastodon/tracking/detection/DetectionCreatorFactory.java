@@ -61,6 +61,37 @@ public interface DetectionCreatorFactory
 		 */
 		public void createDetection( double[] pos, double radius, double quality );
 
+		/**
+		 * Creates several detection objects at once. Like
+		 * {@link #createDetection(double[], double, double)}, this method must
+		 * be called between {@link #preAddition()} and
+		 * {@link #postAddition()}. All coordinates are specified with respect
+		 * to the global coordinate system.
+		 * <p>
+		 * The default implementation calls
+		 * {@link #createDetection(double[], double, double)} for each
+		 * detection.
+		 *
+		 * @param positions
+		 *            the positions of the detections, stored as
+		 *            <code>x0, y0, z0, x1, y1, z1, ...</code>.
+		 * @param radii
+		 *            the radii of the detections.
+		 * @param qualities
+		 *            the qualities of the detections.
+		 * @param n
+		 *            the number of detections to create.
+		 */
+		public default void createDetections( final double[] positions, final double[] radii, final double[] qualities, final int n )
+		{
+			final double[] pos = new double[ 3 ];
+			for ( int i = 0; i < n; i++ )
+			{
+				System.arraycopy( positions, 3 * i, pos, 0, 3 );
+				createDetection( pos, radii[ i ], qualities[ i ] );
+			}
+		}
+
 		/**
 		 * Method called before a batch of detections is added to the output via
 		 * the {@link #createDetection(double[], double, double)} method.
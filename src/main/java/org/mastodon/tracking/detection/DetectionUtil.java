@@ -30,7 +30,9 @@ package org.mastodon.tracking.detection;
 
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_ADD_BEHAVIOR;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_DETECTION_TYPE;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MAX_RADIUS;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MAX_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MEMORY_BUDGET;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MIN_TIMEPOINT;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_RADIUS;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_ROI;
@@ -38,7 +40,9 @@ import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_SETUP_ID;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_THRESHOLD;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_ADD_BEHAVIOR;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_DETECTION_TYPE;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_RADIUS;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MEMORY_BUDGET;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_RADIUS;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_ROI;
@@ -51,11 +55,15 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
@@ -69,11 +77,18 @@ import bdv.tools.transformation.ManualTransformation;
 import bdv.util.Affine3DHelpers;
 import bdv.viewer.SourceAndConverter;
 import mpicbg.spim.data.SpimDataException;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.Point;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealPoint;
 import net.imglib2.algorithm.localextrema.LocalExtrema;
 import net.imglib2.algorithm.localextrema.LocalExtrema.LocalNeighborhoodCheck;
+import net.imglib2.algorithm.localextrema.RefinedPeak;
+import net.imglib2.algorithm.localextrema.SubpixelLocalization;
 import net.imglib2.algorithm.neighborhood.RectangleShape;
 import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealFloatConverter;
@@ -95,6 +110,12 @@ import net.imglib2.view.Views;
 public class DetectionUtil
 {
 
+	/**
+	 * Maximal number of peaks refined at once by a sub-pixel localization
+	 * worker.
+	 */
+	private static final int REFINE_CHUNK_SIZE = 4096;
+
 	/**
 	 * Returns <code>true</code> if the there is some data at the specified
 	 * time-point for the specified setup id.
@@ -456,6 +477,416 @@ public class DetectionUtil
 		return peaks;
 	}
 
+	/**
+	 * Finds the local maxima of a filtered image above a threshold, after
+	 * normalization, in a single multi-threaded pass.
+	 * <p>
+	 * Each value is divided by the normalization factor before being compared
+	 * to the threshold and to its neighbors. This yields the same maxima as
+	 * {@link #findLocalMaxima(RandomAccessibleInterval, double, ExecutorService)}
+	 * on the normalized image, without writing it. The neighborhood of a pixel
+	 * is only visited if its value is above the threshold, and the image is
+	 * mirrored at its borders.
+	 *
+	 * @param source
+	 *            the filtered image.
+	 * @param normalization
+	 *            the factor to divide the image values by.
+	 * @param threshold
+	 *            the threshold on normalized values.
+	 * @param service
+	 *            the executor service to use.
+	 * @return the local maxima, with their normalized value.
+	 * @throws CancellationException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             search to complete.
+	 */
+	public static final PeakBuffer findLocalMaxima(
+			final RandomAccessibleInterval< FloatType > source,
+			final float normalization,
+			final double threshold,
+			final ExecutorService service )
+	{
+		return findMaxima( source, Collections.emptyList(), normalization, threshold, service );
+	}
+
+	/**
+	 * Finds the maxima of a scale in a scale-space, above a threshold, in a
+	 * single multi-threaded pass.
+	 * <p>
+	 * A pixel is a maximum if none of its neighbors in the 3x3x3
+	 * neighborhood of its scale, nor in the 3x3x3 neighborhoods at the same
+	 * position in the scales below and above, has a strictly larger value.
+	 * Images are mirrored at their borders.
+	 *
+	 * @param below
+	 *            the image of the scale below, or <code>null</code> if there
+	 *            is none.
+	 * @param current
+	 *            the image of the scale to find maxima in.
+	 * @param above
+	 *            the image of the scale above, or <code>null</code> if there
+	 *            is none.
+	 * @param threshold
+	 *            the threshold on values.
+	 * @param service
+	 *            the executor service to use.
+	 * @return the maxima of the current scale, with their value.
+	 * @throws CancellationException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             search to complete.
+	 */
+	public static final PeakBuffer findScaleSpaceMaxima(
+			final RandomAccessibleInterval< FloatType > below,
+			final RandomAccessibleInterval< FloatType > current,
+			final RandomAccessibleInterval< FloatType > above,
+			final double threshold,
+			final ExecutorService service )
+	{
+		final List< RandomAccessibleInterval< FloatType > > adjacent = new ArrayList<>( 2 );
+		if ( null != below )
+			adjacent.add( below );
+		if ( null != above )
+			adjacent.add( above );
+		return findMaxima( current, adjacent, 1f, threshold, service );
+	}
+
+	private static PeakBuffer findMaxima(
+			final RandomAccessibleInterval< FloatType > source,
+			final List< RandomAccessibleInterval< FloatType > > adjacent,
+			final float normalization,
+			final double threshold,
+			final ExecutorService service )
+	{
+		final int n = source.numDimensions();
+		final int last = n - 1;
+		final long dim = source.dimension( last );
+		final int numTasks = ( int ) Math.max( 1, Math.min( Runtime.getRuntime().availableProcessors(), dim ) );
+		final float thr = ( float ) threshold;
+		final RandomAccessible< FloatType > extended = Views.extendMirrorSingle( source );
+		final List< RandomAccessible< FloatType > > adjacentExtended = new ArrayList<>( adjacent.size() );
+		for ( final RandomAccessibleInterval< FloatType > img : adjacent )
+			adjacentExtended.add( Views.extendMirrorSingle( img ) );
+
+		// Split the image in slabs along the last dimension.
+		final List< Future< PeakBuffer > > futures = new ArrayList<>( numTasks );
+		for ( int t = 0; t < numTasks; t++ )
+		{
+			final long[] min = Intervals.minAsLongArray( source );
+			final long[] max = Intervals.maxAsLongArray( source );
+			min[ last ] = source.min( last ) + t * dim / numTasks;
+			max[ last ] = source.min( last ) + ( t + 1 ) * dim / numTasks - 1;
+			final FinalInterval block = new FinalInterval( min, max );
+			futures.add( service.submit( () -> {
+				final PeakBuffer peaks = new PeakBuffer( n );
+				final Cursor< FloatType > cursor = Views.flatIterable( Views.interval( source, block ) ).localizingCursor();
+				final Interval expanded = Intervals.expand( block, 1 );
+				final RandomAccess< FloatType > ra = extended.randomAccess( expanded );
+				final List< RandomAccess< FloatType > > adjacentRas = new ArrayList<>( adjacentExtended.size() );
+				for ( final RandomAccessible< FloatType > img : adjacentExtended )
+					adjacentRas.add( img.randomAccess( expanded ) );
+				final long[] pos = new long[ n ];
+				while ( cursor.hasNext() )
+				{
+					final float val = cursor.next().get() / normalization;
+					if ( val < thr )
+						continue;
+
+					cursor.localize( pos );
+					if ( !isLocalMaximum( ra, pos, val, normalization, true ) )
+						continue;
+
+					boolean isMaximum = true;
+					for ( final RandomAccess< FloatType > adjacentRa : adjacentRas )
+						isMaximum = isMaximum && isLocalMaximum( adjacentRa, pos, val, normalization, false );
+					if ( isMaximum )
+						peaks.add( pos, val );
+				}
+				return peaks;
+			} ) );
+		}
+
+		final PeakBuffer peaks = new PeakBuffer( n, 0 );
+		for ( final PeakBuffer slab : getAll( futures ) )
+			peaks.addAll( slab );
+		return peaks;
+	}
+
+	/**
+	 * Waits for the specified tasks and returns their results, in order. The
+	 * failure of a task is re-thrown. If the calling thread is interrupted,
+	 * the remaining tasks are canceled, the interrupt flag is restored and a
+	 * {@link CancellationException} is thrown, so that no partial result is
+	 * used.
+	 */
+	private static < T > List< T > getAll( final List< ? extends Future< ? extends T > > futures )
+	{
+		final List< T > results = new ArrayList<>( futures.size() );
+		try
+		{
+			for ( final Future< ? extends T > future : futures )
+				results.add( future.get() );
+			return results;
+		}
+		catch ( final InterruptedException e )
+		{
+			for ( final Future< ? > future : futures )
+				future.cancel( true );
+			Thread.currentThread().interrupt();
+			throw new CancellationException( "Interrupted while waiting for the detection tasks." );
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			throw new RuntimeException( cause );
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if none of the normalized values in the
+	 * 3x3x3 neighborhood of the specified position is strictly larger than
+	 * the specified value. The value at the position itself is not tested if
+	 * <code>skipCenter</code> is <code>true</code>.
+	 */
+	private static boolean isLocalMaximum( final RandomAccess< FloatType > ra, final long[] pos, final float val, final float normalization, final boolean skipCenter )
+	{
+		final int n = pos.length;
+		int nNeighbors = 1;
+		for ( int d = 0; d < n; d++ )
+			nNeighbors *= 3;
+
+		for ( int k = 0; k < nNeighbors; k++ )
+		{
+			if ( skipCenter && k == nNeighbors / 2 )
+				continue; // Center.
+
+			int r = k;
+			for ( int d = 0; d < n; d++ )
+			{
+				ra.setPosition( pos[ d ] + r % 3 - 1, d );
+				r /= 3;
+			}
+			if ( ra.get().get() / normalization > val )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sub-pixel localization of peaks, in parallel.
+	 * <p>
+	 * Peaks are refined by quadratic fitting, in chunks, so that the points
+	 * and refined peaks created by the sub-pixel localization are not all in
+	 * memory at once. Each worker takes the next chunk to process until all
+	 * are done, and writes the transformed positions of its peaks in the
+	 * output array. Invalid peaks are returned by the sub-pixel localization
+	 * at their integer position, so the refined peaks of a chunk are in the
+	 * same order as the peaks of the chunk.
+	 *
+	 * @param peaks
+	 *            the peaks to refine.
+	 * @param img
+	 *            the image the peaks were found in.
+	 * @param transform
+	 *            the transform from image coordinates to global coordinates.
+	 * @param positions
+	 *            the array to write the refined positions in, in global
+	 *            coordinates, as <code>x, y, z</code> per peak.
+	 * @param service
+	 *            the executor service to use.
+	 * @throws CancellationException
+	 *             if the calling thread is interrupted before all the peaks
+	 *             are refined.
+	 */
+	public static final void refinePeaks(
+			final PeakBuffer peaks,
+			final RandomAccessibleInterval< FloatType > img,
+			final AffineTransform3D transform,
+			final double[] positions,
+			final ExecutorService service )
+	{
+		final int maxNumMoves = 10;
+		final boolean allowMaximaTolerance = true;
+		final boolean returnInvalidPeaks = true;
+		final boolean[] allowedToMoveInDim = new boolean[ img.numDimensions() ];
+		Arrays.fill( allowedToMoveInDim, true );
+		final float maximaTolerance = 0.01f;
+
+		final int nPeaks = peaks.size();
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		final int chunkSize = Math.max( 1, Math.min( REFINE_CHUNK_SIZE, ( nPeaks + nThreads - 1 ) / nThreads ) );
+		final int nChunks = ( nPeaks + chunkSize - 1 ) / chunkSize;
+		final int nTasks = Math.min( nThreads, nChunks );
+		final AtomicInteger nextChunk = new AtomicInteger( 0 );
+
+		final List< Future< ? > > futures = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			futures.add( service.submit( () -> {
+				// Per-thread scratch.
+				final AffineTransform3D localTransform = transform.copy();
+				final double[] pos = new double[ 3 ];
+				final RealPoint point = RealPoint.wrap( pos );
+				final RealPoint p3d = new RealPoint( 3 );
+
+				int chunk;
+				while ( ( chunk = nextChunk.getAndIncrement() ) < nChunks )
+				{
+					final int from = chunk * chunkSize;
+					final int to = Math.min( nPeaks, from + chunkSize );
+					final List< RefinedPeak< Point > > refined = SubpixelLocalization.refinePeaks( peaks.asPoints( from, to ), img, img,
+							returnInvalidPeaks, maxNumMoves, allowMaximaTolerance, maximaTolerance, allowedToMoveInDim );
+
+					int i = from;
+					for ( final RefinedPeak< Point > refinedPeak : refined )
+					{
+						for ( int d = 0; d < refinedPeak.numDimensions(); d++ )
+							p3d.setPosition( refinedPeak.getDoublePosition( d ), d );
+						localTransform.apply( p3d, point );
+						System.arraycopy( pos, 0, positions, 3 * i, 3 );
+						i++;
+					}
+				}
+			} ) );
+		}
+
+		// Never return with unrefined positions.
+		getAll( futures );
+	}
+
+	/**
+	 * Returns the number of pixels of the image that would be processed for
+	 * the detection of objects of the specified size, at the first time-point
+	 * with data in the specified range. Used as an estimate of the memory
+	 * needed per time-point.
+	 *
+	 * @param sources
+	 *            the image data.
+	 * @param setup
+	 *            the setup id.
+	 * @param minTimepoint
+	 *            the first time-point, inclusive.
+	 * @param maxTimepoint
+	 *            the last time-point, inclusive.
+	 * @param size
+	 *            the size of an object measured at resolution level 0, <b>in
+	 *            physical units</b>.
+	 * @param minSizePixel
+	 *            the desired minimal size in pixel units of the same object in
+	 *            higher resolution levels.
+	 * @return the number of pixels, or 0 if there is no data in the range.
+	 */
+	public static final long estimateNumPixels( final List< SourceAndConverter< ? > > sources, final int setup, final int minTimepoint, final int maxTimepoint, final double size, final double minSizePixel )
+	{
+		for ( int tp = minTimepoint; tp <= maxTimepoint; tp++ )
+		{
+			if ( !isPresent( sources, setup, tp ) )
+				continue;
+
+			final int level = determineOptimalResolutionLevel( sources, size, minSizePixel, tp, setup );
+			return Intervals.numElements( getImage( sources, tp, setup, level ) );
+		}
+		return 0l;
+	}
+
+	/**
+	 * Reads all the pixels of the specified image in the specified interval,
+	 * so that lazily-loaded (cached) image data is pulled in memory.
+	 *
+	 * @param img
+	 *            the image.
+	 * @param interval
+	 *            the interval to read. Clipped to the image bounds.
+	 */
+	public static final void prefetch( final RandomAccessibleInterval< ? > img, final Interval interval )
+	{
+		final Interval clipped = Intervals.intersect( img, interval );
+		for ( int d = 0; d < clipped.numDimensions(); d++ )
+			if ( clipped.max( d ) < clipped.min( d ) )
+				return;
+		for ( final Object pixel : Views.flatIterable( Views.interval( img, clipped ) ) )
+			pixel.hashCode();
+	}
+
+	/**
+	 * Splits the specified interval in a grid of non-overlapping tiles, so
+	 * that each tile, once expanded by the specified halo, contains at most
+	 * the specified number of pixels. The tiles cover the interval exactly. If
+	 * the number of pixels is not positive, a single tile equal to the
+	 * interval is returned.
+	 * <p>
+	 * Tiles are obtained by repeatedly splitting the largest tile dimension.
+	 * If the halo alone exceeds the pixel budget, the tiles are as small as
+	 * the halo allows, and the budget is exceeded.
+	 *
+	 * @param interval
+	 *            the interval to split.
+	 * @param halo
+	 *            the halo size, in pixels, along each dimension.
+	 * @param maxPixels
+	 *            the maximal number of pixels in a tile plus its halo.
+	 * @return a new list of tiles.
+	 */
+	public static final List< Interval > splitIntoTiles( final Interval interval, final long[] halo, final long maxPixels )
+	{
+		final int n = interval.numDimensions();
+		final long[] nTiles = new long[ n ];
+		final long[] tileSize = new long[ n ];
+		Arrays.fill( nTiles, 1l );
+		interval.dimensions( tileSize );
+
+		if ( maxPixels > 0 )
+		{
+			while ( true )
+			{
+				double nPixels = 1.;
+				int largest = -1;
+				for ( int d = 0; d < n; d++ )
+				{
+					nPixels *= tileSize[ d ] + 2 * halo[ d ];
+					// Only split if the tile stays larger than its halo.
+					if ( tileSize[ d ] > 2 * halo[ d ] && ( largest < 0 || tileSize[ d ] > tileSize[ largest ] ) )
+						largest = d;
+				}
+				if ( nPixels <= maxPixels || largest < 0 )
+					break;
+
+				nTiles[ largest ]++;
+				tileSize[ largest ] = ( interval.dimension( largest ) + nTiles[ largest ] - 1 ) / nTiles[ largest ];
+			}
+		}
+
+		// Rounding up tile sizes might have made the last tiles empty.
+		for ( int d = 0; d < n; d++ )
+			nTiles[ d ] = ( interval.dimension( d ) + tileSize[ d ] - 1 ) / tileSize[ d ];
+
+		final List< Interval > tiles = new ArrayList<>();
+		final long[] position = new long[ n ];
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		while ( true )
+		{
+			for ( int d = 0; d < n; d++ )
+			{
+				min[ d ] = interval.min( d ) + position[ d ] * tileSize[ d ];
+				max[ d ] = Math.min( interval.max( d ), min[ d ] + tileSize[ d ] - 1 );
+			}
+			tiles.add( new FinalInterval( min, max ) );
+
+			// Move to next tile in the grid.
+			int d = 0;
+			while ( d < n && ++position[ d ] >= nTiles[ d ] )
+				position[ d++ ] = 0;
+			if ( d == n )
+				break;
+		}
+		return tiles;
+	}
+
 	/**
 	 * Returns a new settings map filled with default values suitable for the
 	 * default detectors.
@@ -473,6 +904,8 @@ public class DetectionUtil
 		settings.put( KEY_ROI, DEFAULT_ROI );
 		settings.put( KEY_ADD_BEHAVIOR, DEFAULT_ADD_BEHAVIOR );
 		settings.put( KEY_DETECTION_TYPE, DEFAULT_DETECTION_TYPE );
+		settings.put( KEY_MEMORY_BUDGET, DEFAULT_MEMORY_BUDGET );
+		settings.put( KEY_MAX_RADIUS, DEFAULT_MAX_RADIUS );
 		return settings;
 	}
 
@@ -503,6 +936,10 @@ public class DetectionUtil
 		ok = ok & checkParameter( settings, KEY_RADIUS, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_THRESHOLD, Double.class, errorHolder );
 //		ok = ok & checkParameter( settings, KEY_ADD_BEHAVIOR, String.class, errorHolder );
+		if ( settings.containsKey( KEY_MEMORY_BUDGET ) )
+			ok = ok & checkParameter( settings, KEY_MEMORY_BUDGET, Long.class, errorHolder );
+		if ( null != settings.get( KEY_MAX_RADIUS ) )
+			ok = ok & checkParameter( settings, KEY_MAX_RADIUS, Double.class, errorHolder );
 
 		// Check key presence.
 		final List< String > mandatoryKeys = new ArrayList<>();
@@ -515,6 +952,8 @@ public class DetectionUtil
 		optionalKeys.add( KEY_ADD_BEHAVIOR );
 		optionalKeys.add( KEY_ROI );
 		optionalKeys.add( KEY_DETECTION_TYPE );
+		optionalKeys.add( KEY_MEMORY_BUDGET );
+		optionalKeys.add( KEY_MAX_RADIUS );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
 
 		// Check min & max time-point.
@@ -527,6 +966,19 @@ public class DetectionUtil
 					+ minTimepoint + " and max = " + maxTimepoint + "\n" );
 		}
 
+		// Check min & max radius.
+		if ( settings.get( KEY_MAX_RADIUS ) instanceof Double && settings.get( KEY_RADIUS ) instanceof Double )
+		{
+			final double radius = ( double ) settings.get( KEY_RADIUS );
+			final double maxRadius = ( double ) settings.get( KEY_MAX_RADIUS );
+			if ( maxRadius < radius )
+			{
+				ok = false;
+				errorHolder.append( "Max radius should be larger than or equal to radius, but was radius = "
+						+ radius + " and max radius = " + maxRadius + "\n" );
+			}
+		}
+
 		return ok;
 	}
 
@@ -93,6 +93,21 @@ public class DetectorKeys
 	 */
 	public static final double DEFAULT_RADIUS = 5;
 
+	/**
+	 * Key for the parameter specifying the largest radius of particles, for
+	 * detectors that search for particles over a range of sizes, in units of
+	 * the global coordinate system. The smallest radius is then specified by
+	 * {@link #KEY_RADIUS}. Expected values must be {@link Double}s larger than
+	 * or equal to the {@link #KEY_RADIUS} value. A <code>null</code> value
+	 * indicates that only the {@link #KEY_RADIUS} value is used.
+	 */
+	public static final String KEY_MAX_RADIUS = "MAX_RADIUS";
+
+	/**
+	 * Default value for the {@link #KEY_MAX_RADIUS} parameter.
+	 */
+	public static final Double DEFAULT_MAX_RADIUS = null;
+
 	/**
 	 * Key for the parameter specifying the threshold on quality values above
 	 * which to discard detections. Expected values are {@link Double}s, larger
@@ -131,6 +146,23 @@ public class DetectorKeys
 	 */
 	public static final String DEFAULT_ADD_BEHAVIOR = null;
 
+	/**
+	 * Key for the parameter specifying the memory budget of the detection, in
+	 * bytes. Detectors that support it process as many time-points
+	 * concurrently as the budget allows. If a single time-point does not fit
+	 * in the budget, detectors that can do so process its image in
+	 * overlapping tiles. Expected values are {@link Long}s. A value of 0 or
+	 * less indicates that the number of time-points processed concurrently is
+	 * determined from the memory available, and that images are processed at
+	 * once.
+	 */
+	public static final String KEY_MEMORY_BUDGET = "MEMORY_BUDGET";
+
+	/**
+	 * Default value for the {@link #KEY_MEMORY_BUDGET} parameter.
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 0l;
+
 	private DetectorKeys()
 	{}
 }
@@ -28,8 +28,10 @@
  */
 package org.mastodon.tracking.detection;
 
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MEMORY_BUDGET;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_DETECTION_TYPE;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MEMORY_BUDGET;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_RADIUS;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_ROI;
@@ -38,6 +40,8 @@ import static org.mastodon.tracking.detection.DetectorKeys.KEY_THRESHOLD;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mastodon.tracking.detection.DetectionCreatorFactory.DetectionCreator;
 import org.scijava.plugin.Parameter;
@@ -45,6 +49,7 @@ import org.scijava.plugin.Plugin;
 import org.scijava.thread.ThreadService;
 
 import bdv.viewer.SourceAndConverter;
+import gnu.trove.list.array.TDoubleArrayList;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Point;
@@ -62,6 +67,14 @@ import net.imglib2.view.Views;
 
 /**
  * Difference of Gaussian detector.
+ * <p>
+ * Time-points are processed concurrently by a {@link TimepointScheduler}, as
+ * many as the {@link DetectorKeys#KEY_MEMORY_BUDGET} allows. If a positive
+ * budget is specified, each time-point is processed in tiles sized to fit in
+ * its share of the budget. Each tile is
+ * expanded by a halo of 3 times the larger DoG sigma, and only keeps the
+ * peaks whose integer location lies in the tile itself. Peaks found in
+ * overlapping halos are thus reported only once.
  *
  * @author Tobias Pietzsch
  * @author Jean-Yves Tinevez
@@ -80,6 +93,12 @@ public class DoGDetectorOp
 	 */
 	public static final double MIN_SPOT_PIXEL_SIZE = 5d;
 
+	/**
+	 * Estimate of the memory used per pixel of a tile. The DoG is computed in
+	 * two float images, plus some room for the peak detection.
+	 */
+	private static final long BYTES_PER_PIXEL = 12l;
+
 	private long processingTime;
 
 	@Override
@@ -104,147 +123,260 @@ public class DoGDetectorOp
 		final double threshold = ( double ) settings.get( KEY_THRESHOLD );
 		final Interval roi = ( Interval ) settings.get( KEY_ROI );
 		final DetectionType detectionType = DetectionType.getOrDefault( ( String ) settings.get( KEY_DETECTION_TYPE ), DetectionType.MINIMA );
+		final long memoryBudget = settings.containsKey( KEY_MEMORY_BUDGET )
+				? ( long ) settings.get( KEY_MEMORY_BUDGET )
+				: DEFAULT_MEMORY_BUDGET;
+
+		/*
+		 * Time-points are processed concurrently, as many as the memory budget
+		 * allows. If only one time-point fits and it does not fit in the
+		 * budget, it is processed in tiles.
+		 */
+
+		final long framePixels = DetectionUtil.estimateNumPixels( sources, setup, minTimepoint, maxTimepoint, radius, MIN_SPOT_PIXEL_SIZE / 2. );
+		final int maxInFlight = TimepointScheduler.maxInFlight( memoryBudget, framePixels * BYTES_PER_PIXEL );
+		final long tileBudget = ( memoryBudget > 0 ) ? memoryBudget / maxInFlight : 0l;
+		final boolean prefetch = maxInFlight > 1;
+		final AtomicInteger progress = new AtomicInteger( 0 );
 
 		statusService.showStatus( "DoG detection." );
-		for ( int tp = minTimepoint; tp <= maxTimepoint; tp++ )
-		{
-			statusService.showProgress( tp - minTimepoint + 1, maxTimepoint - minTimepoint + 1 );
+		final TimepointScheduler scheduler = new TimepointScheduler( maxInFlight, this, threadService.getExecutorService() );
+		final boolean completed = scheduler.run( minTimepoint, maxTimepoint,
+				tp -> load( sources, tp, setup, radius, roi, prefetch ),
+				( tp, frame ) -> {
+					process( frame, detectionCreatorFactory, sources, tp, setup, radius, threshold, detectionType, tileBudget, scheduler.getExecutorService() );
+					statusService.showProgress( progress.incrementAndGet(), maxTimepoint - minTimepoint + 1 );
+				} );
 
-			// Did we get canceled?
-			if ( isCanceled() )
-				break;
-
-			// Check if there is some data at this timepoint.
-			if ( !DetectionUtil.isPresent( sources, setup, tp ) )
-				continue;
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		statusService.clearStatus();
+		if ( !completed )
+		{
+			// Canceled or interrupted: only some time-points were processed.
+			errorMessage = "Detection was canceled or interrupted.";
+			return;
+		}
+		ok = true;
+	}
 
-			/*
-			 * Determine optimal level for detection.
-			 */
+	/**
+	 * Loading stage: determines the resolution level, the image and the
+	 * interval to process in a time-point.
+	 *
+	 * @return the frame to process, or <code>null</code> if there is no data
+	 *         at this time-point.
+	 */
+	static Frame load( final List< SourceAndConverter< ? > > sources, final int tp, final int setup, final double radius, final Interval roi, final boolean prefetch )
+	{
+		// Check if there is some data at this timepoint.
+		if ( !DetectionUtil.isPresent( sources, setup, tp ) )
+			return null;
 
-			final int level = DetectionUtil.determineOptimalResolutionLevel( sources, radius, MIN_SPOT_PIXEL_SIZE / 2., tp, setup );
+		/*
+		 * Determine optimal level for detection.
+		 */
 
-			/*
-			 * Load and extends image data.
-			 */
+		final int level = DetectionUtil.determineOptimalResolutionLevel( sources, radius, MIN_SPOT_PIXEL_SIZE / 2., tp, setup );
 
-			final RandomAccessibleInterval< ? > img = DetectionUtil.getImage( sources, tp, setup, level );
-			if ( !DetectionUtil.isReallyPresent( img ) )
-				continue;
+		/*
+		 * Load and extends image data.
+		 */
 
-			// If 2D, the 3rd dimension will be dropped here.
-			final RandomAccessibleInterval< ? > zeroMin = Views.dropSingletonDimensions( Views.zeroMin( img ) );
+		final RandomAccessibleInterval< ? > img = DetectionUtil.getImage( sources, tp, setup, level );
+		if ( !DetectionUtil.isReallyPresent( img ) )
+			return null;
 
-			@SuppressWarnings( { "unchecked", "rawtypes" } )
-			final RandomAccessible< FloatType > source = DetectionUtil.asExtendedFloat( ( RandomAccessibleInterval ) zeroMin );
+		// If 2D, the 3rd dimension will be dropped here.
+		final RandomAccessibleInterval< ? > zeroMin = Views.dropSingletonDimensions( Views.zeroMin( img ) );
 
-			/*
-			 * Transform ROI in higher level.
-			 */
+		/*
+		 * Transform ROI in higher level.
+		 */
 
-			final Interval interval;
-			if ( null == roi )
+		final Interval interval;
+		if ( null == roi )
+		{
+			interval = zeroMin;
+		}
+		else
+		{
+			final double[] minSource = new double[ 3 ];
+			final double[] maxSource = new double[ 3 ];
+			roi.realMin( minSource );
+			roi.realMax( maxSource );
+			final double[] minTarget = new double[ 3 ];
+			final double[] maxTarget = new double[ 3 ];
+
+			final AffineTransform3D mipmapTransform = DetectionUtil.getMipmapTransform( sources, tp, setup, level );
+			mipmapTransform.applyInverse( minTarget, minSource );
+			mipmapTransform.applyInverse( maxTarget, maxSource );
+
+			// Only take 2D or 3D version of the transformed interval.
+			final long[] tmin = new long[ zeroMin.numDimensions() ];
+			final long[] tmax = new long[ zeroMin.numDimensions() ];
+			for ( int d = 0; d < zeroMin.numDimensions(); d++ )
 			{
-				interval = zeroMin;
+				tmin[ d ] = ( long ) Math.ceil( minTarget[ d ] );
+				tmax[ d ] = ( long ) Math.floor( maxTarget[ d ] );
 			}
-			else
+			final FinalInterval transformedRoi = new FinalInterval( tmin, tmax );
+			interval = Intervals.intersect( transformedRoi, zeroMin );
+		}
+
+		// Ensure that the interval size is at least 3 in all dimensions.
+		final long[] min = new long[interval.numDimensions()];
+		interval.min( min );
+		final long[] max = new long[interval.numDimensions()];
+		interval.max( max );
+		for ( int d = 0; d < interval.numDimensions(); d++ )
+			if ( interval.dimension( d ) < 3 )
 			{
-				final double[] minSource = new double[ 3 ];
-				final double[] maxSource = new double[ 3 ];
-				roi.realMin( minSource );
-				roi.realMax( maxSource );
-				final double[] minTarget = new double[ 3 ];
-				final double[] maxTarget = new double[ 3 ];
-
-				final AffineTransform3D mipmapTransform = DetectionUtil.getMipmapTransform( sources, tp, setup, level );
-				mipmapTransform.applyInverse( minTarget, minSource );
-				mipmapTransform.applyInverse( maxTarget, maxSource );
-
-				// Only take 2D or 3D version of the transformed interval.
-				final long[] tmin = new long[ zeroMin.numDimensions() ];
-				final long[] tmax = new long[ zeroMin.numDimensions() ];
-				for ( int d = 0; d < zeroMin.numDimensions(); d++ )
-				{
-					tmin[ d ] = ( long ) Math.ceil( minTarget[ d ] );
-					tmax[ d ] = ( long ) Math.floor( maxTarget[ d ] );
-				}
-				final FinalInterval transformedRoi = new FinalInterval( tmin, tmax );
-				interval = Intervals.intersect( transformedRoi, zeroMin );
+				min[ d ]--;
+				max[ d ]++;
 			}
+		final FinalInterval minInterval = new FinalInterval( min, max );
 
-			// Ensure that the interval size is at least 3 in all dimensions.
-			final long[] min = new long[interval.numDimensions()];
-			interval.min( min );
-			final long[] max = new long[interval.numDimensions()];
-			interval.max( max );
-			for ( int d = 0; d < interval.numDimensions(); d++ )
-				if ( interval.dimension( d ) < 3 )
-				{
-					min[ d ]--;
-					max[ d ]++;
-				}
-			final FinalInterval minInterval = new FinalInterval( min, max );
-
-			/*
-			 * Process image.
-			 */
-
-
-			final int stepsPerOctave = 4;
-			final double k = Math.pow( 2.0, 1.0 / stepsPerOctave );
-			final double sigma = radius / Math.sqrt( zeroMin.numDimensions() );
-			final double sigmaSmaller = sigma;
-			final double sigmaLarger = k * sigmaSmaller;
-			final double normalization = ( ( detectionType == DetectionType.MAXIMA ) ? 1.0 : -1.0 )
-					/ ( sigmaLarger / sigmaSmaller - 1.0 );
-
-			final double[] pixelSize = DetectionUtil.getPixelSize( sources, tp, setup, level );
+		// Pull the data in memory while the previous time-points are processed.
+		if ( prefetch )
+			DetectionUtil.prefetch( zeroMin, minInterval );
+
+		return new Frame( level, zeroMin, minInterval );
+	}
+
+	/**
+	 * Processing stage: runs the DoG detection on a time-point, in tiles if
+	 * needed, and adds the detections.
+	 */
+	private void process(
+			final Frame frame,
+			final DetectionCreatorFactory detectionCreatorFactory,
+			final List< SourceAndConverter< ? > > sources,
+			final int tp,
+			final int setup,
+			final double radius,
+			final double threshold,
+			final DetectionType detectionType,
+			final long tileBudget,
+			final ExecutorService service )
+	{
+		final int level = frame.level;
+		final RandomAccessibleInterval< ? > zeroMin = frame.zeroMin;
+		final FinalInterval minInterval = frame.interval;
+
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final RandomAccessible< FloatType > source = DetectionUtil.asExtendedFloat( ( RandomAccessibleInterval ) zeroMin );
+
+		/*
+		 * Process image.
+		 */
+
+		final int stepsPerOctave = 4;
+		final double k = Math.pow( 2.0, 1.0 / stepsPerOctave );
+		final double sigma = radius / Math.sqrt( zeroMin.numDimensions() );
+		final double sigmaSmaller = sigma;
+		final double sigmaLarger = k * sigmaSmaller;
+		final double normalization = ( ( detectionType == DetectionType.MAXIMA ) ? 1.0 : -1.0 )
+				/ ( sigmaLarger / sigmaSmaller - 1.0 );
+
+		final double[] pixelSize = DetectionUtil.getPixelSize( sources, tp, setup, level );
+
+		/*
+		 * Split in tiles. The halo is 3 sigma of the larger Gaussian, and
+		 * at least 2 pixels for the extremum check and sub-pixel
+		 * localization.
+		 */
+
+		final long[] halo = new long[ minInterval.numDimensions() ];
+		for ( int d = 0; d < halo.length; d++ )
+			halo[ d ] = Math.max( 2l, ( long ) Math.ceil( 3. * sigmaLarger / pixelSize[ d ] ) );
+		final List< Interval > tiles = DetectionUtil.splitIntoTiles( minInterval, halo, tileBudget / BYTES_PER_PIXEL );
+
+		/*
+		 * Process tiles and collect peaks, transformed to global
+		 * coordinates, in a flat buffer: x, y, z, quality.
+		 */
+
+		final double[] pos = new double[ 3 ];
+		final RealPoint sp = RealPoint.wrap( pos );
+		final RealPoint p3d = new RealPoint( 3 );
+		final AffineTransform3D transform = DetectionUtil.getTransform( sources, tp, setup, level );
+		final TDoubleArrayList peaks = new TDoubleArrayList();
+
+		for ( final Interval core : tiles )
+		{
+			// Do not commit the detections of a partial time-point.
+			if ( isCanceled() )
+				return;
+
+			final Interval tile = ( tiles.size() == 1 )
+					? core
+					: Intervals.intersect( Intervals.expand( core, halo ), minInterval );
 			final DogDetection< FloatType > dog = new DogDetection<>(
 					source,
-					minInterval,
+					tile,
 					pixelSize,
 					sigmaSmaller,
 					sigmaLarger,
 					( detectionType == DetectionType.MAXIMA ) ? ExtremaType.MAXIMA : ExtremaType.MINIMA,
 					threshold,
 					true );
-			dog.setExecutorService( threadService.getExecutorService() );
+			dog.setExecutorService( service );
 			final ArrayList< RefinedPeak< Point > > refinedPeaks = dog.getSubpixelPeaks();
 
-			final double[] pos = new double[ 3 ];
-			final RealPoint sp = RealPoint.wrap( pos );
-			final RealPoint p3d = new RealPoint( 3 );
-
-			final AffineTransform3D transform = DetectionUtil.getTransform( sources, tp, setup, level );
-			final DetectionCreator detectionCreator = detectionCreatorFactory.create( tp );
-			detectionCreator.preAddition();
-			try
+			for ( final RefinedPeak< Point > p : refinedPeaks )
 			{
-				for ( final RefinedPeak< Point > p : refinedPeaks )
-				{
-					final double value = p.getValue();
-					final double normalizedValue = value * normalization;
-
-					/*
-					 * In case p is 2D we pass it to a 3D RealPoint to work
-					 * nicely with the 3D transform.
-					 */
-					for ( int d = 0; d < p.numDimensions(); d++ )
-						p3d.setPosition( p.getDoublePosition( d ), d );
-					transform.apply( p3d, sp );
-					detectionCreator.createDetection( pos, radius, normalizedValue );
-				}
-			}
-			finally
-			{
-				detectionCreator.postAddition();
+				// Peaks in the halo belong to a neighbor tile.
+				if ( !Intervals.contains( core, p.getOriginalPeak() ) )
+					continue;
+
+				final double value = p.getValue();
+				final double normalizedValue = value * normalization;
+
+				/*
+				 * In case p is 2D we pass it to a 3D RealPoint to work
+				 * nicely with the 3D transform.
+				 */
+				for ( int d = 0; d < p.numDimensions(); d++ )
+					p3d.setPosition( p.getDoublePosition( d ), d );
+				transform.apply( p3d, sp );
+				peaks.add( pos );
+				peaks.add( normalizedValue );
 			}
 		}
 
-		final long end = System.currentTimeMillis();
-		processingTime = end - start;
-		statusService.clearStatus();
-		ok = true;
+		/*
+		 * Create detections. The DetectionCreator contract is a single
+		 * batch per time-point, so peaks are added once all tiles are
+		 * processed. Factories are not required to be thread-safe.
+		 */
+
+		final DetectionCreator detectionCreator;
+		synchronized ( detectionCreatorFactory )
+		{
+			detectionCreator = detectionCreatorFactory.create( tp );
+		}
+		final int nPeaks = peaks.size() / 4;
+		final double[] positions = new double[ 3 * nPeaks ];
+		final double[] radii = new double[ nPeaks ];
+		final double[] qualities = new double[ nPeaks ];
+		for ( int i = 0; i < nPeaks; i++ )
+		{
+			positions[ 3 * i ] = peaks.getQuick( 4 * i );
+			positions[ 3 * i + 1 ] = peaks.getQuick( 4 * i + 1 );
+			positions[ 3 * i + 2 ] = peaks.getQuick( 4 * i + 2 );
+			radii[ i ] = radius;
+			qualities[ i ] = peaks.getQuick( 4 * i + 3 );
+		}
+		detectionCreator.preAddition();
+		try
+		{
+			detectionCreator.createDetections( positions, radii, qualities, nPeaks );
+		}
+		finally
+		{
+			detectionCreator.postAddition();
+		}
 	}
 
 	@Override
@@ -253,4 +385,24 @@ public class DoGDetectorOp
 		return processingTime;
 	}
 
+	/**
+	 * The data of a time-point to process. Also used by the multi-scale DoG
+	 * detector.
+	 */
+	static final class Frame
+	{
+
+		final int level;
+
+		final RandomAccessibleInterval< ? > zeroMin;
+
+		final FinalInterval interval;
+
+		private Frame( final int level, final RandomAccessibleInterval< ? > zeroMin, final FinalInterval interval )
+		{
+			this.level = level;
+			this.zeroMin = zeroMin;
+			this.interval = interval;
+		}
+	}
 }
@@ -28,7 +28,9 @@
  */
 package org.mastodon.tracking.detection;
 
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MEMORY_BUDGET;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MEMORY_BUDGET;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_RADIUS;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_ROI;
@@ -38,6 +40,8 @@ import static org.mastodon.tracking.detection.DoGDetectorOp.MIN_SPOT_PIXEL_SIZE;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mastodon.tracking.detection.DetectionCreatorFactory.DetectionCreator;
 import org.scijava.plugin.Parameter;
@@ -47,17 +51,15 @@ import org.scijava.thread.ThreadService;
 import bdv.viewer.SourceAndConverter;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.Point;
-import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.algorithm.Benchmark;
-import net.imglib2.algorithm.localextrema.RefinedPeak;
-import net.imglib2.algorithm.localextrema.SubpixelLocalization;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 /**
@@ -74,6 +76,12 @@ public class LoGDetectorOp
 	@Parameter
 	private ThreadService threadService;
 
+	/**
+	 * Estimate of the memory needed to process one pixel: the float output
+	 * image, plus the padded complex buffers of the FFT convolution.
+	 */
+	private static final long BYTES_PER_PIXEL = 24l;
+
 	private long processingTime;
 
 	private final boolean doSubpixelLocalization = true;
@@ -99,168 +107,222 @@ public class LoGDetectorOp
 		final double threshold = ( double ) settings.get( KEY_THRESHOLD );
 		final Interval roi = ( Interval ) settings.get( KEY_ROI );
 
+		final long memoryBudget = settings.containsKey( KEY_MEMORY_BUDGET )
+				? ( long ) settings.get( KEY_MEMORY_BUDGET )
+				: DEFAULT_MEMORY_BUDGET;
+
+		/*
+		 * Time-points are processed concurrently, as many as the memory budget
+		 * allows.
+		 */
+
+		final long framePixels = DetectionUtil.estimateNumPixels( sources, setup, minTimepoint, maxTimepoint, radius, MIN_SPOT_PIXEL_SIZE / 2. );
+		final int maxInFlight = TimepointScheduler.maxInFlight( memoryBudget, framePixels * BYTES_PER_PIXEL );
+		final boolean prefetch = maxInFlight > 1;
+		final AtomicInteger progress = new AtomicInteger( 0 );
+
 		statusService.showStatus( "LoG detection" );
-		for ( int tp = minTimepoint; tp <= maxTimepoint; tp++ )
-		{
-			statusService.showProgress( tp - minTimepoint + 1, maxTimepoint - minTimepoint + 1 );
+		// Caches the kernel FFTs across time-points.
+		final TimepointScheduler scheduler = new TimepointScheduler( maxInFlight, this, threadService.getExecutorService() );
+		final LoGFilter filter = new LoGFilter( scheduler.getExecutorService() );
+		final boolean completed = scheduler.run( minTimepoint, maxTimepoint,
+				tp -> load( sources, tp, setup, radius, roi, prefetch ),
+				( tp, frame ) -> {
+					process( frame, filter, detectionCreatorFactory, sources, tp, setup, radius, threshold, scheduler.getExecutorService() );
+					statusService.showProgress( progress.incrementAndGet(), maxTimepoint - minTimepoint + 1 );
+				} );
 
-			// Did we get canceled?
-			if ( isCanceled() )
-				break;
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		statusService.clearStatus();
+		if ( !completed )
+		{
+			// Canceled or interrupted: only some time-points were processed.
+			errorMessage = "Detection was canceled or interrupted.";
+			return;
+		}
+		ok = true;
+	}
 
-			// Check if there is some data at this timepoint.
-			if ( !DetectionUtil.isPresent( sources, setup, tp ) )
-				continue;
+	/**
+	 * Loading stage: determines the resolution level, the image and the
+	 * interval to process in a time-point.
+	 *
+	 * @return the frame to process, or <code>null</code> if there is no data
+	 *         at this time-point.
+	 */
+	private static Frame load( final List< SourceAndConverter< ? > > sources, final int tp, final int setup, final double radius, final Interval roi, final boolean prefetch )
+	{
+		// Check if there is some data at this timepoint.
+		if ( !DetectionUtil.isPresent( sources, setup, tp ) )
+			return null;
 
-			/*
-			 * Determine optimal level for detection.
-			 */
+		/*
+		 * Determine optimal level for detection.
+		 */
 
-			final int level = DetectionUtil.determineOptimalResolutionLevel( sources, radius, MIN_SPOT_PIXEL_SIZE / 2., tp, setup );
+		final int level = DetectionUtil.determineOptimalResolutionLevel( sources, radius, MIN_SPOT_PIXEL_SIZE / 2., tp, setup );
 
-			/*
-			 * Load and extends image data.
-			 */
+		/*
+		 * Load and extends image data.
+		 */
 
-			@SuppressWarnings( "rawtypes" )
-			final RandomAccessibleInterval img = DetectionUtil.getImage( sources, tp, setup, level );
-			if ( !DetectionUtil.isReallyPresent( img ) )
-				continue;
+		final RandomAccessibleInterval< ? > img = DetectionUtil.getImage( sources, tp, setup, level );
+		if ( !DetectionUtil.isReallyPresent( img ) )
+			return null;
 
-			@SuppressWarnings( "unchecked" )
-			final RandomAccessibleInterval< ? > zeroMin = Views.dropSingletonDimensions( Views.zeroMin( img ) );
+		final RandomAccessibleInterval< ? > zeroMin = Views.dropSingletonDimensions( Views.zeroMin( img ) );
 
-			/*
-			 * Transform ROI in higher level.
-			 */
+		/*
+		 * Transform ROI in higher level.
+		 */
 
-			final Interval interval;
-			if ( null == roi )
-			{
-				interval = zeroMin;
-			}
-			else
+		final Interval interval;
+		if ( null == roi )
+		{
+			interval = zeroMin;
+		}
+		else
+		{
+			final double[] minSource = new double[ 3 ];
+			final double[] maxSource = new double[ 3 ];
+			roi.realMin( minSource );
+			roi.realMax( maxSource );
+			final double[] minTarget = new double[ 3 ];
+			final double[] maxTarget = new double[ 3 ];
+
+			final AffineTransform3D mipmapTransform = DetectionUtil.getMipmapTransform( sources, tp, setup, level );
+			mipmapTransform.applyInverse( minTarget, minSource );
+			mipmapTransform.applyInverse( maxTarget, maxSource );
+
+			final long[] tmin = new long[ zeroMin.numDimensions() ];
+			final long[] tmax = new long[ zeroMin.numDimensions() ];
+			for ( int d = 0; d < zeroMin.numDimensions(); d++ )
 			{
-				final double[] minSource = new double[ 3 ];
-				final double[] maxSource = new double[ 3 ];
-				roi.realMin( minSource );
-				roi.realMax( maxSource );
-				final double[] minTarget = new double[ 3 ];
-				final double[] maxTarget = new double[ 3 ];
-
-				final AffineTransform3D mipmapTransform = DetectionUtil.getMipmapTransform( sources, tp, setup, level );
-				mipmapTransform.applyInverse( minTarget, minSource );
-				mipmapTransform.applyInverse( maxTarget, maxSource );
-
-				final long[] tmin = new long[ zeroMin.numDimensions() ];
-				final long[] tmax = new long[ zeroMin.numDimensions() ];
-				for ( int d = 0; d < zeroMin.numDimensions(); d++ )
-				{
-					tmin[ d ] = ( long ) Math.ceil( minTarget[ d ] );
-					tmax[ d ] = ( long ) Math.floor( maxTarget[ d ] );
-				}
-				final FinalInterval transformedRoi = new FinalInterval( tmin, tmax );
-				interval = Intervals.intersect( transformedRoi, zeroMin );
+				tmin[ d ] = ( long ) Math.ceil( minTarget[ d ] );
+				tmax[ d ] = ( long ) Math.floor( maxTarget[ d ] );
 			}
+			final FinalInterval transformedRoi = new FinalInterval( tmin, tmax );
+			interval = Intervals.intersect( transformedRoi, zeroMin );
+		}
 
-			/*
-			 * Filter image.
-			 */
-
-			final double[] pixelSize = DetectionUtil.getPixelSize( sources, tp, setup, level );
-			final RandomAccessibleInterval< FloatType > kernel = createLoGKernel( radius, zeroMin.numDimensions(), pixelSize );
-			@SuppressWarnings( "rawtypes" )
-			final IntervalView source = Views.interval( zeroMin, interval );
-
-			@SuppressWarnings( "unchecked" )
-			final RandomAccessibleInterval< FloatType > output = ops().filter().convolve( source, kernel );
-
-			/*
-			 * LoG normalization factor, so that the filtered peak have the
-			 * maximal value for spots that have the size this kernel is tuned
-			 * to. With this value, the peak value will be of the same order of
-			 * magnitude than the raw spot (if it has the right size). This
-			 * value also ensures that if the image has its calibration changed,
-			 * one will retrieve the same peak value than before scaling.
-			 * However, I (JYT) could not derive the exact formula if the image
-			 * is scaled differently across X, Y and Z.
-			 */
-			final double sigma = radius / Math.sqrt( img.numDimensions() );
-			final double sigmaPixels = sigma / pixelSize[ 0 ];
-			final FloatType C = new FloatType( ( float ) ( 1. / Math.PI / sigmaPixels / sigmaPixels ) );
-			Views.iterable( output ).forEach( ( e ) -> e.div( C ) );
-
-			/*
-			 * Detect local maxima.
-			 */
-
-			final AffineTransform3D transform = DetectionUtil.getTransform( sources, tp, setup, level );
-			final DetectionCreator detectionCreator = detectionCreatorFactory.create( tp );
-			final List< Point > peaks = DetectionUtil.findLocalMaxima( output, threshold, threadService.getExecutorService() );
-			if ( doSubpixelLocalization )
-			{
-				final int maxNumMoves = 10;
-				final boolean allowMaximaTolerance = true;
-				final boolean returnInvalidPeaks = true;
-				final boolean[] allowedToMoveInDim = new boolean[ img.numDimensions() ];
-				Arrays.fill( allowedToMoveInDim, true );
-				final float maximaTolerance = 0.01f;
-				final List< RefinedPeak< Point > > refined = SubpixelLocalization.refinePeaks( peaks, output, output,
-						returnInvalidPeaks, maxNumMoves, allowMaximaTolerance, maximaTolerance , allowedToMoveInDim );
-
-				final RandomAccess< FloatType > ra = output.randomAccess();
-				final double[] pos = new double[ 3 ];
-				final RealPoint point = RealPoint.wrap( pos );
-				final RealPoint p3d = new RealPoint( 3 );
-
-				detectionCreator.preAddition();
-				try
-				{
-					for ( final RefinedPeak< Point > refinedPeak : refined )
-					{
-						ra.setPosition( refinedPeak.getOriginalPeak() );
-						final double q = ra.get().getRealDouble();
-
-						for ( int d = 0; d < refinedPeak.numDimensions(); d++ )
-							p3d.setPosition( refinedPeak.getDoublePosition( d ), d );
-						transform.apply( p3d, point );
-						detectionCreator.createDetection( pos, radius, q );
-					}
-				}
-				finally
-				{
-					detectionCreator.postAddition();
-				}
-			}
-			else
+		// Pull the data in memory while the previous time-points are processed.
+		if ( prefetch )
+			DetectionUtil.prefetch( zeroMin, interval );
+
+		return new Frame( level, img.numDimensions(), zeroMin, interval );
+	}
+
+	/**
+	 * Processing stage: filters the image of a time-point, detects local
+	 * maxima and adds the detections.
+	 */
+	private void process(
+			final Frame frame,
+			final LoGFilter filter,
+			final DetectionCreatorFactory detectionCreatorFactory,
+			final List< SourceAndConverter< ? > > sources,
+			final int tp,
+			final int setup,
+			final double radius,
+			final double threshold,
+			final ExecutorService service )
+	{
+		final int level = frame.level;
+		final RandomAccessibleInterval< ? > zeroMin = frame.zeroMin;
+		final Interval interval = frame.interval;
+
+		/*
+		 * Filter image.
+		 */
+
+		final double[] pixelSize = DetectionUtil.getPixelSize( sources, tp, setup, level );
+		// Optimal sigma for LoG approach and dimensionality.
+		final int nDims = zeroMin.numDimensions();
+		final double[] sigmaPixels = new double[ nDims ];
+		for ( int d = 0; d < nDims; d++ )
+			sigmaPixels[ d ] = radius / Math.sqrt( nDims ) / pixelSize[ d ];
+
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final RandomAccessible< FloatType > source = DetectionUtil.asExtendedFloat( ( RandomAccessibleInterval ) zeroMin );
+		final RandomAccessibleInterval< FloatType > output = Views.translate(
+				ArrayImgs.floats( Intervals.dimensionsAsLongArray( interval ) ),
+				Intervals.minAsLongArray( interval ) );
+		filter.filter( source, output, sigmaPixels );
+
+		/*
+		 * LoG normalization factor, so that the filtered peak have the
+		 * maximal value for spots that have the size this kernel is tuned
+		 * to. With this value, the peak value will be of the same order of
+		 * magnitude than the raw spot (if it has the right size). This
+		 * value also ensures that if the image has its calibration changed,
+		 * one will retrieve the same peak value than before scaling.
+		 * However, I (JYT) could not derive the exact formula if the image
+		 * is scaled differently across X, Y and Z.
+		 *
+		 * This factor was tuned for the kernel of the kernelLog op, which is
+		 * the normalized LoG of LoGFilter scaled by sigma^2 / 20, with the
+		 * sigma of the kernel itself. It is divided by this scale so that
+		 * the quality values, and therefore the thresholds, keep the same
+		 * scale.
+		 */
+		final double sigma = radius / Math.sqrt( frame.nDims );
+		final double sigmaPixelsC = sigma / pixelSize[ 0 ];
+		final double kernelLogScale = sigmaPixels[ 0 ] * sigmaPixels[ 0 ] / 20.;
+		final float C = ( float ) ( 1. / Math.PI / sigmaPixelsC / sigmaPixelsC / kernelLogScale );
+
+		/*
+		 * Detect local maxima. Normalization, thresholding and quality
+		 * measurement are done in the same pass.
+		 */
+
+		final AffineTransform3D transform = DetectionUtil.getTransform( sources, tp, setup, level );
+		final DetectionCreator detectionCreator;
+		synchronized ( detectionCreatorFactory )
+		{
+			// Factories are not required to be thread-safe.
+			detectionCreator = detectionCreatorFactory.create( tp );
+		}
+		final PeakBuffer peaks = DetectionUtil.findLocalMaxima( output, C, threshold, service );
+		final int nPeaks = peaks.size();
+		final double[] positions = new double[ 3 * nPeaks ];
+		final double[] radii = new double[ nPeaks ];
+		final double[] qualities = peaks.getValues();
+		Arrays.fill( radii, radius );
+
+		if ( doSubpixelLocalization )
+		{
+			// Refine on normalized values, without writing them.
+			final RandomAccessibleInterval< FloatType > normalized = Converters.convert( output, ( a, b ) -> b.set( a.get() / C ), new FloatType() );
+			DetectionUtil.refinePeaks( peaks, normalized, transform, positions, service );
+		}
+		else
+		{
+			final double[] pos = new double[ 3 ];
+			final RealPoint point = RealPoint.wrap( pos );
+			final RealPoint p3d = new RealPoint( 3 );
+			for ( int i = 0; i < nPeaks; i++ )
 			{
-				final RandomAccess< FloatType > ra = output.randomAccess();
-				final double[] pos = new double[ 3 ];
-				final RealPoint point = RealPoint.wrap( pos );
-
-				detectionCreator.preAddition();
-				try
-				{
-					for ( final Point peak : peaks )
-					{
-						ra.setPosition( peak );
-						final double q = ra.get().getRealDouble();
-
-						transform.apply( peak, point );
-						detectionCreator.createDetection( pos, radius, q );
-					}
-				}
-				finally
-				{
-					detectionCreator.postAddition();
-				}
+				for ( int d = 0; d < peaks.numDimensions(); d++ )
+					p3d.setPosition( peaks.getLongPosition( i, d ), d );
+				transform.apply( p3d, point );
+				System.arraycopy( pos, 0, positions, 3 * i, 3 );
 			}
 		}
 
-		final long end = System.currentTimeMillis();
-		processingTime = end - start;
-		statusService.clearStatus();
-		ok = true;
+		/*
+		 * Create detections, in one batch.
+		 */
+
+		detectionCreator.preAddition();
+		try
+		{
+			detectionCreator.createDetections( positions, radii, qualities, nPeaks );
+		}
+		finally
+		{
+			detectionCreator.postAddition();
+		}
 	}
 
 	@Override
@@ -291,7 +353,29 @@ public class LoGDetectorOp
 		for ( int d = 0; d < nDims; d++ )
 			sigmaPixels[ d ] = sigma / calibration[ d ];
 
-		final RandomAccessibleInterval< FloatType > kernel = ops().create().kernelLog( sigmaPixels, new FloatType() );
-		return kernel;
+		return LoGFilter.createKernel( sigmaPixels );
+	}
+
+	/**
+	 * The data of a time-point to process.
+	 */
+	private static final class Frame
+	{
+
+		private final int level;
+
+		private final int nDims;
+
+		private final RandomAccessibleInterval< ? > zeroMin;
+
+		private final Interval interval;
+
+		private Frame( final int level, final int nDims, final RandomAccessibleInterval< ? > zeroMin, final Interval interval )
+		{
+			this.level = level;
+			this.nDims = nDims;
+			this.zeroMin = zeroMin;
+			this.interval = interval;
+		}
 	}
 }
@@ -0,0 +1,346 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.convolution.Convolution;
+import net.imglib2.algorithm.convolution.kernel.Kernel1D;
+import net.imglib2.algorithm.convolution.kernel.SeparableKernelConvolution;
+import net.imglib2.algorithm.fft2.FFT;
+import net.imglib2.algorithm.fft2.FFTConvolution;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Laplacian of Gaussian (LoG) filter used by the LoG detector.
+ * <p>
+ * The kernel is the negative Laplacian of a normalized Gaussian, with one
+ * sigma per dimension specified in pixel units, truncated at 3 sigma. It is
+ * the sum, over dimensions, of the second derivative of the Gaussian along
+ * this dimension times the Gaussian along the others. Each of these terms is
+ * separable.
+ * <p>
+ * This kernel is <code>20 / sigma^2</code> times the one of the
+ * <code>kernelLog</code> op for isotropic sigmas. It differs from it in two
+ * other ways: the <code>kernelLog</code> kernel uses the first sigma in all
+ * dimensions, and is truncated at <code>3 sigma / sqrt(n)</code> plus a few
+ * pixels, which cuts part of its negative lobe.
+ * <p>
+ * The filter is computed either as a sum of separable convolutions, or by FFT
+ * convolution, whichever is expected to be the cheapest for the kernel and
+ * image size. The FFT of the kernel is cached and reused for all the images
+ * of the same size filtered with the same sigmas. Each call computes the FFT
+ * of its own image, so concurrent calls do not wait for each other.
+ * Instances are thread-safe and are meant to be reused across the
+ * time-points of a detection.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class LoGFilter
+{
+
+	/**
+	 * Estimated cost of the FFT convolution, per pixel and per power of two
+	 * of the padded image size, in multiply-adds of a separable convolution.
+	 * Accounts for the forward and inverse transforms over complex numbers.
+	 */
+	private static final double FFT_COST_FACTOR = 10.;
+
+	private final ExecutorService service;
+
+	private final ImgFactory< ComplexFloatType > fftFactory = new ArrayImgFactory<>( new ComplexFloatType() );
+
+	private final Map< Key, Img< ComplexFloatType > > kernelFFTs = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a new LoG filter.
+	 *
+	 * @param service
+	 *            the executor service to use for the convolutions.
+	 */
+	public LoGFilter( final ExecutorService service )
+	{
+		this.service = service;
+	}
+
+	/**
+	 * Filters the specified source with a LoG kernel.
+	 *
+	 * @param source
+	 *            the source image, extended so that it can be accessed around
+	 *            the output interval.
+	 * @param output
+	 *            the output image. The source is filtered over the interval of
+	 *            this image.
+	 * @param sigmaPixels
+	 *            the sigma of the LoG kernel in each dimension, in pixel
+	 *            units.
+	 */
+	public void filter( final RandomAccessible< FloatType > source, final RandomAccessibleInterval< FloatType > output, final double[] sigmaPixels )
+	{
+		final int n = sigmaPixels.length;
+		final double[][] gaussians = new double[ n ][];
+		final double[][] derivatives = new double[ n ][];
+		for ( int d = 0; d < n; d++ )
+		{
+			gaussians[ d ] = halfKernelGaussian( sigmaPixels[ d ] );
+			derivatives[ d ] = halfKernelSecondDerivative( sigmaPixels[ d ], gaussians[ d ] );
+		}
+
+		/*
+		 * Compare the number of multiply-adds per pixel of the separable
+		 * convolutions with an estimate of the FFT convolution cost.
+		 */
+
+		long separableCost = 0;
+		final long[] extendedDimensions = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			separableCost += n * ( 2 * gaussians[ d ].length - 1 );
+			extendedDimensions[ d ] = output.dimension( d ) + 2 * gaussians[ d ].length - 2;
+		}
+		final long[] paddedDimensions = new long[ n ];
+		final long[] fftDimensions = new long[ n ];
+		FFTMethods.dimensionsRealToComplexFast( FinalDimensions.wrap( extendedDimensions ), paddedDimensions, fftDimensions );
+		final double fftCost = FFT_COST_FACTOR * Math.log( Intervals.numElements( paddedDimensions ) ) / Math.log( 2. );
+
+		if ( separableCost <= fftCost )
+			filterSeparable( source, output, gaussians, derivatives );
+		else
+			filterFFT( source, output, sigmaPixels, gaussians, derivatives, paddedDimensions );
+	}
+
+	private void filterSeparable(
+			final RandomAccessible< FloatType > source,
+			final RandomAccessibleInterval< FloatType > output,
+			final double[][] gaussians,
+			final double[][] derivatives )
+	{
+		final int n = gaussians.length;
+		final RandomAccessibleInterval< FloatType > tmp = ( n > 1 )
+				? Views.translate( ArrayImgs.floats( Intervals.dimensionsAsLongArray( output ) ), Intervals.minAsLongArray( output ) )
+				: null;
+
+		for ( int d = 0; d < n; d++ )
+		{
+			// Second derivative along d, Gaussian along the other dimensions.
+			final double[][] halfKernels = new double[ n ][];
+			for ( int e = 0; e < n; e++ )
+				halfKernels[ e ] = ( e == d ) ? derivatives[ e ] : gaussians[ e ];
+
+			final Convolution< NumericType< ? > > convolution = SeparableKernelConvolution.convolution( Kernel1D.symmetric( halfKernels ) );
+			convolution.setExecutor( service );
+			if ( d == 0 )
+			{
+				convolution.process( source, output );
+			}
+			else
+			{
+				convolution.process( source, tmp );
+				final Cursor< FloatType > cOut = Views.flatIterable( output ).cursor();
+				final Cursor< FloatType > cTmp = Views.flatIterable( tmp ).cursor();
+				while ( cOut.hasNext() )
+					cOut.next().add( cTmp.next() );
+			}
+		}
+	}
+
+	private void filterFFT(
+			final RandomAccessible< FloatType > source,
+			final RandomAccessibleInterval< FloatType > output,
+			final double[] sigmaPixels,
+			final double[][] gaussians,
+			final double[][] derivatives,
+			final long[] paddedDimensions )
+	{
+		// Only read, so shared by concurrent calls.
+		final Img< ComplexFloatType > fftKernel = kernelFFTs.computeIfAbsent(
+				new Key( sigmaPixels, paddedDimensions ),
+				k -> kernelFFT( gaussians, derivatives, paddedDimensions ) );
+
+		// Same padding as in FFTConvolution.
+		final Interval imgInterval = FFTMethods.paddingIntervalCentered( output, FinalDimensions.wrap( paddedDimensions ) );
+		final Img< ComplexFloatType > fftImg = FFT.realToComplex( Views.interval( source, imgInterval ), fftFactory, service );
+		FFTConvolution.multiplyComplex( fftImg, fftKernel );
+		FFT.complexToRealUnpad( fftImg, Views.zeroMin( output ), service );
+	}
+
+	/**
+	 * FFT of the LoG kernel, padded to the specified dimensions with its
+	 * center at the origin.
+	 */
+	private Img< ComplexFloatType > kernelFFT( final double[][] gaussians, final double[][] derivatives, final long[] paddedDimensions )
+	{
+		final ArrayImg< FloatType, FloatArray > kernel = createKernel( gaussians, derivatives );
+		final int n = kernel.numDimensions();
+		final Interval kernelInterval = FFTMethods.paddingIntervalCentered( kernel, FinalDimensions.wrap( paddedDimensions ) );
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			min[ d ] = kernel.dimension( d ) / 2;
+			max[ d ] = min[ d ] + kernelInterval.dimension( d ) - 1;
+		}
+		final RandomAccessibleInterval< FloatType > kernelInput = Views.interval(
+				Views.extendPeriodic( Views.interval( Views.extendZero( kernel ), kernelInterval ) ),
+				new FinalInterval( min, max ) );
+		return FFT.realToComplex( kernelInput, fftFactory, service );
+	}
+
+	/**
+	 * Creates the LoG kernel with the specified sigmas, as an image centered
+	 * on its middle pixel.
+	 *
+	 * @param sigmaPixels
+	 *            the sigma of the LoG kernel in each dimension, in pixel
+	 *            units.
+	 * @return a new image containing the LoG kernel.
+	 */
+	public static ArrayImg< FloatType, FloatArray > createKernel( final double[] sigmaPixels )
+	{
+		final int n = sigmaPixels.length;
+		final double[][] gaussians = new double[ n ][];
+		final double[][] derivatives = new double[ n ][];
+		for ( int d = 0; d < n; d++ )
+		{
+			gaussians[ d ] = halfKernelGaussian( sigmaPixels[ d ] );
+			derivatives[ d ] = halfKernelSecondDerivative( sigmaPixels[ d ], gaussians[ d ] );
+		}
+		return createKernel( gaussians, derivatives );
+	}
+
+	private static ArrayImg< FloatType, FloatArray > createKernel( final double[][] gaussians, final double[][] derivatives )
+	{
+		final int n = gaussians.length;
+		final long[] dims = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			dims[ d ] = 2 * gaussians[ d ].length - 1;
+
+		final ArrayImg< FloatType, FloatArray > kernel = ArrayImgs.floats( dims );
+		final Cursor< FloatType > cursor = kernel.localizingCursor();
+		final int[] offset = new int[ n ];
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			for ( int d = 0; d < n; d++ )
+				offset[ d ] = Math.abs( cursor.getIntPosition( d ) - ( gaussians[ d ].length - 1 ) );
+
+			double val = 0.;
+			for ( int d = 0; d < n; d++ )
+			{
+				double term = derivatives[ d ][ offset[ d ] ];
+				for ( int e = 0; e < n; e++ )
+					if ( e != d )
+						term *= gaussians[ e ][ offset[ e ] ];
+				val += term;
+			}
+			cursor.get().setReal( val );
+		}
+		return kernel;
+	}
+
+	/**
+	 * Half of a normalized 1D Gaussian kernel, truncated at 3 sigma.
+	 */
+	private static double[] halfKernelGaussian( final double sigma )
+	{
+		final int size = Math.max( 2, ( int ) ( 3 * sigma + 0.5 ) + 1 );
+		final double[] kernel = new double[ size ];
+		final double s2 = sigma * sigma;
+		final double norm = 1. / Math.sqrt( 2. * Math.PI ) / sigma;
+		for ( int x = 0; x < size; x++ )
+			kernel[ x ] = norm * Math.exp( -x * x / ( 2. * s2 ) );
+		return kernel;
+	}
+
+	/**
+	 * Half of the negative second derivative of a normalized 1D Gaussian
+	 * kernel, over the same support as the Gaussian one.
+	 */
+	private static double[] halfKernelSecondDerivative( final double sigma, final double[] gaussian )
+	{
+		final double[] kernel = new double[ gaussian.length ];
+		final double s2 = sigma * sigma;
+		for ( int x = 0; x < kernel.length; x++ )
+			kernel[ x ] = ( 1. - x * x / s2 ) / s2 * gaussian[ x ];
+		return kernel;
+	}
+
+	/**
+	 * Key for the cached kernel FFTs: sigmas and padded image size.
+	 */
+	private static final class Key
+	{
+
+		private final double[] sigmas;
+
+		private final long[] dimensions;
+
+		private Key( final double[] sigmas, final long[] dimensions )
+		{
+			this.sigmas = sigmas.clone();
+			this.dimensions = dimensions;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * Arrays.hashCode( sigmas ) + Arrays.hashCode( dimensions );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key o = ( Key ) obj;
+			return Arrays.equals( sigmas, o.sigmas ) && Arrays.equals( dimensions, o.dimensions );
+		}
+	}
+}
@@ -0,0 +1,363 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MEMORY_BUDGET;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_DETECTION_TYPE;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_RADIUS;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MEMORY_BUDGET;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_RADIUS;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_ROI;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_SETUP_ID;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_THRESHOLD;
+import static org.mastodon.tracking.detection.DoGDetectorOp.MIN_SPOT_PIXEL_SIZE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mastodon.tracking.detection.DetectionCreatorFactory.DetectionCreator;
+import org.mastodon.tracking.detection.DoGDetectorOp.Frame;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
+
+import bdv.viewer.SourceAndConverter;
+import gnu.trove.list.array.TDoubleArrayList;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.convolution.Convolution;
+import net.imglib2.algorithm.convolution.kernel.Kernel1D;
+import net.imglib2.algorithm.convolution.kernel.SeparableKernelConvolution;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Multi-scale Difference of Gaussian detector.
+ * <p>
+ * Detects spots with radii between {@link DetectorKeys#KEY_RADIUS} and
+ * {@link DetectorKeys#KEY_MAX_RADIUS}, with 4 scales per octave. Each
+ * time-point is loaded once, and its scale-space is built incrementally: each
+ * Gaussian blur is computed from the previous one, and each DoG from two
+ * consecutive blurs. Only two blurs and three DoGs are kept in memory at any
+ * time. A peak is kept if it is a maximum in space and across the adjacent
+ * scales, and the detection gets the radius of the scale it was found in.
+ * <p>
+ * The incremental blurs are mirrored at the borders of the processed
+ * interval, so spots close to the ROI borders may be detected slightly
+ * differently than with the single-scale DoG detector.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@Plugin( type = DetectorOp.class )
+public class MultiScaleDoGDetectorOp
+		extends AbstractDetectorOp
+		implements DetectorOp, Benchmark
+{
+
+	@Parameter
+	private ThreadService threadService;
+
+	/**
+	 * Estimate of the memory used per pixel of a time-point: two Gaussian
+	 * blurs and three DoGs, in float images.
+	 */
+	private static final long BYTES_PER_PIXEL = 20l;
+
+	/**
+	 * The number of scales per octave.
+	 */
+	private static final int STEPS_PER_OCTAVE = 4;
+
+	/**
+	 * Minimal incremental sigma, in pixels. Below this value the blur is
+	 * practically a copy.
+	 */
+	private static final double MIN_SIGMA = 1e-3;
+
+	private long processingTime;
+
+	@Override
+	public void mutate1( final DetectionCreatorFactory detectionCreatorFactory, final List< SourceAndConverter< ? > > sources )
+	{
+		ok = false;
+		final long start = System.currentTimeMillis();
+
+		final StringBuilder str = new StringBuilder();
+		if ( !DetectionUtil.checkSettingsValidity( settings, str ) )
+		{
+			processingTime = System.currentTimeMillis() - start;
+			statusService.clearStatus();
+			errorMessage = str.toString();
+			return;
+		}
+
+		final int minTimepoint = ( int ) settings.get( KEY_MIN_TIMEPOINT );
+		final int maxTimepoint = ( int ) settings.get( KEY_MAX_TIMEPOINT );
+		final int setup = ( int ) settings.get( KEY_SETUP_ID );
+		final double radius = ( double ) settings.get( KEY_RADIUS );
+		final double maxRadius = ( null != settings.get( KEY_MAX_RADIUS ) )
+				? ( double ) settings.get( KEY_MAX_RADIUS )
+				: radius;
+		final double threshold = ( double ) settings.get( KEY_THRESHOLD );
+		final Interval roi = ( Interval ) settings.get( KEY_ROI );
+		final DetectionType detectionType = DetectionType.getOrDefault( ( String ) settings.get( KEY_DETECTION_TYPE ), DetectionType.MINIMA );
+		final long memoryBudget = settings.containsKey( KEY_MEMORY_BUDGET )
+				? ( long ) settings.get( KEY_MEMORY_BUDGET )
+				: DEFAULT_MEMORY_BUDGET;
+
+		/*
+		 * Radii of the scales, from the smallest to the largest.
+		 */
+
+		final double k = Math.pow( 2.0, 1.0 / STEPS_PER_OCTAVE );
+		final int nScales = 1 + ( int ) Math.floor( Math.log( maxRadius / radius ) / Math.log( k ) + 1e-9 );
+		final double[] radii = new double[ nScales ];
+		for ( int i = 0; i < nScales; i++ )
+			radii[ i ] = radius * Math.pow( k, i );
+
+		/*
+		 * Time-points are processed concurrently, as many as the memory budget
+		 * allows. The resolution level is the one of the smallest radius.
+		 */
+
+		final long framePixels = DetectionUtil.estimateNumPixels( sources, setup, minTimepoint, maxTimepoint, radius, MIN_SPOT_PIXEL_SIZE / 2. );
+		final int maxInFlight = TimepointScheduler.maxInFlight( memoryBudget, framePixels * BYTES_PER_PIXEL );
+		final boolean prefetch = maxInFlight > 1;
+		final AtomicInteger progress = new AtomicInteger( 0 );
+
+		statusService.showStatus( "Multi-scale DoG detection." );
+		final TimepointScheduler scheduler = new TimepointScheduler( maxInFlight, this, threadService.getExecutorService() );
+		final boolean completed = scheduler.run( minTimepoint, maxTimepoint,
+				tp -> DoGDetectorOp.load( sources, tp, setup, radius, roi, prefetch ),
+				( tp, frame ) -> {
+					process( frame, detectionCreatorFactory, sources, tp, setup, radii, k, threshold, detectionType, scheduler.getExecutorService() );
+					statusService.showProgress( progress.incrementAndGet(), maxTimepoint - minTimepoint + 1 );
+				} );
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		statusService.clearStatus();
+		if ( !completed )
+		{
+			// Canceled or interrupted: only some time-points were processed.
+			errorMessage = "Detection was canceled or interrupted.";
+			return;
+		}
+		ok = true;
+	}
+
+	/**
+	 * Processing stage: builds the scale-space of a time-point, detects its
+	 * extrema and adds the detections.
+	 */
+	private void process(
+			final Frame frame,
+			final DetectionCreatorFactory detectionCreatorFactory,
+			final List< SourceAndConverter< ? > > sources,
+			final int tp,
+			final int setup,
+			final double[] radii,
+			final double k,
+			final double threshold,
+			final DetectionType detectionType,
+			final ExecutorService service )
+	{
+		final int level = frame.level;
+		final RandomAccessibleInterval< ? > zeroMin = frame.zeroMin;
+		final Interval interval = frame.interval;
+
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final RandomAccessible< FloatType > source = DetectionUtil.asExtendedFloat( ( RandomAccessibleInterval ) zeroMin );
+
+		/*
+		 * Sigmas of the scales, in pixels. Like for the DogDetection, they
+		 * are not smaller than twice the assumed image sigma of 0.5 pixel.
+		 */
+
+		final int nDims = zeroMin.numDimensions();
+		final int nScales = radii.length;
+		final double[] pixelSize = DetectionUtil.getPixelSize( sources, tp, setup, level );
+		final double[][] sigmas = new double[ nScales + 1 ][ nDims ];
+		for ( int i = 0; i <= nScales; i++ )
+			for ( int d = 0; d < nDims; d++ )
+				sigmas[ i ][ d ] = Math.max( 2. * 0.5, radius( radii, k, i ) / Math.sqrt( nDims ) / pixelSize[ d ] );
+
+		final float normalization = ( float ) ( ( ( detectionType == DetectionType.MAXIMA ) ? 1.0 : -1.0 ) / ( k - 1.0 ) );
+
+		/*
+		 * Buffers. The blurs and the DoGs are recycled from scale to scale.
+		 */
+
+		final List< ArrayImg< FloatType, FloatArray > > blurImgs = new ArrayList<>( 2 );
+		final List< RandomAccessibleInterval< FloatType > > blurs = new ArrayList<>( 2 );
+		for ( int i = 0; i < 2; i++ )
+		{
+			final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( Intervals.dimensionsAsLongArray( interval ) );
+			blurImgs.add( img );
+			blurs.add( Views.translate( img, Intervals.minAsLongArray( interval ) ) );
+		}
+		final List< ArrayImg< FloatType, FloatArray > > dogImgs = new ArrayList<>( 3 );
+		final List< RandomAccessibleInterval< FloatType > > dogs = new ArrayList<>( 3 );
+		for ( int i = 0; i < 3; i++ )
+		{
+			final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( Intervals.dimensionsAsLongArray( interval ) );
+			dogImgs.add( img );
+			dogs.add( Views.translate( img, Intervals.minAsLongArray( interval ) ) );
+		}
+
+		/*
+		 * Build the scale-space. Once the DoG of a scale is computed, the
+		 * extrema of the previous scale can be found.
+		 */
+
+		final AffineTransform3D transform = DetectionUtil.getTransform( sources, tp, setup, level );
+		final TDoubleArrayList positions = new TDoubleArrayList();
+		final TDoubleArrayList detectionRadii = new TDoubleArrayList();
+		final TDoubleArrayList qualities = new TDoubleArrayList();
+
+		final double[] sigma = new double[ nDims ];
+		for ( int d = 0; d < nDims; d++ )
+			sigma[ d ] = Math.sqrt( Math.max( sigmas[ 0 ][ d ] * sigmas[ 0 ][ d ] - 0.25, MIN_SIGMA * MIN_SIGMA ) );
+		blur( source, blurs.get( 0 ), sigma, service );
+
+		for ( int i = 0; i < nScales; i++ )
+		{
+			if ( isCanceled() )
+				return;
+
+			final int previous = i % 2;
+			final int next = ( i + 1 ) % 2;
+			for ( int d = 0; d < nDims; d++ )
+				sigma[ d ] = Math.sqrt( Math.max( sigmas[ i + 1 ][ d ] * sigmas[ i + 1 ][ d ] - sigmas[ i ][ d ] * sigmas[ i ][ d ], MIN_SIGMA * MIN_SIGMA ) );
+			blur( Views.extendMirrorSingle( blurs.get( previous ) ), blurs.get( next ), sigma, service );
+
+			final float[] smaller = blurImgs.get( previous ).update( null ).getCurrentStorageArray();
+			final float[] larger = blurImgs.get( next ).update( null ).getCurrentStorageArray();
+			final float[] dog = dogImgs.get( i % 3 ).update( null ).getCurrentStorageArray();
+			for ( int j = 0; j < dog.length; j++ )
+				dog[ j ] = ( larger[ j ] - smaller[ j ] ) * normalization;
+
+			if ( i > 0 )
+				detect( dogs, i - 1, nScales, radii[ i - 1 ], threshold, transform, positions, detectionRadii, qualities, service );
+		}
+		if ( isCanceled() )
+			return;
+		detect( dogs, nScales - 1, nScales, radii[ nScales - 1 ], threshold, transform, positions, detectionRadii, qualities, service );
+
+		/*
+		 * Create detections of all scales, in one batch.
+		 */
+
+		final DetectionCreator detectionCreator;
+		synchronized ( detectionCreatorFactory )
+		{
+			// Factories are not required to be thread-safe.
+			detectionCreator = detectionCreatorFactory.create( tp );
+		}
+		detectionCreator.preAddition();
+		try
+		{
+			detectionCreator.createDetections( positions.toArray(), detectionRadii.toArray(), qualities.toArray(), qualities.size() );
+		}
+		finally
+		{
+			detectionCreator.postAddition();
+		}
+	}
+
+	/**
+	 * Finds the extrema of a scale, refines them and appends them to the
+	 * detection buffers. The DoGs of the scale and of its neighbors are taken
+	 * from the ring of 3 DoG buffers.
+	 */
+	private static void detect(
+			final List< RandomAccessibleInterval< FloatType > > dogs,
+			final int scale,
+			final int nScales,
+			final double radius,
+			final double threshold,
+			final AffineTransform3D transform,
+			final TDoubleArrayList positions,
+			final TDoubleArrayList radii,
+			final TDoubleArrayList qualities,
+			final ExecutorService service )
+	{
+		final RandomAccessibleInterval< FloatType > below = ( scale > 0 ) ? dogs.get( ( scale - 1 ) % 3 ) : null;
+		final RandomAccessibleInterval< FloatType > current = dogs.get( scale % 3 );
+		final RandomAccessibleInterval< FloatType > above = ( scale < nScales - 1 ) ? dogs.get( ( scale + 1 ) % 3 ) : null;
+
+		final PeakBuffer peaks = DetectionUtil.findScaleSpaceMaxima( below, current, above, threshold, service );
+		final int nPeaks = peaks.size();
+		final double[] refined = new double[ 3 * nPeaks ];
+		DetectionUtil.refinePeaks( peaks, current, transform, refined, service );
+
+		positions.add( refined );
+		qualities.add( peaks.getValues() );
+		for ( int i = 0; i < nPeaks; i++ )
+			radii.add( radius );
+	}
+
+	/**
+	 * Returns the radius of the specified scale. The scale after the last one
+	 * is the upper bound of the last DoG.
+	 */
+	private static double radius( final double[] radii, final double k, final int scale )
+	{
+		return ( scale < radii.length ) ? radii[ scale ] : radii[ radii.length - 1 ] * k;
+	}
+
+	/**
+	 * Separable Gaussian convolution of the source into the target.
+	 */
+	private static void blur( final RandomAccessible< FloatType > source, final RandomAccessibleInterval< FloatType > target, final double[] sigma, final ExecutorService service )
+	{
+		final Convolution< NumericType< ? > > convolution = SeparableKernelConvolution.convolution( Kernel1D.symmetric( Gauss3.halfkernels( sigma ) ) );
+		convolution.setExecutor( service );
+		convolution.process( source, target );
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+}
@@ -0,0 +1,227 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.Point;
+
+/**
+ * A growable buffer of peaks, stored in primitive arrays.
+ * <p>
+ * Each peak has integer coordinates and a value. Peaks are stored in two
+ * columns, one <code>long[]</code> array for the coordinates and one
+ * <code>double[]</code> array for the values, so that storing millions of
+ * candidate peaks does not create one object per peak.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PeakBuffer
+{
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private final int n;
+
+	/**
+	 * Peak coordinates, <code>n</code> per peak.
+	 */
+	private long[] positions;
+
+	private double[] values;
+
+	private int size;
+
+	/**
+	 * Creates an empty peak buffer.
+	 *
+	 * @param numDimensions
+	 *            the number of dimensions of the peaks.
+	 */
+	public PeakBuffer( final int numDimensions )
+	{
+		this( numDimensions, DEFAULT_CAPACITY );
+	}
+
+	/**
+	 * Creates an empty peak buffer.
+	 *
+	 * @param numDimensions
+	 *            the number of dimensions of the peaks.
+	 * @param initialCapacity
+	 *            the number of peaks the buffer can store before growing.
+	 */
+	public PeakBuffer( final int numDimensions, final int initialCapacity )
+	{
+		this.n = numDimensions;
+		this.positions = new long[ numDimensions * initialCapacity ];
+		this.values = new double[ initialCapacity ];
+		this.size = 0;
+	}
+
+	/**
+	 * Adds a peak to this buffer.
+	 *
+	 * @param position
+	 *            the peak coordinates. Copied.
+	 * @param value
+	 *            the peak value.
+	 */
+	public void add( final long[] position, final double value )
+	{
+		ensureCapacity( size + 1 );
+		System.arraycopy( position, 0, positions, n * size, n );
+		values[ size ] = value;
+		size++;
+	}
+
+	/**
+	 * Adds all the peaks of the specified buffer to this buffer.
+	 *
+	 * @param other
+	 *            the buffer to copy the peaks from. Must have the same number
+	 *            of dimensions.
+	 */
+	public void addAll( final PeakBuffer other )
+	{
+		ensureCapacity( size + other.size );
+		System.arraycopy( other.positions, 0, positions, n * size, n * other.size );
+		System.arraycopy( other.values, 0, values, size, other.size );
+		size += other.size;
+	}
+
+	/**
+	 * Returns the number of peaks in this buffer.
+	 *
+	 * @return the number of peaks.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the number of dimensions of the peaks.
+	 *
+	 * @return the number of dimensions.
+	 */
+	public int numDimensions()
+	{
+		return n;
+	}
+
+	/**
+	 * Returns a coordinate of a peak.
+	 *
+	 * @param i
+	 *            the peak index.
+	 * @param d
+	 *            the dimension.
+	 * @return the coordinate of the peak in this dimension.
+	 */
+	public long getLongPosition( final int i, final int d )
+	{
+		return positions[ n * i + d ];
+	}
+
+	/**
+	 * Returns the value of a peak.
+	 *
+	 * @param i
+	 *            the peak index.
+	 * @return the peak value.
+	 */
+	public double getValue( final int i )
+	{
+		return values[ i ];
+	}
+
+	/**
+	 * Returns the values of all the peaks, in a new array.
+	 *
+	 * @return a new array.
+	 */
+	public double[] getValues()
+	{
+		return Arrays.copyOf( values, size );
+	}
+
+	/**
+	 * Removes all the peaks of this buffer.
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * Returns a read-only list view of a range of peaks. The {@link Point}
+	 * objects are created when accessed, so that peaks can be processed in
+	 * chunks by methods taking a list of points, without creating one object
+	 * per peak for the whole buffer.
+	 *
+	 * @param from
+	 *            the index of the first peak, inclusive.
+	 * @param to
+	 *            the index of the last peak, exclusive.
+	 * @return a new list view.
+	 */
+	public List< Point > asPoints( final int from, final int to )
+	{
+		return new AbstractList< Point >()
+		{
+
+			@Override
+			public Point get( final int index )
+			{
+				final long[] position = new long[ n ];
+				System.arraycopy( positions, n * ( from + index ), position, 0, n );
+				return Point.wrap( position );
+			}
+
+			@Override
+			public int size()
+			{
+				return to - from;
+			}
+		};
+	}
+
+	private void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= values.length )
+			return;
+
+		final int newCapacity = Math.max( capacity, values.length + ( values.length >> 1 ) );
+		positions = Arrays.copyOf( positions, n * newCapacity );
+		values = Arrays.copyOf( values, newCapacity );
+	}
+}
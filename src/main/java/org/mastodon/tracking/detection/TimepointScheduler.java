@@ -0,0 +1,352 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.scijava.Cancelable;
+
+/**
+ * Processes a range of time-points concurrently.
+ * <p>
+ * Each time-point goes through two stages: a loading stage, where the image
+ * data is fetched, and a processing stage, where detections are computed and
+ * handed to the {@link DetectionCreatorFactory.DetectionCreator} of the
+ * time-point. Loading is done in time-point order by the calling thread, so
+ * that I/O for the next time-points overlaps with the processing of the
+ * current ones, which run on the executor service of the caller. The number
+ * of time-points that are loaded or being processed at the same time is
+ * bounded, so that memory use can be bounded.
+ * <p>
+ * The processing stages share the executor service returned by
+ * {@link #getExecutorService()} for their own multi-threaded work. It runs at
+ * most as many tasks at a time as there are processors, whatever the number
+ * of time-points in flight, so that the CPUs are not oversubscribed.
+ * <p>
+ * With at most 1 time-point in flight, time-points are loaded and processed
+ * one after the other, like in a plain loop.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class TimepointScheduler
+{
+
+	/**
+	 * Loading stage of a time-point.
+	 *
+	 * @param <T>
+	 *            the type of data loaded.
+	 */
+	public static interface Loader< T >
+	{
+		/**
+		 * Loads the data of the specified time-point.
+		 *
+		 * @param timepoint
+		 *            the time-point.
+		 * @return the data, or <code>null</code> if there is nothing to
+		 *         process in this time-point.
+		 */
+		public T load( int timepoint );
+	}
+
+	/**
+	 * Processing stage of a time-point.
+	 *
+	 * @param <T>
+	 *            the type of data loaded.
+	 */
+	public static interface Processor< T >
+	{
+		/**
+		 * Processes the data of the specified time-point.
+		 *
+		 * @param timepoint
+		 *            the time-point.
+		 * @param data
+		 *            the data returned by the loading stage, never
+		 *            <code>null</code>.
+		 */
+		public void process( int timepoint, T data );
+	}
+
+	private final int maxInFlight;
+
+	private final Cancelable cancelable;
+
+	private final ExecutorService service;
+
+	private final ExecutorService boundedService;
+
+	/**
+	 * Creates a new scheduler.
+	 *
+	 * @param maxInFlight
+	 *            the maximal number of time-points that are loaded or being
+	 *            processed at the same time.
+	 * @param cancelable
+	 *            the cancelable to query. No new time-point is started once it
+	 *            is canceled.
+	 * @param service
+	 *            the executor service to run the processing stages and their
+	 *            tasks on, typically the one of the <code>ThreadService</code>.
+	 */
+	public TimepointScheduler( final int maxInFlight, final Cancelable cancelable, final ExecutorService service )
+	{
+		this.maxInFlight = Math.max( 1, maxInFlight );
+		this.cancelable = cancelable;
+		this.service = service;
+		this.boundedService = new BoundedExecutorService( service, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Returns the executor service the processing stages should use for their
+	 * multi-threaded work. It is shared by all the time-points in flight, and
+	 * runs at most as many tasks at a time as there are processors.
+	 *
+	 * @return the executor service.
+	 */
+	public ExecutorService getExecutorService()
+	{
+		return boundedService;
+	}
+
+	/**
+	 * Loads and processes the specified time-points. Returns when all the
+	 * time-points started have been processed.
+	 * <p>
+	 * A processing stage can abort its time-point by throwing a
+	 * {@link CancellationException}, for instance when it is interrupted. The
+	 * other time-points in flight are then canceled, and the run is reported
+	 * as not completed.
+	 *
+	 * @param minTimepoint
+	 *            the first time-point, inclusive.
+	 * @param maxTimepoint
+	 *            the last time-point, inclusive.
+	 * @param loader
+	 *            the loading stage.
+	 * @param processor
+	 *            the processing stage.
+	 * @param <T>
+	 *            the type of data loaded.
+	 * @return <code>true</code> if all the time-points were processed,
+	 *         <code>false</code> if the run was canceled or interrupted.
+	 */
+	public < T > boolean run( final int minTimepoint, final int maxTimepoint, final Loader< T > loader, final Processor< T > processor )
+	{
+		final Semaphore inFlight = new Semaphore( maxInFlight );
+		final List< Future< ? > > futures = new ArrayList<>();
+		try
+		{
+			for ( int tp = minTimepoint; tp <= maxTimepoint; tp++ )
+			{
+				inFlight.acquire();
+				if ( cancelable.isCanceled() )
+				{
+					inFlight.release();
+					break;
+				}
+
+				final int timepoint = tp;
+				final T data = loader.load( timepoint );
+				if ( null == data )
+				{
+					inFlight.release();
+					continue;
+				}
+
+				futures.add( service.submit( () -> {
+					try
+					{
+						if ( !cancelable.isCanceled() )
+							processor.process( timepoint, data );
+					}
+					finally
+					{
+						inFlight.release();
+					}
+					return null;
+				} ) );
+
+				// Fail early.
+				for ( final Future< ? > future : futures )
+					if ( future.isDone() )
+						future.get();
+			}
+
+			for ( final Future< ? > future : futures )
+				future.get();
+			return !cancelable.isCanceled();
+		}
+		catch ( final InterruptedException e )
+		{
+			for ( final Future< ? > future : futures )
+				future.cancel( true );
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			Throwable cause = e.getCause();
+			while ( cause instanceof ExecutionException && null != cause.getCause() )
+				cause = cause.getCause();
+			if ( cause instanceof CancellationException )
+			{
+				for ( final Future< ? > future : futures )
+					future.cancel( true );
+				return false;
+			}
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			throw new RuntimeException( cause );
+		}
+	}
+
+	/**
+	 * Returns the number of time-points that can be in flight for the
+	 * specified memory budget.
+	 *
+	 * @param memoryBudget
+	 *            the memory budget, in bytes. If 0 or less, half the memory
+	 *            currently available to the JVM is used.
+	 * @param bytesPerTimepoint
+	 *            an estimate of the memory needed to process one time-point,
+	 *            in bytes.
+	 * @return the number of time-points, at least 1 and at most the number
+	 *         of processors plus 1.
+	 */
+	public static int maxInFlight( final long memoryBudget, final long bytesPerTimepoint )
+	{
+		final long budget;
+		if ( memoryBudget > 0 )
+		{
+			budget = memoryBudget;
+		}
+		else
+		{
+			final Runtime runtime = Runtime.getRuntime();
+			final long used = runtime.totalMemory() - runtime.freeMemory();
+			budget = ( runtime.maxMemory() - used ) / 2;
+		}
+		final long n = budget / Math.max( 1l, bytesPerTimepoint );
+		return ( int ) Math.max( 1l, Math.min( n, Runtime.getRuntime().availableProcessors() + 1l ) );
+	}
+
+	/**
+	 * A view of an executor service that runs at most a fixed number of tasks
+	 * at a time. When all permits are taken, submitted tasks run in the
+	 * submitting thread, so that tasks that wait for their own sub-tasks
+	 * cannot deadlock.
+	 */
+	private static final class BoundedExecutorService extends AbstractExecutorService
+	{
+
+		private final ExecutorService delegate;
+
+		private final Semaphore permits;
+
+		private BoundedExecutorService( final ExecutorService delegate, final int nThreads )
+		{
+			this.delegate = delegate;
+			this.permits = new Semaphore( Math.max( 1, nThreads ) );
+		}
+
+		@Override
+		public void execute( final Runnable command )
+		{
+			if ( !permits.tryAcquire() )
+			{
+				command.run();
+				return;
+			}
+			try
+			{
+				delegate.execute( () -> {
+					try
+					{
+						command.run();
+					}
+					finally
+					{
+						permits.release();
+					}
+				} );
+			}
+			catch ( final RuntimeException e )
+			{
+				permits.release();
+				throw e;
+			}
+		}
+
+		/*
+		 * The life-cycle is the one of the delegate service.
+		 */
+
+		@Override
+		public void shutdown()
+		{}
+
+		@Override
+		public List< Runnable > shutdownNow()
+		{
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown()
+		{
+			return delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated()
+		{
+			return delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination( final long timeout, final TimeUnit unit ) throws InterruptedException
+		{
+			return delegate.awaitTermination( timeout, unit );
+		}
+	}
+}
@@ -28,6 +28,9 @@
  */
 package org.mastodon.tracking.linking;
 
+import java.util.Iterator;
+import java.util.List;
+
 public interface EdgeCreator< V >
 {
 
@@ -44,4 +47,30 @@ public interface EdgeCreator< V >
 	public void postAddition();
 
 	public void createEdge( V source, V target, double edgeCost );
+
+	/**
+	 * Creates several edges at once. The edge at index <code>i</code> links
+	 * the source at index <code>i</code> to the target at index
+	 * <code>i</code>. Like {@link #createEdge(Object, Object, double)}, this
+	 * method must be called between {@link #preAddition()} and
+	 * {@link #postAddition()}.
+	 * <p>
+	 * The default implementation calls
+	 * {@link #createEdge(Object, Object, double)} for each edge.
+	 *
+	 * @param sources
+	 *            the edge sources.
+	 * @param targets
+	 *            the edge targets.
+	 * @param edgeCosts
+	 *            the edge costs.
+	 */
+	public default void createEdges( final List< V > sources, final List< V > targets, final double[] edgeCosts )
+	{
+		final Iterator< V > sit = sources.iterator();
+		final Iterator< V > tit = targets.iterator();
+		int i = 0;
+		while ( sit.hasNext() )
+			createEdge( sit.next(), tit.next(), edgeCosts[ i++ ] );
+	}
 }
@@ -33,6 +33,7 @@ import java.util.Map;
 
 import org.mastodon.feature.FeatureProjectionKey;
 import org.mastodon.tracking.detection.DetectorKeys;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPSolverType;
 
 public class LinkerKeys
 {
@@ -237,6 +238,95 @@ public class LinkerKeys
 	 */
 	public static final boolean DEFAULT_DO_LINK_SELECTION = false;
 
+	/**
+	 * Key for the parameter that specifies whether frame-to-frame linking
+	 * should be done in two phases. If <code>true</code>, the cost matrices of
+	 * all frame pairs are built and solved first, without modifying the graph.
+	 * The resulting edges are then added in a single write-locked pass. If
+	 * <code>false</code>, the edges of a frame pair are added as soon as it is
+	 * solved. Expected values are {@link Boolean}s.
+	 */
+	public static final String KEY_BATCH_EDGE_CREATION = "BATCH_EDGE_CREATION";
+
+	/**
+	 * Default value for the {@link #KEY_BATCH_EDGE_CREATION} parameter.
+	 */
+	public static final boolean DEFAULT_BATCH_EDGE_CREATION = false;
+
+	/**
+	 * Key for the parameter that specifies whether the LAP linkers split each
+	 * assignment problem into the connected components of its candidate
+	 * graph, and solve these components concurrently. The resulting
+	 * assignment has the same total cost as when solving the whole problem at
+	 * once. Expected values are {@link Boolean}s.
+	 */
+	public static final String KEY_SOLVE_BY_COMPONENTS = "SOLVE_BY_COMPONENTS";
+
+	/**
+	 * Default value for the {@link #KEY_SOLVE_BY_COMPONENTS} parameter.
+	 */
+	public static final boolean DEFAULT_SOLVE_BY_COMPONENTS = false;
+
+	/**
+	 * Key for the parameter that specifies the solver used by the LAP linkers
+	 * for assignment problems. Expected values are the names of the
+	 * {@link LAPSolverType} constants, as {@link String}s.
+	 */
+	public static final String KEY_LAP_SOLVER = "LAP_SOLVER";
+
+	/**
+	 * Default value for the {@link #KEY_LAP_SOLVER} parameter.
+	 */
+	public static final String DEFAULT_LAP_SOLVER = LAPSolverType.AUTO.name();
+
+	/**
+	 * Key for the parameter that specifies the maximal gap between the total
+	 * cost of an assignment found by an approximate LAP solver and the optimal
+	 * total cost. Only used by the {@link LAPSolverType#AUCTION} solver.
+	 * Expected values are strictly positive {@link Double}s.
+	 */
+	public static final String KEY_LAP_SOLVER_TOLERANCE = "LAP_SOLVER_TOLERANCE";
+
+	/**
+	 * Default value for the {@link #KEY_LAP_SOLVER_TOLERANCE} parameter.
+	 */
+	public static final double DEFAULT_LAP_SOLVER_TOLERANCE = 1e-3;
+
+	/**
+	 * Key for the parameter that specifies whether the frame-to-frame linkers
+	 * warm-start each assignment problem from the dual prices of the previous
+	 * frame pair. This saves augmentations, and pays off when objects move by
+	 * a sizeable fraction of their spacing between frames. When they move
+	 * much less, the problems are easy and cold starts are faster. Frame pairs
+	 * are solved one after the other, and the {@link LAPSolverType#AUCTION}
+	 * solver is not used. The resulting assignments have the same total cost.
+	 * Expected values are {@link Boolean}s.
+	 */
+	public static final String KEY_WARM_START = "WARM_START";
+
+	/**
+	 * Default value for the {@link #KEY_WARM_START} parameter.
+	 */
+	public static final boolean DEFAULT_WARM_START = false;
+
+	/**
+	 * Key for the parameter that specifies the Mahalanobis gate of the Kalman
+	 * linker. A measurement is a linking candidate for a Kalman filter only if
+	 * its squared Mahalanobis distance to the predicted position, computed
+	 * with the innovation covariance of the filter, is below this value. The
+	 * gate is applied on top of the {@link #KEY_KALMAN_SEARCH_RADIUS} sphere.
+	 * Non-positive values disable the gate. A typical value is 11.34, which
+	 * keeps 99% of the measurements expected in 3D. Expected values are
+	 * {@link Double}s.
+	 */
+	public static final String KEY_KALMAN_MAHALANOBIS_GATE = "KALMAN_MAHALANOBIS_GATE";
+
+	/**
+	 * Default value for the {@link #KEY_KALMAN_MAHALANOBIS_GATE} parameter.
+	 * The gate is disabled.
+	 */
+	public static final double DEFAULT_KALMAN_MAHALANOBIS_GATE = 0.;
+
 	private LinkerKeys()
 	{}
 }
@@ -86,6 +86,9 @@ import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableModel;
 
+import org.mastodon.RefPool;
+import org.mastodon.collection.RefCollection;
+import org.mastodon.collection.ref.RefPoolBackedRefCollection;
 import org.mastodon.feature.Feature;
 import org.mastodon.feature.FeatureModel;
 import org.mastodon.feature.FeatureProjection;
@@ -93,6 +96,7 @@ import org.mastodon.feature.FeatureProjectionKey;
 import org.mastodon.feature.FeatureSpec;
 import org.mastodon.tracking.linking.sequential.lap.costfunction.CostFunction;
 import org.mastodon.tracking.linking.sequential.lap.costfunction.FeaturePenaltiesCostFunction;
+import org.mastodon.tracking.linking.sequential.lap.costfunction.PreparedFeaturePenaltiesCostFunction;
 import org.mastodon.tracking.linking.sequential.lap.costfunction.SquareDistCostFunction;
 
 import net.imglib2.RealLocalizable;
@@ -116,6 +120,35 @@ public class LinkingUtils
 		return costFunction;
 	}
 
+	/**
+	 * Returns a cost function for the specified feature penalties, prepared
+	 * for the specified vertices. If the penalty map is not empty, the
+	 * penalized feature values of the vertices are copied in primitive arrays
+	 * indexed by pool index, so that the link costs can be computed without
+	 * map lookups.
+	 *
+	 * @param featurePenalties
+	 *            the feature penalty map. Can be <code>null</code>.
+	 * @param featureModel
+	 *            the feature model.
+	 * @param pool
+	 *            the pool of the vertices.
+	 * @param vertices
+	 *            the vertices that will be passed to the cost function.
+	 * @param <V>
+	 *            the type of vertices.
+	 * @return a new cost function.
+	 */
+	public static final < V extends RealLocalizable > CostFunction< V, V > getCostFunctionFor( final Map< FeatureProjectionKey, Double > featurePenalties, final FeatureModel featureModel, final RefPool< V > pool, final Iterable< V > vertices )
+	{
+		if ( null == featurePenalties || featurePenalties.isEmpty() )
+			return new SquareDistCostFunction<>();
+
+		final PreparedFeaturePenaltiesCostFunction< V > costFunction = new PreparedFeaturePenaltiesCostFunction<>( featurePenalties, featureModel, pool );
+		costFunction.prepare( vertices );
+		return costFunction;
+	}
+
 	/**
 	 * Returns a new settings map filled with default values suitable for the
 	 * LAP trackers.
@@ -273,6 +306,59 @@ public class LinkingUtils
 		return true;
 	}
 
+	/**
+	 * Returns the {@link RefPool} backing the specified collection, if any.
+	 *
+	 * @param collection
+	 *            the collection.
+	 * @param <O>
+	 *            the type of objects in the collection.
+	 * @return the pool of the collection, or <code>null</code> if it is not
+	 *         backed by a pool.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static final < O > RefPool< O > tryGetRefPool( final RefCollection< O > collection )
+	{
+		return ( collection instanceof RefPoolBackedRefCollection )
+				? ( ( RefPoolBackedRefCollection< O > ) collection ).getRefPool()
+				: null;
+	}
+
+	/**
+	 * Check that a parameter of a settings map is the name of a constant of
+	 * the specified enum.
+	 *
+	 * @param map
+	 *            the map to inspect.
+	 * @param key
+	 *            the key for the parameter to inspect.
+	 * @param enumClass
+	 *            the enum the parameter should name a constant of.
+	 * @param errorHolder
+	 *            a {@link StringBuilder} that will be appended with an error
+	 *            message.
+	 * @param <E>
+	 *            the enum type.
+	 * @return <code>true</code> if the parameter is the name of a constant of
+	 *         the enum.
+	 */
+	public static final < E extends Enum< E > > boolean checkEnumParameter( final Map< String, Object > map, final String key, final Class< E > enumClass, final StringBuilder errorHolder )
+	{
+		if ( !checkParameter( map, key, String.class, errorHolder ) )
+			return false;
+
+		final String name = ( String ) map.get( key );
+		for ( final E constant : enumClass.getEnumConstants() )
+			if ( constant.name().equals( name ) )
+				return true;
+
+		final StringBuilder names = new StringBuilder();
+		for ( final E constant : enumClass.getEnumConstants() )
+			names.append( names.length() == 0 ? "" : ", " ).append( constant.name() );
+		errorHolder.append( "Value for parameter " + key + " is not valid. Expected one of " + names + ", got " + name + ".\n" );
+		return false;
+	}
+
 	/**
 	 * Check the validity of a feature penalty map in a settings map.
 	 * <p>
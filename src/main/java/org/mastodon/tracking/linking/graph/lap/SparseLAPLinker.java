@@ -34,18 +34,24 @@ import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_GAP_CLOSING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_MERGING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_SPLITTING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_BATCH_EDGE_CREATION;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_BLOCKING_VALUE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_CUTOFF_PERCENTILE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_DO_LINK_SELECTION;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER_TOLERANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SOLVE_BY_COMPONENTS;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_WARM_START;
+import static org.mastodon.tracking.linking.LinkingUtils.checkEnumParameter;
 import static org.mastodon.tracking.linking.LinkingUtils.checkFeatureMap;
 import static org.mastodon.tracking.linking.LinkingUtils.checkMapKeys;
 import static org.mastodon.tracking.linking.LinkingUtils.checkParameter;
@@ -63,6 +69,7 @@ import org.mastodon.spatial.SpatioTemporalIndex;
 import org.mastodon.tracking.linking.graph.AbstractGraphParticleLinkerOp;
 import org.mastodon.tracking.linking.graph.GraphParticleLinkerOp;
 import org.mastodon.tracking.linking.sequential.lap.SparseLAPFrameToFrameLinker;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPSolverType;
 import org.scijava.Cancelable;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
@@ -82,6 +89,8 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 	@Parameter( type = ItemIO.OUTPUT )
 	private long processingTime;
 
+	private double optimalityGap;
+
 	private Cancelable currentCancelable;
 
 	/*
@@ -152,6 +161,16 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 		ftfSettings.put( KEY_LINKING_MAX_DISTANCE, settings.get( KEY_LINKING_MAX_DISTANCE ) );
 		ftfSettings.put( KEY_ALTERNATIVE_LINKING_COST_FACTOR, settings.get( KEY_ALTERNATIVE_LINKING_COST_FACTOR ) );
 		ftfSettings.put( KEY_LINKING_FEATURE_PENALTIES, settings.get( KEY_LINKING_FEATURE_PENALTIES ) );
+		if ( settings.containsKey( KEY_BATCH_EDGE_CREATION ) )
+			ftfSettings.put( KEY_BATCH_EDGE_CREATION, settings.get( KEY_BATCH_EDGE_CREATION ) );
+		if ( settings.containsKey( KEY_SOLVE_BY_COMPONENTS ) )
+			ftfSettings.put( KEY_SOLVE_BY_COMPONENTS, settings.get( KEY_SOLVE_BY_COMPONENTS ) );
+		if ( settings.containsKey( KEY_LAP_SOLVER ) )
+			ftfSettings.put( KEY_LAP_SOLVER, settings.get( KEY_LAP_SOLVER ) );
+		if ( settings.containsKey( KEY_LAP_SOLVER_TOLERANCE ) )
+			ftfSettings.put( KEY_LAP_SOLVER_TOLERANCE, settings.get( KEY_LAP_SOLVER_TOLERANCE ) );
+		if ( settings.containsKey( KEY_WARM_START ) )
+			ftfSettings.put( KEY_WARM_START, settings.get( KEY_WARM_START ) );
 
 		@SuppressWarnings( "unchecked" )
 		final SparseLAPFrameToFrameLinker< V > frameToFrameLinker = ( SparseLAPFrameToFrameLinker< V > ) Inplaces.binary1( ops(),
@@ -166,6 +185,7 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 			errorMessage = frameToFrameLinker.getErrorMessage();
 			return;
 		}
+		optimalityGap = frameToFrameLinker.getOptimalityGap();
 
 		/*
 		 * 2. Gap-closing, merging and splitting.
@@ -189,6 +209,12 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 
 		slSettings.put( KEY_ALTERNATIVE_LINKING_COST_FACTOR, settings.get( KEY_ALTERNATIVE_LINKING_COST_FACTOR ) );
 		slSettings.put( KEY_CUTOFF_PERCENTILE, settings.get( KEY_CUTOFF_PERCENTILE ) );
+		if ( settings.containsKey( KEY_SOLVE_BY_COMPONENTS ) )
+			slSettings.put( KEY_SOLVE_BY_COMPONENTS, settings.get( KEY_SOLVE_BY_COMPONENTS ) );
+		if ( settings.containsKey( KEY_LAP_SOLVER ) )
+			slSettings.put( KEY_LAP_SOLVER, settings.get( KEY_LAP_SOLVER ) );
+		if ( settings.containsKey( KEY_LAP_SOLVER_TOLERANCE ) )
+			slSettings.put( KEY_LAP_SOLVER_TOLERANCE, settings.get( KEY_LAP_SOLVER_TOLERANCE ) );
 
 		// Solve.
 
@@ -205,6 +231,7 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 				errorMessage = segmentLinker.getErrorMessage();
 				return;
 			}
+			optimalityGap += segmentLinker.getOptimalityGap();
 
 		}
 
@@ -212,6 +239,8 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
 		statusService.clearStatus();
+		if ( optimalityGap > 0 && null != logger )
+			logger.info( String.format( "Optimality gap of the approximate LAP solver: %g.\n", optimalityGap ) );
 		ok = true;
 	}
 
@@ -245,6 +274,16 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 		// Others
 		ok = ok & checkParameter( settings, KEY_CUTOFF_PERCENTILE, Double.class, str );
 		ok = ok & checkParameter( settings, KEY_ALTERNATIVE_LINKING_COST_FACTOR, Double.class, str );
+		if ( settings.containsKey( KEY_BATCH_EDGE_CREATION ) )
+			ok = ok & checkParameter( settings, KEY_BATCH_EDGE_CREATION, Boolean.class, str );
+		if ( settings.containsKey( KEY_SOLVE_BY_COMPONENTS ) )
+			ok = ok & checkParameter( settings, KEY_SOLVE_BY_COMPONENTS, Boolean.class, str );
+		if ( settings.containsKey( KEY_LAP_SOLVER ) )
+			ok = ok & checkEnumParameter( settings, KEY_LAP_SOLVER, LAPSolverType.class, str );
+		if ( settings.containsKey( KEY_LAP_SOLVER_TOLERANCE ) )
+			ok = ok & checkParameter( settings, KEY_LAP_SOLVER_TOLERANCE, Double.class, str );
+		if ( settings.containsKey( KEY_WARM_START ) )
+			ok = ok & checkParameter( settings, KEY_WARM_START, Boolean.class, str );
 
 		// Check keys
 		final List< String > mandatoryKeys = new ArrayList< String >();
@@ -267,6 +306,11 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 		optionalKeys.add( KEY_MERGING_FEATURE_PENALTIES );
 		optionalKeys.add( KEY_BLOCKING_VALUE );
 		optionalKeys.add( KEY_DO_LINK_SELECTION );
+		optionalKeys.add( KEY_BATCH_EDGE_CREATION );
+		optionalKeys.add( KEY_SOLVE_BY_COMPONENTS );
+		optionalKeys.add( KEY_LAP_SOLVER );
+		optionalKeys.add( KEY_LAP_SOLVER_TOLERANCE );
+		optionalKeys.add( KEY_WARM_START );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, str );
 
 		// Check min & max time-point
@@ -291,6 +335,19 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 		return processingTime;
 	}
 
+	/**
+	 * Returns the sum of the optimality gaps of the LAP solver for the frame
+	 * to frame linking and the segment linking steps. This is 0 for exact
+	 * solvers, and may be positive for the {@link LAPSolverType#AUCTION}
+	 * solver.
+	 *
+	 * @return the optimality gap.
+	 */
+	public double getOptimalityGap()
+	{
+		return optimalityGap;
+	}
+
 	@Override
 	public boolean isSuccessful()
 	{
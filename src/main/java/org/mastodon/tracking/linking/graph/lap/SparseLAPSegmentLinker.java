@@ -28,18 +28,26 @@
  */
 package org.mastodon.tracking.linking.graph.lap;
 
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_LAP_SOLVER_TOLERANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_SOLVE_BY_COMPONENTS;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_GAP_CLOSING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_MERGING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_SPLITTING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER_TOLERANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SOLVE_BY_COMPONENTS;
+import static org.mastodon.tracking.linking.LinkingUtils.checkEnumParameter;
 import static org.mastodon.tracking.linking.LinkingUtils.checkFeatureMap;
 import static org.mastodon.tracking.linking.LinkingUtils.checkParameter;
 
 import java.util.Map;
 
+import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefDoubleMap;
+import org.mastodon.collection.RefList;
 import org.mastodon.collection.RefRefMap;
 import org.mastodon.graph.Edge;
 import org.mastodon.graph.ReadOnlyGraph;
@@ -49,6 +57,7 @@ import org.mastodon.spatial.SpatioTemporalIndex;
 import org.mastodon.tracking.linking.graph.AbstractGraphParticleLinkerOp;
 import org.mastodon.tracking.linking.sequential.lap.costmatrix.JaqamanSegmentCostMatrixCreator;
 import org.mastodon.tracking.linking.sequential.lap.linker.JaqamanLinker;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPSolverType;
 import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
 import org.scijava.plugin.Plugin;
 
@@ -102,6 +111,8 @@ public class SparseLAPSegmentLinker< V extends Vertex< E > & HasTimepoint & Real
 
 	private long processingTime;
 
+	private double optimalityGap;
+
 	@Override
 	public void mutate1( final ReadOnlyGraph< V, E > graph, final SpatioTemporalIndex< V > spots )
 	{
@@ -143,11 +154,17 @@ public class SparseLAPSegmentLinker< V extends Vertex< E > & HasTimepoint & Real
 				( JaqamanSegmentCostMatrixCreator< V, E > ) Functions.nullary( ops(), JaqamanSegmentCostMatrixCreator.class, SparseCostMatrix.class,
 						graph, featureModel, settings, spotComparator );
 		final JaqamanLinker< V, V > linker = new JaqamanLinker<>( costMatrixCreator, graph.vertices(), graph.vertices() );
+		final Object componentsObj = settings.get( KEY_SOLVE_BY_COMPONENTS );
+		linker.setSolveByComponents( ( null == componentsObj ) ? DEFAULT_SOLVE_BY_COMPONENTS : ( Boolean ) componentsObj );
+		final Object toleranceObj = settings.get( KEY_LAP_SOLVER_TOLERANCE );
+		linker.setSolver( LAPSolverType.getOrDefault( ( String ) settings.get( KEY_LAP_SOLVER ), LAPSolverType.AUTO ),
+				( null == toleranceObj ) ? DEFAULT_LAP_SOLVER_TOLERANCE : ( Double ) toleranceObj );
 		if ( !linker.checkInput() || !linker.process() )
 		{
 			errorMessage = linker.getErrorMessage();
 			return;
 		}
+		optimalityGap = linker.getOptimalityGap();
 
 		/*
 		 * Create links in graph.
@@ -158,18 +175,24 @@ public class SparseLAPSegmentLinker< V extends Vertex< E > & HasTimepoint & Real
 		final RefRefMap< V, V > assignment = linker.getResult();
 		final RefDoubleMap< V > assignmentCosts = linker.getAssignmentCosts();
 
+		// Collect the edges before taking the graph lock.
+		final RefList< V > sources = RefCollections.createRefList( graph.vertices(), assignment.size() );
+		final RefList< V > targets = RefCollections.createRefList( graph.vertices(), assignment.size() );
+		final double[] costs = new double[ assignment.size() ];
+		final V vref = graph.vertexRef();
+		int i = 0;
+		for ( final V source : assignment.keySet() )
+		{
+			sources.add( source );
+			targets.add( assignment.get( source, vref ) );
+			costs[ i++ ] = assignmentCosts.get( source );
+		}
+		graph.releaseRef( vref );
+
 		edgeCreator.preAddition();
 		try
 		{
-
-			final V vref = graph.vertexRef();
-			for ( final V source : assignment.keySet() )
-			{
-				final V target = assignment.get( source, vref );
-				final double cost = assignmentCosts.get( source );
-				edgeCreator.createEdge( source, target, cost );
-			}
-			graph.releaseRef( vref );
+			edgeCreator.createEdges( sources, targets, costs );
 		}
 		catch ( final Exception e )
 		{
@@ -198,6 +221,19 @@ public class SparseLAPSegmentLinker< V extends Vertex< E > & HasTimepoint & Real
 		return processingTime;
 	}
 
+	/**
+	 * Returns the optimality gap of the LAP solver. This is 0 for exact
+	 * solvers, and may be positive for the {@link LAPSolverType#AUCTION}
+	 * solver.
+	 *
+	 * @return the optimality gap.
+	 * @see JaqamanLinker#getOptimalityGap()
+	 */
+	public double getOptimalityGap()
+	{
+		return optimalityGap;
+	}
+
 	private static final boolean checkSettingsValidity( final Map< String, Object > settings, final StringBuilder str )
 	{
 		if ( null == settings )
@@ -221,6 +257,13 @@ public class SparseLAPSegmentLinker< V extends Vertex< E > & HasTimepoint & Real
 		ok = ok & checkParameter( settings, KEY_ALLOW_TRACK_SPLITTING, Boolean.class, str );
 		// Merging
 		ok = ok & checkParameter( settings, KEY_ALLOW_TRACK_MERGING, Boolean.class, str );
+		// Solver
+		if ( settings.containsKey( KEY_SOLVE_BY_COMPONENTS ) )
+			ok = ok & checkParameter( settings, KEY_SOLVE_BY_COMPONENTS, Boolean.class, str );
+		if ( settings.containsKey( KEY_LAP_SOLVER ) )
+			ok = ok & checkEnumParameter( settings, KEY_LAP_SOLVER, LAPSolverType.class, str );
+		if ( settings.containsKey( KEY_LAP_SOLVER_TOLERANCE ) )
+			ok = ok & checkParameter( settings, KEY_LAP_SOLVER_TOLERANCE, Double.class, str );
 		return ok;
 	}
 
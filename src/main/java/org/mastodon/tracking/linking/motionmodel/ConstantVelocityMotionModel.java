@@ -48,6 +48,8 @@ public class ConstantVelocityMotionModel implements MotionModel
 
 	private final double[] pos = new double[ 3 ];
 
+	private final double[] predicted = new double[ 6 ];
+
 	public ConstantVelocityMotionModel( final double positionProcessStd, final double velocityProcessStd, final double positionMeasurementStd )
 	{
 		this.positionProcessStd = positionProcessStd;
@@ -90,7 +92,7 @@ public class ConstantVelocityMotionModel implements MotionModel
 		if (null == kalmanFilter)
 			return current;
 
-		current.setPosition( kalmanFilter.predict() );
+		current.setPosition( kalmanFilter.predict( predicted ) );
 		return current;
 	}
 
@@ -28,11 +28,15 @@
  */
 package org.mastodon.tracking.linking.sequential.kalman;
 
-import Jama.Matrix;
-
 /**
  * A Kalman filter that deals with a single particle motion in 3D with a
  * constant velocity vector.
+ * <p>
+ * The state, covariance and scratch matrices are stored in pre-allocated
+ * primitive arrays (row-major for matrices), and the structure of the
+ * evolution and measurement matrices is exploited, so that the prediction and
+ * update steps do not allocate any object. The 3×3 innovation covariance is
+ * inverted in closed form.
  * 
  * @author Jean-Yves Tinevez - 2014
  * 
@@ -40,45 +44,66 @@ import Jama.Matrix;
 public class CVMKalmanFilter
 {
 
-	/**
-	 * The evolution matrix, or state transition matrix. In our case, it is the
-	 * matrix that links position evolution and velocity through
-	 * <code><b>x</b>(k+1) = <b>x</b>(k) + <b>v</b> × dt</code>. We assume
-	 * <code><b>v</b></code> is constant and measured in unit of frames, so
-	 * <code>dt = 1</code>.
+	/*
+	 * The evolution matrix, or state transition matrix, is not stored. In our
+	 * case, it is the matrix that links position evolution and velocity
+	 * through <code><b>x</b>(k+1) = <b>x</b>(k) + <b>v</b> × dt</code>. We
+	 * assume <code><b>v</b></code> is constant and measured in unit of
+	 * frames, so <code>dt = 1</code>. It reads <code>A = [ I I ; 0 I ]</code>.
+	 *
+	 * The measurement matrix is not stored either, and reads
+	 * <code>H = [ I 0 ]</code>.
 	 */
-	private final Matrix A;
 
 	/**
 	 * The <i>a posteriori</i> error covariance matrix, measure the accuracy of
-	 * the state estimate.
+	 * the state estimate. 6×6, row-major.
+	 * <p>
+	 * The state, prediction, covariance and occlusion count are
+	 * package-private so that {@link KalmanStatePool} can load and store
+	 * states in this filter.
 	 */
-	private Matrix P;
+	final double[] P = new double[ 36 ];
 
 	/**
-	 * Covariance matrix of the process noise. Determine how noisy the process
-	 * is.
+	 * Variance of the process noise on position. The process noise
+	 * covariance matrix is diagonal. Determine how noisy the process is.
 	 */
-	private final Matrix Q;
+	private final double qPosition;
 
 	/**
-	 * Covariance matrix of the observation noise. Determine how noisy our
-	 * measurements are.
+	 * Variance of the process noise on velocity.
 	 */
-	private final Matrix R;
+	private final double qVelocity;
 
-	/** Current state. */
-	private Matrix X;
+	/**
+	 * Variance of the observation noise. The observation covariance matrix is
+	 * diagonal. Determine how noisy our measurements are.
+	 */
+	private final double r;
 
-	private final Matrix H;
+	/** Current state. */
+	final double[] X = new double[ 6 ];
 
 	/** Prediction. */
-	private Matrix Xp;
+	final double[] Xp = new double[ 6 ];
+
+	/** Scratch: inverse of the innovation covariance. 3×3, row-major. */
+	final double[] Sinv = new double[ 9 ];
+
+	/** Scratch: Kalman gain. 6×3, row-major. */
+	private final double[] K = new double[ 18 ];
+
+	/** Scratch: copy of the first 3 rows of the covariance matrix. */
+	private final double[] PH = new double[ 18 ];
+
+	/** Scratch: innovation. */
+	private final double[] Y = new double[ 3 ];
 
 	/**
 	 * Number of occlusions (no measurements) that happened so far.
 	 */
-	private int nOcclusion;
+	int nOcclusion;
 
 	/**
 	 * Initialize a new Kalman filter with the specified initial state.
@@ -110,30 +135,18 @@ public class CVMKalmanFilter
 	public CVMKalmanFilter( final double[] X0, final double initStateCovariance, final double positionProcessStd, final double velocityProcessStd, final double positionMeasurementStd )
 	{
 		// Initial state
-		X = new Matrix( X0, 6 );
-
-		// Evolution matrix
-		A = Matrix.identity( 6, 6 );
-		for ( int i = 0; i < 3; i++ )
-		{
-			A.set( i, 3 + i, 1 );
-		}
-
-		// Measurement matrix
-		H = Matrix.identity( 3, 6 );
+		System.arraycopy( X0, 0, X, 0, 6 );
 
 		// State covariance
-		P = Matrix.identity( 6, 6 ).times( initStateCovariance );
+		for ( int i = 0; i < 6; i++ )
+			P[ 7 * i ] = initStateCovariance;
 
 		// Process covariance
-		Q = Matrix.identity( 6, 6 );
-		for ( int i = 0; i < 3; i++ )
-		{
-			Q.set( i, i, positionProcessStd * positionProcessStd );
-			Q.set( 3 + i, 3 + i, velocityProcessStd * velocityProcessStd );
-		}
+		qPosition = positionProcessStd * positionProcessStd;
+		qVelocity = velocityProcessStd * velocityProcessStd;
 
-		R = Matrix.identity( 3, 3 ).times( positionMeasurementStd * positionMeasurementStd );
+		// Measurement covariance
+		r = positionMeasurementStd * positionMeasurementStd;
 	}
 
 	/**
@@ -147,9 +160,54 @@ public class CVMKalmanFilter
 	 */
 	public double[] predict()
 	{
-		Xp = A.times( X );
-		P = A.times( P.times( A.transpose() ) ).plus( Q );
-		return Xp.getColumnPackedCopy();
+		return predict( new double[ 6 ] );
+	}
+
+	/**
+	 * Runs the prediction step of the Kalman filter and writes the state
+	 * predicted by the evolution process in the specified array.
+	 * 
+	 * @param out
+	 *            a <code>double[]</code> of at least 6 elements, that will
+	 *            receive the predicted state: <code>x, y, z, vx, vy, vz</code>
+	 *            with velocity in <code>length/frame</code> units.
+	 * @return the <code>out</code> array.
+	 */
+	public double[] predict( final double[] out )
+	{
+		// Xp = A X
+		for ( int i = 0; i < 3; i++ )
+		{
+			Xp[ i ] = X[ i ] + X[ 3 + i ];
+			Xp[ 3 + i ] = X[ 3 + i ];
+		}
+
+		/*
+		 * P = A P A^T + Q. With P = [ P11 P12 ; P21 P22 ] this gives [
+		 * (P11+P12)+(P21+P22), P12+P22 ; P21+P22, P22 ] + Q. Done in place:
+		 * P11 first, because it depends on the 3 other blocks.
+		 */
+		for ( int i = 0; i < 3; i++ )
+		{
+			for ( int j = 0; j < 3; j++ )
+			{
+				final int i11 = 6 * i + j;
+				final int i12 = i11 + 3;
+				final int i21 = i11 + 18;
+				final int i22 = i11 + 21;
+				P[ i11 ] = ( P[ i11 ] + P[ i12 ] ) + ( P[ i21 ] + P[ i22 ] );
+				P[ i12 ] = P[ i12 ] + P[ i22 ];
+				P[ i21 ] = P[ i21 ] + P[ i22 ];
+			}
+		}
+		for ( int i = 0; i < 3; i++ )
+		{
+			P[ 7 * i ] += qPosition;
+			P[ 7 * ( 3 + i ) ] += qVelocity;
+		}
+
+		System.arraycopy( Xp, 0, out, 0, 6 );
+		return out;
 	}
 
 	/**
@@ -169,18 +227,74 @@ public class CVMKalmanFilter
 		{
 			// Occlusion.
 			nOcclusion++;
-			X = Xp;
+			System.arraycopy( Xp, 0, X, 0, 6 );
+			return;
 		}
-		else
+
+		// S = H P H^T + R, the top-left block of P plus R. Inverse in Sinv.
+		invertInnovationCovariance();
+
+		// K = P H^T S^-1. P H^T is the first 3 columns of P.
+		for ( int row = 0; row < 6; row++ )
 		{
-			final Matrix XM = new Matrix( Xm, 3 );
-			final Matrix TEMP = H.times( P.times( H.transpose() ) ).plus( R );
-			final Matrix K = P.times( H.transpose() ).times( TEMP.inverse() );
-			// State
-			X = Xp.plus( K.times( XM.minus( H.times( Xp ) ) ) );
-			// Covariance
-			P = ( Matrix.identity( 6, 6 ).minus( K.times( H ) ) ).times( P );
+			final int p = 6 * row;
+			for ( int col = 0; col < 3; col++ )
+				K[ 3 * row + col ] = P[ p ] * Sinv[ col ] + P[ p + 1 ] * Sinv[ 3 + col ] + P[ p + 2 ] * Sinv[ 6 + col ];
 		}
+
+		// State: X = Xp + K ( Xm - H Xp ).
+		for ( int i = 0; i < 3; i++ )
+			Y[ i ] = Xm[ i ] - Xp[ i ];
+		for ( int row = 0; row < 6; row++ )
+		{
+			final int k = 3 * row;
+			X[ row ] = Xp[ row ] + ( K[ k ] * Y[ 0 ] + K[ k + 1 ] * Y[ 1 ] + K[ k + 2 ] * Y[ 2 ] );
+		}
+
+		// Covariance: P = ( I - K H ) P = P - K ( H P ). H P is the first 3
+		// rows of P.
+		System.arraycopy( P, 0, PH, 0, 18 );
+		for ( int row = 0; row < 6; row++ )
+		{
+			final int k = 3 * row;
+			for ( int col = 0; col < 6; col++ )
+				P[ 6 * row + col ] -= K[ k ] * PH[ col ] + K[ k + 1 ] * PH[ 6 + col ] + K[ k + 2 ] * PH[ 12 + col ];
+		}
+	}
+
+	/**
+	 * Computes the inverse of the innovation covariance
+	 * <code>S = H P H^T + R</code> in closed form, and stores it in
+	 * {@link #Sinv}.
+	 */
+	void invertInnovationCovariance()
+	{
+		final double a = P[ 0 ] + r;
+		final double b = P[ 1 ];
+		final double c = P[ 2 ];
+		final double d = P[ 6 ];
+		final double e = P[ 7 ] + r;
+		final double f = P[ 8 ];
+		final double g = P[ 12 ];
+		final double h = P[ 13 ];
+		final double i = P[ 14 ] + r;
+
+		// Cofactors.
+		final double A = e * i - f * h;
+		final double B = f * g - d * i;
+		final double C = d * h - e * g;
+		final double invDet = 1. / ( a * A + b * B + c * C );
+
+		// Inverse is the transposed cofactor matrix divided by determinant.
+		Sinv[ 0 ] = A * invDet;
+		Sinv[ 1 ] = ( c * h - b * i ) * invDet;
+		Sinv[ 2 ] = ( b * f - c * e ) * invDet;
+		Sinv[ 3 ] = B * invDet;
+		Sinv[ 4 ] = ( a * i - c * g ) * invDet;
+		Sinv[ 5 ] = ( c * d - a * f ) * invDet;
+		Sinv[ 6 ] = C * invDet;
+		Sinv[ 7 ] = ( b * g - a * h ) * invDet;
+		Sinv[ 8 ] = ( a * e - b * d ) * invDet;
 	}
 
 	/**
@@ -191,7 +305,7 @@ public class CVMKalmanFilter
 	 */
 	public double getPositionError()
 	{
-		return Math.sqrt( ( P.get( 0, 0 ) + P.get( 1, 1 ) + P.get( 2, 2 ) ) / 3d );
+		return Math.sqrt( ( P[ 0 ] + P[ 7 ] + P[ 14 ] ) / 3d );
 	}
 
 	/**
@@ -203,7 +317,7 @@ public class CVMKalmanFilter
 	 */
 	public double getVelocityError()
 	{
-		return Math.sqrt( ( P.get( 3, 3 ) + P.get( 4, 4 ) + P.get( 5, 5 ) ) / 3d );
+		return Math.sqrt( ( P[ 21 ] + P[ 28 ] + P[ 35 ] ) / 3d );
 	}
 
 
@@ -31,31 +31,33 @@ package org.mastodon.tracking.linking.sequential.kalman;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_KALMAN_MAHALANOBIS_GATE;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_LINKING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_MAX_SEARCH_RADIUS;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_POSITION_SIGMA;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_WARM_START;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_KALMAN_MAHALANOBIS_GATE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_KALMAN_SEARCH_RADIUS;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_POSITION_SIGMA;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_WARM_START;
 import static org.mastodon.tracking.linking.LinkingUtils.checkParameter;
+import static org.mastodon.tracking.linking.LinkingUtils.tryGetRefPool;
 
-import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 
-import org.mastodon.collection.ObjectRefMap;
+import org.mastodon.RefPool;
 import org.mastodon.collection.RefCollection;
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefDoubleMap;
 import org.mastodon.collection.RefList;
 import org.mastodon.collection.RefMaps;
 import org.mastodon.collection.RefRefMap;
-import org.mastodon.collection.ref.RefArrayList;
-import org.mastodon.collection.ref.RefObjectHashMap;
 import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.spatial.SpatialIndexImp;
 import org.mastodon.spatial.SpatioTemporalIndex;
 import org.mastodon.tracking.linking.EdgeCreator;
 import org.mastodon.tracking.linking.sequential.AbstractSequentialParticleLinkerOp;
@@ -153,9 +155,17 @@ public class KalmanLinker< V extends RealLocalizable >
 		final int maxFrameGap = ( Integer ) settings.get( KEY_GAP_CLOSING_MAX_FRAME_GAP );
 		final double initialSearchRadius = ( Double ) settings.get( KEY_LINKING_MAX_DISTANCE );
 		final double positionMeasurementStd = ( Double ) settings.get( KEY_POSITION_SIGMA );
+		final double mahalanobisGate = settings.containsKey( KEY_KALMAN_MAHALANOBIS_GATE )
+				? ( Double ) settings.get( KEY_KALMAN_MAHALANOBIS_GATE )
+				: DEFAULT_KALMAN_MAHALANOBIS_GATE;
+		final boolean warmStart = settings.containsKey( KEY_WARM_START )
+				? ( Boolean ) settings.get( KEY_WARM_START )
+				: DEFAULT_WARM_START;
 
 		// Max KF search cost.
 		final double maxCost = maxSearchRadius * maxSearchRadius;
+		// Cost function to link KFs to measurements.
+		final CostFunction< KalmanState, V > kalmanCostFunction = new KalmanCostFunction<>( mahalanobisGate );
 		// Cost function to nucleate KFs.
 		final CostFunction< V, V > nucleatingCostFunction = new SquareDistCostFunction<>();
 		// Max cost to nucleate KFs.
@@ -206,34 +216,47 @@ public class KalmanLinker< V extends RealLocalizable >
 		}
 
 		/*
-		 * Prediction pool.
+		 * Estimate Kalman filter variances.
+		 *
+		 * The search radius is used to derive an estimate of the noise that
+		 * affects position and velocity. The two are linked: if we need a large
+		 * search radius, then the fluoctuations over predicted states are
+		 * large.
+		 */
+		final double positionProcessStd = maxSearchRadius / 3d;
+		final double velocityProcessStd = maxSearchRadius / 3d;
+
+		/*
+		 * The pool that contains the currently active KFs. Each KF stores the
+		 * id of the spot it is attached to, so we need a spot pool.
 		 */
 
-		final PredictionPool predictionPool = new PredictionPool( orphanSpots.size() );
-		final Comparator< Prediction > predictionComparator = new Comparator< Prediction >()
+		final RefPool< V > spotPool = tryGetRefPool( refcol );
+		if ( null == spotPool )
+		{
+			errorMessage = BASE_ERROR_MSG + "The spot collection is not backed by a pool.";
+			return;
+		}
+
+		final KalmanStatePool statePool = new KalmanStatePool( orphanSpots.size(), positionProcessStd, velocityProcessStd, positionMeasurementStd );
+		final RefCollection< KalmanState > kalmanStates = statePool.asRefCollection();
+		final Comparator< KalmanState > stateComparator = new Comparator< KalmanState >()
 		{
 
 			@Override
-			public int compare( final Prediction o1, final Prediction o2 )
+			public int compare( final KalmanState o1, final KalmanState o2 )
 			{
 				return o1.getInternalPoolIndex() - o2.getInternalPoolIndex();
 			}
 		};
 
 		/*
-		 * Estimate Kalman filter variances.
-		 *
-		 * The search radius is used to derive an estimate of the noise that
-		 * affects position and velocity. The two are linked: if we need a large
-		 * search radius, then the fluoctuations over predicted states are
-		 * large.
+		 * Dual prices of the last measurement of each KF, to warm-start the
+		 * assignment of the next frame.
 		 */
-		final double positionProcessStd = maxSearchRadius / 3d;
-		final double velocityProcessStd = maxSearchRadius / 3d;
-
-		// The master map that contains the currently active KFs.
-		final ObjectRefMap< CVMKalmanFilter, V > kalmanFiltersMap =
-				RefMaps.createObjectRefMap( refcol, orphanSpots.size() );
+		final RefDoubleMap< KalmanState > stateDuals = warmStart
+				? RefMaps.createRefDoubleMap( kalmanStates, Double.NaN )
+				: null;
 
 		/*
 		 * Then loop over time, starting from second frame.
@@ -241,6 +264,11 @@ public class KalmanLinker< V extends RealLocalizable >
 
 		final V vref1 = refcol.createRef();
 		final V vref2 = refcol.createRef();
+		final KalmanState sref = statePool.createRef();
+
+		// Reused buffers for predicted states and measurements.
+		final double[] X = new double[ 6 ];
+		final double[] Xm = new double[ 3 ];
 
 		for ( int tp = secondFrame; tp <= maxTimepoint; tp++ )
 		{
@@ -250,89 +278,75 @@ public class KalmanLinker< V extends RealLocalizable >
 				break;
 
 			/*
-			 * Predict for all Kalman filters, and use it to generate linking
-			 * candidates.
+			 * Predict for all Kalman filters. The KF states are then used as
+			 * linking candidates, positioned at their prediction.
 			 */
-			final RefObjectHashMap< Prediction, CVMKalmanFilter > predictionMap =
-					new RefObjectHashMap<>( predictionPool, kalmanFiltersMap.size() );
-			final Prediction pref = predictionPool.createRef();
-			for ( final CVMKalmanFilter kf : kalmanFiltersMap.keySet() )
-			{
-				final double[] X = kf.predict();
-				final Prediction point = predictionPool.create( pref ).init( X );
-				predictionMap.put( point, kf );
-			}
-			predictionPool.releaseRef( pref );
-
-			final RefArrayList< Prediction > predictions = new RefArrayList<>( predictionPool, predictionMap.size() );
-			predictions.addAll( predictionMap.keySet() );
-
-			/*
-			 * The KF for which we could not find a measurement in the target
-			 * frame. Is updated later.
-			 */
-			final Collection< CVMKalmanFilter > childlessKFs = new HashSet< >( kalmanFiltersMap.keySet() );
+			for ( final KalmanState state : kalmanStates )
+				state.predict( X );
 
 			/*
 			 * Find the global (in space) optimum for associating a prediction
-			 * to a measurement.
+			 * to a measurement. Each prediction is only compared to the
+			 * measurements within the search radius, found with a k-d tree.
 			 */
 
 			// Use the spot in the next frame has measurements.
 			final RefList< V > measurements = generateSpotList( tp, spots, refcol );
 			orphanSpots = RefCollections.createRefList( orphanSpots, measurements.size() );
 			orphanSpots.addAll( measurements );
-			if ( !predictions.isEmpty() && !measurements.isEmpty() )
+			if ( !kalmanStates.isEmpty() && !measurements.isEmpty() )
 			{
 				// Only link measurements to predictions if we have predictions.
 				@SuppressWarnings( "unchecked" )
-				final JaqamanLinkingCostMatrixCreator< Prediction, V > crm =
-						( JaqamanLinkingCostMatrixCreator< Prediction, V > ) Functions.nullary( ops(), JaqamanLinkingCostMatrixCreator.class, SparseCostMatrix.class,
-								predictions,
-								measurements,
-								CF,
+				final JaqamanLinkingCostMatrixCreator< KalmanState, V > crm =
+						( JaqamanLinkingCostMatrixCreator< KalmanState, V > ) Functions.nullary( ops(), JaqamanLinkingCostMatrixCreator.class, SparseCostMatrix.class,
+								kalmanStates,
+								new SpatialIndexImp<>( measurements, spotPool ),
+								kalmanCostFunction,
 								maxCost,
 								ALTERNATIVE_COST_FACTOR,
 								PERCENTILE,
-								predictionPool.asRefCollection(),
+								kalmanStates,
 								refcol,
-								predictionComparator,
-								spotComparator );
-				final JaqamanLinker< Prediction, V > linker = new JaqamanLinker<>( crm, predictions, measurements );
+								stateComparator,
+								spotComparator,
+								maxSearchRadius );
+				final JaqamanLinker< KalmanState, V > linker = new JaqamanLinker<>( crm, kalmanStates, measurements );
+				linker.setWarmStart( warmStart, stateDuals );
 				if ( !linker.checkInput() || !linker.process() )
 				{
 					errorMessage = BASE_ERROR_MSG + "Error linking candidates in frame " + tp + ": " + linker.getErrorMessage();
 					return;
 				}
-				final RefRefMap< Prediction, V > agnts = linker.getResult();
-				final RefDoubleMap< Prediction > assignmentCosts = linker.getAssignmentCosts();
+				final RefRefMap< KalmanState, V > agnts = linker.getResult();
+				final RefDoubleMap< KalmanState > assignmentCosts = linker.getAssignmentCosts();
+				final RefDoubleMap< V > measurementDuals = linker.getTargetDuals();
 
 				// Deal with found links.
 
 				edgeCreator.preAddition();
 				try
 				{
-					for ( final Prediction cm : agnts.keySet() )
+					for ( final KalmanState state : agnts.keySet() )
 					{
-						final CVMKalmanFilter kf = predictionMap.get( cm );
-
 						// Create links for found match.
-						final V source = kalmanFiltersMap.get( kf, vref1 );
-						final V target = agnts.get( cm, vref2 );
-						final double cost = assignmentCosts.get( cm );
+						final V source = spotPool.getObject( state.getSpotId(), vref1 );
+						final V target = agnts.get( state, vref2 );
+						final double cost = assignmentCosts.get( state );
 						edgeCreator.createEdge( source, target, cost );
 
 						// Update Kalman filter
-						kf.update( toMeasurement( target ) );
+						state.update( toMeasurement( target, Xm ), tp );
 
 						// Update Kalman track spot
-						kalmanFiltersMap.put( kf, target, vref1 );
+						state.setSpotId( spotPool.getId( target ) );
+
+						// The KF inherits the dual price of its measurement.
+						if ( warmStart )
+							stateDuals.put( state, measurementDuals.get( target ) );
 
 						// Remove from orphan set
 						orphanSpots.remove( target );
-
-						// Remove from childless KF set
-						childlessKFs.remove( kf );
 					}
 				}
 				catch ( final Exception e )
@@ -358,13 +372,13 @@ public class KalmanLinker< V extends RealLocalizable >
 				 * We now deal with orphans of the previous frame. We try to
 				 * find them a target from the list of spots that are not
 				 * already part of a link created via KF. That is: the orphan
-				 * spots of this frame.
+				 * spots of this frame, within the initial search radius.
 				 */
 				@SuppressWarnings( "unchecked" )
 				final JaqamanLinkingCostMatrixCreator< V, V > ic =
 						( JaqamanLinkingCostMatrixCreator< V, V > ) Functions.nullary( ops(), JaqamanLinkingCostMatrixCreator.class, SparseCostMatrix.class,
 								previousOrphanSpots,
-								orphanSpots,
+								new SpatialIndexImp<>( orphanSpots, spotPool ),
 								nucleatingCostFunction,
 								maxInitialCost,
 								ALTERNATIVE_COST_FACTOR,
@@ -372,7 +386,8 @@ public class KalmanLinker< V extends RealLocalizable >
 								refcol,
 								refcol,
 								spotComparator,
-								spotComparator );
+								spotComparator,
+								initialSearchRadius );
 				final JaqamanLinker< V, V > newLinker = new JaqamanLinker<>( ic, previousOrphanSpots, orphanSpots );
 				if ( !newLinker.checkInput() || !newLinker.process() )
 				{
@@ -395,11 +410,8 @@ public class KalmanLinker< V extends RealLocalizable >
 
 						// Derive initial state and create Kalman filter.
 						final double[] XP = estimateInitialState( source, target );
-						final CVMKalmanFilter kt = new CVMKalmanFilter( XP, Double.MIN_NORMAL, positionProcessStd, velocityProcessStd, positionMeasurementStd );
 						// We trust the initial state a lot.
-
-						// Store filter and source
-						kalmanFiltersMap.put( kt, target, vref2 );
+						statePool.create( sref ).init( XP, Double.MIN_NORMAL, spotPool.getId( target ), tp );
 
 						// Add edge to the graph.
 						final double cost = assignmentCosts.get( source );
@@ -417,19 +429,38 @@ public class KalmanLinker< V extends RealLocalizable >
 			}
 			previousOrphanSpots = orphanSpots;
 
-			// Deal with childless KFs.
-			for ( final CVMKalmanFilter kf : childlessKFs )
+			/*
+			 * Deal with childless KFs: the ones for which we could not find a
+			 * measurement in this frame. KFs nucleated in this frame are
+			 * skipped, since they were just measured.
+			 */
+			final RefList< KalmanState > deadStates = RefCollections.createRefList( kalmanStates );
+			for ( final KalmanState state : kalmanStates )
 			{
+				if ( state.getLastMeasurement() == tp )
+					continue;
+
 				// Echo we missed a measurement
-				kf.update( null );
+				state.update( null, tp );
 
 				// We can bridge a limited number of gaps. If too much, we die.
 				// If not, we will use predicted state next time.
-				if ( kf.getNOcclusion() > maxFrameGap )
-					kalmanFiltersMap.remove( kf );
+				if ( state.getNOcclusion() > maxFrameGap )
+					deadStates.add( state );
+			}
+			for ( int i = 0; i < deadStates.size(); i++ )
+			{
+				final KalmanState state = deadStates.get( i, sref );
+				if ( warmStart )
+					stateDuals.remove( state );
+				statePool.delete( state );
 			}
 		}
 
+		refcol.releaseRef( vref1 );
+		refcol.releaseRef( vref2 );
+		statePool.releaseRef( sref );
+
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
 		statusService.clearStatus();
@@ -448,11 +479,11 @@ public class KalmanLinker< V extends RealLocalizable >
 		return processingTime;
 	}
 
-	private final double[] toMeasurement( final V spot )
+	private static final double[] toMeasurement( final RealLocalizable spot, final double[] d )
 	{
-		final double[] d = new double[] {
-				spot.getDoublePosition( 0 ), spot.getDoublePosition( 1 ), spot.getDoublePosition( 2 )
-		};
+		d[ 0 ] = spot.getDoublePosition( 0 );
+		d[ 1 ] = spot.getDoublePosition( 1 );
+		d[ 2 ] = spot.getDoublePosition( 2 );
 		return d;
 	}
 
@@ -494,21 +525,34 @@ public class KalmanLinker< V extends RealLocalizable >
 
 	/**
 	 * Cost function that returns the square distance between a KF state and a
-	 * spots.
+	 * spots. If a positive Mahalanobis gate is set, spots whose squared
+	 * Mahalanobis distance to the KF prediction is larger than the gate are
+	 * given an infinite cost. The cost is never smaller than the square
+	 * distance, so that it can be used with a radius search.
 	 */
-	private final CostFunction< Prediction, V > CF = new CostFunction< Prediction, V >()
+	private static final class KalmanCostFunction< V extends RealLocalizable > implements CostFunction< KalmanState, V >
 	{
 
+		private final double mahalanobisGate;
+
+		public KalmanCostFunction( final double mahalanobisGate )
+		{
+			this.mahalanobisGate = mahalanobisGate;
+		}
+
 		@Override
-		public double linkingCost( final Prediction state, final V spot )
+		public double linkingCost( final KalmanState state, final V spot )
 		{
+			if ( mahalanobisGate > 0. && state.mahalanobisDistanceSquared( spot ) > mahalanobisGate )
+				return Double.POSITIVE_INFINITY;
+
 			final double dx = state.getDoublePosition( 0 ) - spot.getDoublePosition( 0 );
 			final double dy = state.getDoublePosition( 1 ) - spot.getDoublePosition( 1 );
 			final double dz = state.getDoublePosition( 2 ) - spot.getDoublePosition( 2 );
 			return dx * dx + dy * dy + dz * dz + Double.MIN_NORMAL;
 			// So that it's never 0
 		}
-	};
+	}
 
 	@Override
 	public boolean isSuccessful()
@@ -529,6 +573,10 @@ public class KalmanLinker< V extends RealLocalizable >
 		ok = ok & checkParameter( settings, KEY_KALMAN_SEARCH_RADIUS, Double.class, str );
 		ok = ok & checkParameter( settings, KEY_GAP_CLOSING_MAX_FRAME_GAP, Integer.class, str );
 		ok = ok & checkParameter( settings, KEY_POSITION_SIGMA, Double.class, str );
+		if ( settings.containsKey( KEY_KALMAN_MAHALANOBIS_GATE ) )
+			ok = ok & checkParameter( settings, KEY_KALMAN_MAHALANOBIS_GATE, Double.class, str );
+		if ( settings.containsKey( KEY_WARM_START ) )
+			ok = ok & checkParameter( settings, KEY_WARM_START, Boolean.class, str );
 
 		// Check min & max time-point
 		final int minTimepoint = ( int ) settings.get( KEY_MIN_TIMEPOINT );
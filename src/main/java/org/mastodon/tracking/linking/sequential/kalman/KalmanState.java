@@ -0,0 +1,240 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.kalman;
+
+import org.mastodon.pool.ByteMappedElement;
+import org.mastodon.pool.PoolObject;
+import org.mastodon.pool.attributes.DoubleArrayAttribute;
+import org.mastodon.pool.attributes.RealPointAttributeValue;
+import org.mastodon.util.DelegateRealLocalizable;
+
+import net.imglib2.RealLocalizable;
+
+/**
+ * The state of a constant-velocity Kalman filter, stored in a
+ * {@link KalmanStatePool}. Its position is the position predicted by the last
+ * call to {@link #predict(double[])}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+class KalmanState extends PoolObject< KalmanState, KalmanStatePool, ByteMappedElement >
+implements DelegateRealLocalizable
+{
+	private final RealPointAttributeValue prediction;
+
+	KalmanState( final KalmanStatePool pool )
+	{
+		super( pool );
+		prediction = pool.prediction.createAttributeValue( this );
+	}
+
+	/**
+	 * Initializes this state.
+	 *
+	 * @param X0
+	 *            initial state estimate, as a 6 elements array with
+	 *            <code>x0, y0, z0, vx0, vy0, vz0</code>.
+	 * @param initStateCovariance
+	 *            the initial state covariance.
+	 * @param spotId
+	 *            the id of the spot the filter is attached to.
+	 * @param timepoint
+	 *            the time-point of this spot.
+	 * @return this state.
+	 */
+	public KalmanState init( final double[] X0, final double initStateCovariance, final int spotId, final int timepoint )
+	{
+		for ( int i = 0; i < 6; i++ )
+			pool.state.setQuiet( this, i, X0[ i ] );
+		for ( int i = 0; i < 36; i++ )
+			pool.covariance.setQuiet( this, i, ( i % 7 == 0 ) ? initStateCovariance : 0. );
+		pool.prediction.setPositionQuiet( this, X0 );
+		pool.nOcclusion.setQuiet( this, 0 );
+		pool.spot.setQuiet( this, spotId );
+		pool.lastMeasurement.setQuiet( this, timepoint );
+		return this;
+	}
+
+	/**
+	 * Runs the prediction step of the Kalman filter.
+	 *
+	 * @param out
+	 *            a <code>double[]</code> of at least 6 elements, that will
+	 *            receive the predicted state.
+	 * @return the <code>out</code> array.
+	 * @see CVMKalmanFilter#predict(double[])
+	 */
+	public double[] predict( final double[] out )
+	{
+		final CVMKalmanFilter kf = load();
+		kf.predict( out );
+		kf.invertInnovationCovariance();
+		for ( int i = 0; i < 36; i++ )
+			pool.covariance.setQuiet( this, i, kf.P[ i ] );
+		for ( int i = 0; i < 9; i++ )
+			pool.innovation.setQuiet( this, i, kf.Sinv[ i ] );
+		pool.prediction.setPositionQuiet( this, out );
+		return out;
+	}
+
+	/**
+	 * Returns the squared Mahalanobis distance between the predicted position
+	 * and the specified position, using the innovation covariance of the last
+	 * prediction. Under the filter model, it follows a chi-square distribution
+	 * with 3 degrees of freedom for the measurements of this filter.
+	 *
+	 * @param position
+	 *            the position, at least 3D.
+	 * @return the squared Mahalanobis distance.
+	 */
+	public double mahalanobisDistanceSquared( final RealLocalizable position )
+	{
+		final double dx = position.getDoublePosition( 0 ) - getDoublePosition( 0 );
+		final double dy = position.getDoublePosition( 1 ) - getDoublePosition( 1 );
+		final double dz = position.getDoublePosition( 2 ) - getDoublePosition( 2 );
+		final DoubleArrayAttribute< KalmanState > s = pool.innovation;
+		return dx * ( s.getQuiet( this, 0 ) * dx + s.getQuiet( this, 1 ) * dy + s.getQuiet( this, 2 ) * dz )
+				+ dy * ( s.getQuiet( this, 3 ) * dx + s.getQuiet( this, 4 ) * dy + s.getQuiet( this, 5 ) * dz )
+				+ dz * ( s.getQuiet( this, 6 ) * dx + s.getQuiet( this, 7 ) * dy + s.getQuiet( this, 8 ) * dz );
+	}
+
+	/**
+	 * Runs the update step of the Kalman filter.
+	 *
+	 * @param Xm
+	 *            the measured position, or <code>null</code> if an occlusion
+	 *            occurred.
+	 * @param timepoint
+	 *            the time-point of the measurement.
+	 * @see CVMKalmanFilter#update(double[])
+	 */
+	public void update( final double[] Xm, final int timepoint )
+	{
+		final CVMKalmanFilter kf = load();
+		kf.update( Xm );
+		for ( int i = 0; i < 6; i++ )
+			pool.state.setQuiet( this, i, kf.X[ i ] );
+		for ( int i = 0; i < 36; i++ )
+			pool.covariance.setQuiet( this, i, kf.P[ i ] );
+		pool.nOcclusion.setQuiet( this, kf.nOcclusion );
+		if ( null != Xm )
+			pool.lastMeasurement.setQuiet( this, timepoint );
+	}
+
+	/**
+	 * Copies this state in the workspace filter of the pool. The velocity part
+	 * of the prediction is the velocity of the state, since the evolution
+	 * leaves it unchanged.
+	 *
+	 * @return the workspace filter.
+	 */
+	private CVMKalmanFilter load()
+	{
+		final CVMKalmanFilter kf = pool.workspace;
+		for ( int i = 0; i < 6; i++ )
+			kf.X[ i ] = pool.state.getQuiet( this, i );
+		for ( int i = 0; i < 3; i++ )
+		{
+			kf.Xp[ i ] = prediction.getDoublePosition( i );
+			kf.Xp[ 3 + i ] = kf.X[ 3 + i ];
+		}
+		for ( int i = 0; i < 36; i++ )
+			kf.P[ i ] = pool.covariance.getQuiet( this, i );
+		kf.nOcclusion = pool.nOcclusion.getQuiet( this );
+		return kf;
+	}
+
+	/**
+	 * Returns the number of occlusion events that occurred since this state
+	 * was initialized.
+	 *
+	 * @return the number of occlusions.
+	 */
+	public int getNOcclusion()
+	{
+		return pool.nOcclusion.getQuiet( this );
+	}
+
+	/**
+	 * Returns the id of the spot the filter is currently attached to.
+	 *
+	 * @return the spot id.
+	 */
+	public int getSpotId()
+	{
+		return pool.spot.getQuiet( this );
+	}
+
+	/**
+	 * Sets the id of the spot the filter is currently attached to.
+	 *
+	 * @param spotId
+	 *            the spot id.
+	 */
+	public void setSpotId( final int spotId )
+	{
+		pool.spot.setQuiet( this, spotId );
+	}
+
+	/**
+	 * Returns the time-point of the last measurement used to update this
+	 * state.
+	 *
+	 * @return the time-point.
+	 */
+	public int getLastMeasurement()
+	{
+		return pool.lastMeasurement.getQuiet( this );
+	}
+
+	@Override
+	protected void setToUninitializedState()
+	{}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder sb = new StringBuilder();
+		char c = '(';
+		for ( int i = 0; i < numDimensions(); i++ )
+		{
+			sb.append( c );
+			sb.append( getDoublePosition( i ) );
+			c = ',';
+		}
+		sb.append( ")" );
+		return sb.toString();
+	}
+
+	@Override
+	public RealPointAttributeValue delegate()
+	{
+		return prediction;
+	}
+}
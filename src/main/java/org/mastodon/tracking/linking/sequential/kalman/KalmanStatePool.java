@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.kalman;
+
+import org.mastodon.pool.ByteMappedElement;
+import org.mastodon.pool.ByteMappedElementArray;
+import org.mastodon.pool.Pool;
+import org.mastodon.pool.PoolObjectLayout;
+import org.mastodon.pool.SingleArrayMemPool;
+import org.mastodon.pool.attributes.DoubleArrayAttribute;
+import org.mastodon.pool.attributes.IntAttribute;
+import org.mastodon.pool.attributes.RealPointAttribute;
+
+/**
+ * A pool of constant-velocity Kalman filter states. The state vector,
+ * predicted position, covariance matrix, inverse innovation covariance,
+ * occlusion count and the index of the
+ * spot each filter is attached to are stored contiguously in a single
+ * primitive array.
+ * <p>
+ * All the filters of a pool share the same noise parameters. The prediction
+ * and update steps are computed by a single {@link CVMKalmanFilter} used as a
+ * workspace, in which states are loaded and stored back. Consequently, a pool
+ * must not be used concurrently from several threads.
+ *
+ * @author Jean-Yves Tinevez
+ */
+class KalmanStatePool extends Pool< KalmanState, ByteMappedElement >
+{
+	static class KalmanStateLayout extends PoolObjectLayout
+	{
+		final DoubleArrayField state = doubleArrayField( 6 );
+		final DoubleArrayField prediction = doubleArrayField( 3 );
+		final DoubleArrayField covariance = doubleArrayField( 36 );
+		final DoubleArrayField innovation = doubleArrayField( 9 );
+		final IntField nOcclusion = intField();
+		final IntField spot = intField();
+		final IntField lastMeasurement = intField();
+	}
+
+	static final KalmanStateLayout layout = new KalmanStateLayout();
+
+	final DoubleArrayAttribute< KalmanState > state;
+
+	final RealPointAttribute< KalmanState > prediction;
+
+	final DoubleArrayAttribute< KalmanState > covariance;
+
+	/**
+	 * The inverse of the innovation covariance at the last prediction.
+	 */
+	final DoubleArrayAttribute< KalmanState > innovation;
+
+	final IntAttribute< KalmanState > nOcclusion;
+
+	final IntAttribute< KalmanState > spot;
+
+	final IntAttribute< KalmanState > lastMeasurement;
+
+	/**
+	 * The filter in which states are loaded to run the prediction and update
+	 * steps.
+	 */
+	final CVMKalmanFilter workspace;
+
+	/**
+	 * Creates a new pool of Kalman states.
+	 *
+	 * @param initialCapacity
+	 *            the initial capacity of the pool.
+	 * @param positionProcessStd
+	 *            the std of the additive white gaussian noise affecting the
+	 *            <b>position</b> evolution.
+	 * @param velocityProcessStd
+	 *            the std of the additive white gaussian noise affecting the
+	 *            <b>velocity</b> evolution, in <code>length/frame</code>.
+	 * @param positionMeasurementStd
+	 *            the std of the additive white gaussian noise affecting the
+	 *            position <b>measurement</b>.
+	 * @see CVMKalmanFilter#CVMKalmanFilter(double[], double, double, double,
+	 *      double)
+	 */
+	public KalmanStatePool( final int initialCapacity, final double positionProcessStd, final double velocityProcessStd, final double positionMeasurementStd )
+	{
+		super(
+				initialCapacity,
+				layout,
+				KalmanState.class,
+				SingleArrayMemPool.factory( ByteMappedElementArray.factory ) );
+		state = new DoubleArrayAttribute<>( layout.state, this );
+		prediction = new RealPointAttribute<>( layout.prediction, this );
+		covariance = new DoubleArrayAttribute<>( layout.covariance, this );
+		innovation = new DoubleArrayAttribute<>( layout.innovation, this );
+		nOcclusion = new IntAttribute<>( layout.nOcclusion, this );
+		spot = new IntAttribute<>( layout.spot, this );
+		lastMeasurement = new IntAttribute<>( layout.lastMeasurement, this );
+		workspace = new CVMKalmanFilter( new double[ 6 ], 0., positionProcessStd, velocityProcessStd, positionMeasurementStd );
+	}
+
+	@Override
+	public KalmanState create( final KalmanState obj )
+	{
+		return super.create( obj );
+	}
+
+	public KalmanState create()
+	{
+		return super.create( createRef() );
+	}
+
+	@Override
+	public void delete( final KalmanState obj )
+	{
+		super.delete( obj );
+	}
+
+	@Override
+	protected KalmanState createEmptyRef()
+	{
+		return new KalmanState( this );
+	}
+}
@@ -1,93 +0,0 @@
-/*-
- * #%L
- * mastodon-tracking
- * %%
- * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
- * %%
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- * 
- * 1. Redistributions of source code must retain the above copyright notice,
- *    this list of conditions and the following disclaimer.
- * 2. Redistributions in binary form must reproduce the above copyright notice,
- *    this list of conditions and the following disclaimer in the documentation
- *    and/or other materials provided with the distribution.
- * 
- * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
- * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
- * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
- * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
- * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
- * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
- * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
- * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
- * POSSIBILITY OF SUCH DAMAGE.
- * #L%
- */
-package org.mastodon.tracking.linking.sequential.kalman;
-
-import org.mastodon.pool.ByteMappedElement;
-import org.mastodon.pool.PoolObject;
-import org.mastodon.pool.attributes.RealPointAttributeValue;
-import org.mastodon.util.DelegateRealLocalizable;
-import org.mastodon.util.DelegateRealPositionable;
-
-class Prediction extends PoolObject< Prediction, PredictionPool, ByteMappedElement >
-implements DelegateRealLocalizable, DelegateRealPositionable, Comparable< Prediction >
-{
-	private final RealPointAttributeValue position;
-
-	Prediction( final PredictionPool pool )
-	{
-		super( pool );
-		position = pool.position.createAttributeValue( this );
-	}
-
-	public Prediction init( final double... pos )
-	{
-		pool.position.setPositionQuiet( this, pos );
-		return this;
-	}
-
-	@Override
-	protected void setToUninitializedState()
-	{}
-
-	@Override
-	public String toString()
-	{
-		final StringBuilder sb = new StringBuilder();
-		char c = '(';
-		for ( int i = 0; i < numDimensions(); i++ )
-		{
-			sb.append( c );
-			sb.append( getDoublePosition( i ) );
-			c = ',';
-		}
-		sb.append( ")" );
-		return sb.toString();
-	}
-
-	@Override
-	public RealPointAttributeValue delegate()
-	{
-		return position;
-	}
-
-	@Override
-	public int compareTo( final Prediction o )
-	{
-		/*
-		 * Sort based on X, Y, Z
-		 */
-		int i = 0;
-		while ( i < numDimensions() )
-		{
-			if ( getDoublePosition( i ) != o.getDoublePosition( i ) ) { return ( int ) Math.signum( getDoublePosition( i ) - o.getDoublePosition( i ) ); }
-			i++;
-		}
-		return hashCode() - o.hashCode();
-	}
-}
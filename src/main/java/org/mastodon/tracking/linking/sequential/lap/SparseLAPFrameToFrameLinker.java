@@ -30,13 +30,24 @@ package org.mastodon.tracking.linking.sequential.lap;
 
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_BATCH_EDGE_CREATION;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_LAP_SOLVER_TOLERANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_SOLVE_BY_COMPONENTS;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_WARM_START;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_BATCH_EDGE_CREATION;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_DO_LINK_SELECTION;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER_TOLERANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SOLVE_BY_COMPONENTS;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_WARM_START;
+import static org.mastodon.tracking.linking.LinkingUtils.checkEnumParameter;
 import static org.mastodon.tracking.linking.LinkingUtils.checkFeatureMap;
 import static org.mastodon.tracking.linking.LinkingUtils.checkMapKeys;
 import static org.mastodon.tracking.linking.LinkingUtils.checkParameter;
+import static org.mastodon.tracking.linking.LinkingUtils.tryGetRefPool;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -47,8 +58,14 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.mastodon.RefPool;
+import org.mastodon.collection.RefCollection;
+import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefDoubleMap;
+import org.mastodon.collection.RefList;
 import org.mastodon.collection.RefRefMap;
 import org.mastodon.feature.FeatureProjectionKey;
 import org.mastodon.spatial.HasTimepoint;
@@ -58,8 +75,10 @@ import org.mastodon.tracking.linking.EdgeCreator;
 import org.mastodon.tracking.linking.LinkingUtils;
 import org.mastodon.tracking.linking.sequential.AbstractSequentialParticleLinkerOp;
 import org.mastodon.tracking.linking.sequential.lap.costfunction.CostFunction;
+import org.mastodon.tracking.linking.sequential.lap.costfunction.PreparedFeaturePenaltiesCostFunction;
 import org.mastodon.tracking.linking.sequential.lap.costmatrix.JaqamanLinkingCostMatrixCreator;
 import org.mastodon.tracking.linking.sequential.lap.linker.JaqamanLinker;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPSolverType;
 import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -69,6 +88,31 @@ import net.imagej.ops.special.function.Functions;
 import net.imglib2.RealLocalizable;
 import net.imglib2.algorithm.Benchmark;
 
+/**
+ * Links spots frame to frame, solving one LAP per pair of consecutive frames.
+ * Frame pairs are processed concurrently.
+ * <p>
+ * By default, the edges of a frame pair are added to the graph as soon as its
+ * LAP is solved, which requires taking the graph write lock once per frame
+ * pair while other frame pairs are still being processed. If the
+ * {@link org.mastodon.tracking.linking.LinkerKeys#KEY_BATCH_EDGE_CREATION}
+ * setting is <code>true</code>, linking is done in two phases. All the cost
+ * matrices and LAPs are first built and solved while only reading the spots.
+ * The resulting edges are then added in a single write-locked pass. The
+ * duration of each phase is reported by {@link #getLinkingProcessingTime()}
+ * and {@link #getEdgeCreationProcessingTime()}. The optimality gap of
+ * approximate LAP solvers is reported by {@link #getOptimalityGap()}, and the
+ * number of augmenting paths searched by the Jonker-Volgenant solver by
+ * {@link #getNumberOfAugmentations()}.
+ * <p>
+ * If the {@link org.mastodon.tracking.linking.LinkerKeys#KEY_WARM_START}
+ * setting is <code>true</code>, frame pairs are solved in order instead, each
+ * LAP being warm-started from the dual prices of the previous frame pair. See
+ * {@link JaqamanLinker#setWarmStart(boolean, RefDoubleMap)}.
+ *
+ * @param <V>
+ *            the type of vertices to link.
+ */
 @Plugin( type = SparseLAPFrameToFrameLinker.class )
 public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizable  >
 		extends AbstractSequentialParticleLinkerOp< V >
@@ -81,6 +125,14 @@ public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizab
 
 	private long processingTime;
 
+	private long linkingProcessingTime;
+
+	private long edgeCreationProcessingTime;
+
+	private double optimalityGap;
+
+	private long nAugmentations;
+
 	/*
 	 * METHODS
 	 */
@@ -159,22 +211,61 @@ public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizab
 		final Map< FeatureProjectionKey, Double > featurePenalties = ( Map< FeatureProjectionKey, Double > ) settings.get( KEY_LINKING_FEATURE_PENALTIES );
 		@SuppressWarnings( "unchecked" )
 		final Class< V > vertexClass = ( Class< V > ) refcol.createRef().getClass();
-		final CostFunction< V, V > costFunction = LinkingUtils.getCostFunctionFor( featurePenalties, featureModel, vertexClass );
+		final RefPool< V > spotPool = tryGetRefPool( refcol );
+		final CostFunction< V, V > costFunction;
+		if ( null == spotPool || null == featurePenalties || featurePenalties.isEmpty() )
+		{
+			costFunction = LinkingUtils.getCostFunctionFor( featurePenalties, featureModel, vertexClass );
+		}
+		else
+		{
+			// Snapshot the penalized feature values of the spots to link.
+			final PreparedFeaturePenaltiesCostFunction< V > preparedCostFunction = new PreparedFeaturePenaltiesCostFunction<>( featurePenalties, featureModel, spotPool );
+			spots.readLock().lock();
+			try
+			{
+				for ( int tp = minTimepoint; tp <= maxTimepoint; tp++ )
+					preparedCostFunction.prepare( spots.getSpatialIndex( tp ) );
+			}
+			finally
+			{
+				spots.readLock().unlock();
+			}
+			costFunction = preparedCostFunction;
+		}
 
 		final Double maxDist = ( Double ) settings.get( KEY_LINKING_MAX_DISTANCE );
 		final double costThreshold = maxDist * maxDist;
 		final double alternativeCostFactor = ( Double ) settings.get( KEY_ALTERNATIVE_LINKING_COST_FACTOR );
+		final Object batchObj = settings.get( KEY_BATCH_EDGE_CREATION );
+		final boolean batchEdgeCreation = ( null == batchObj ) ? DEFAULT_BATCH_EDGE_CREATION : ( Boolean ) batchObj;
+		final Object componentsObj = settings.get( KEY_SOLVE_BY_COMPONENTS );
+		final boolean solveByComponents = ( null == componentsObj ) ? DEFAULT_SOLVE_BY_COMPONENTS : ( Boolean ) componentsObj;
+		final LAPSolverType solverType = LAPSolverType.getOrDefault( ( String ) settings.get( KEY_LAP_SOLVER ), LAPSolverType.AUTO );
+		final Object toleranceObj = settings.get( KEY_LAP_SOLVER_TOLERANCE );
+		final double solverTolerance = ( null == toleranceObj ) ? DEFAULT_LAP_SOLVER_TOLERANCE : ( Double ) toleranceObj;
+		final Object warmStartObj = settings.get( KEY_WARM_START );
+		final boolean warmStart = ( null == warmStartObj ) ? DEFAULT_WARM_START : ( Boolean ) warmStartObj;
 
 		// Prepare threads
 		final AtomicInteger progress = new AtomicInteger( 0 );
 		final AtomicBoolean aok = new AtomicBoolean( true );
+		final DoubleAdder gap = new DoubleAdder();
+		final LongAdder augmentations = new LongAdder();
 		statusService.showStatus( "Frame to frame linking..." );
+		final List< EdgeBatch< V > > edgeBatches = new ArrayList<>( framePairs.size() );
+		for ( int fp = 0; fp < framePairs.size(); fp++ )
+			edgeBatches.add( null );
+		// Dual prices of the targets of each frame pair, for warm starts.
+		final List< RefDoubleMap< V > > targetDuals = new ArrayList<>( framePairs.size() );
+		for ( int fp = 0; fp < framePairs.size(); fp++ )
+			targetDuals.add( null );
 		final ArrayList< Future< Void > > futures = new ArrayList<>( framePairs.size() );
 		final ExecutorService service = threadService.getExecutorService();
 		for ( int fp = 0; fp < framePairs.size(); fp++ )
 		{
 			final int i = fp;
-			futures.add( service.submit( new Callable< Void >()
+			final Future< Void > future = service.submit( new Callable< Void >()
 			{
 				@Override
 				public Void call()
@@ -197,25 +288,39 @@ public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizab
 							return null;
 
 						/*
-						 * Run the linker.
+						 * Run the linker. Candidate targets are collected with
+						 * a radius query of the max linking distance.
 						 */
 
 						@SuppressWarnings( "unchecked" )
 						final JaqamanLinkingCostMatrixCreator< V, V > creator = ( JaqamanLinkingCostMatrixCreator< V, V > ) Functions.nullary( ops(), JaqamanLinkingCostMatrixCreator.class, SparseCostMatrix.class,
 								sources, targets, costFunction, costThreshold, alternativeCostFactor, 1d,
 								refcol, refcol,
-								spotComparator, spotComparator );
+								spotComparator, spotComparator,
+								maxDist.doubleValue() );
 						linker = new JaqamanLinker< >( creator, refcol, refcol );
+						linker.setSolveByComponents( solveByComponents );
+						linker.setSolver( solverType, solverTolerance );
+						linker.setWarmStart( warmStart, ( warmStart && i > 0 ) ? targetDuals.get( i - 1 ) : null );
 						if ( !linker.checkInput() || !linker.process() )
 						{
 							errorMessage = "Linking frame " + frame0 + " to " + frame1 + ": " + linker.getErrorMessage();
 							aok.set( false );
 							return null;
 						}
+						gap.add( linker.getOptimalityGap() );
+						augmentations.add( linker.getNumberOfAugmentations() );
+						if ( warmStart )
+						{
+							targetDuals.set( i, linker.getTargetDuals() );
+							if ( i > 0 )
+								targetDuals.set( i - 1, null );
+						}
 					}
 					catch (final Exception e)
 					{
 						e.printStackTrace();
+						linker = null;
 					}
 					finally
 					{
@@ -223,61 +328,142 @@ public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizab
 					}
 
 					/*
-					 * Update graph.
+					 * Update graph, or store results for the second phase.
+					 * Edges are collected before taking the graph lock.
 					 */
 
-					edgeCreator.preAddition();
-					try
+					if ( null != linker )
 					{
-						final RefRefMap< V, V > assignment = linker.getResult();
-						final RefDoubleMap< V > assignmentCosts = linker.getAssignmentCosts();
-						final V vref = refcol.createRef();
-						for ( final V source : assignment.keySet() )
-						{
-							final V target = assignment.get( source, vref );
-							final double cost = assignmentCosts.get( source );
-							edgeCreator.createEdge( source, target, cost );
-						}
-						refcol.releaseRef( vref );
-					}
-					catch ( final Exception e )
-					{
-						e.printStackTrace();
-					}
-					finally
-					{
-						edgeCreator.postAddition();
+						final EdgeBatch< V > edgeBatch = new EdgeBatch<>( linker, refcol );
+						if ( batchEdgeCreation )
+							edgeBatches.set( i, edgeBatch );
+						else
+							addEdges( edgeCreator, edgeBatch );
 					}
+
 					statusService.showProgress( progress.incrementAndGet(), framePairs.size() );
 					return null;
 				}
-			} ) );
+			} );
+			futures.add( future );
 
+			// A warm-started frame pair needs the duals of the previous one.
+			if ( warmStart )
+				waitFor( future );
 		}
 
 		for ( final Future< Void > f : futures )
+			waitFor( f );
+		final long endLinking = System.currentTimeMillis();
+		linkingProcessingTime = endLinking - start;
+
+		/*
+		 * Second phase: add all edges at once.
+		 */
+
+		if ( batchEdgeCreation && aok.get() && !isCanceled() )
 		{
+			statusService.showStatus( "Creating links..." );
+			edgeCreator.preAddition();
 			try
 			{
-				f.get();
+				for ( final EdgeBatch< V > edgeBatch : edgeBatches )
+					if ( null != edgeBatch )
+						edgeBatch.addTo( edgeCreator );
 			}
-			catch ( final InterruptedException e )
+			catch ( final Exception e )
 			{
 				e.printStackTrace();
 			}
-			catch ( final ExecutionException e )
+			finally
 			{
-				e.printStackTrace();
+				edgeCreator.postAddition();
 			}
 		}
 		statusService.clearStatus();
 
 		final long end = System.currentTimeMillis();
+		edgeCreationProcessingTime = batchEdgeCreation ? end - endLinking : 0;
 		processingTime = end - start;
+		optimalityGap = gap.sum();
+		nAugmentations = augmentations.sum();
 
 		this.ok = aok.get();
 	}
 
+	private static void waitFor( final Future< Void > future )
+	{
+		try
+		{
+			future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			e.printStackTrace();
+		}
+		catch ( final ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Adds the edges of the specified batch, taking care of locking.
+	 */
+	private static < V > void addEdges( final EdgeCreator< V > edgeCreator, final EdgeBatch< V > edgeBatch )
+	{
+		edgeCreator.preAddition();
+		try
+		{
+			edgeBatch.addTo( edgeCreator );
+		}
+		catch ( final Exception e )
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			edgeCreator.postAddition();
+		}
+	}
+
+	/**
+	 * The edges resulting from the linking of one frame pair, stored so that
+	 * they can be added to the output in one call.
+	 */
+	private static final class EdgeBatch< V >
+	{
+
+		private final RefList< V > sources;
+
+		private final RefList< V > targets;
+
+		private final double[] costs;
+
+		public EdgeBatch( final JaqamanLinker< V, V > linker, final RefCollection< V > refcol )
+		{
+			final RefRefMap< V, V > assignment = linker.getResult();
+			final RefDoubleMap< V > assignmentCosts = linker.getAssignmentCosts();
+			this.sources = RefCollections.createRefList( refcol, assignment.size() );
+			this.targets = RefCollections.createRefList( refcol, assignment.size() );
+			this.costs = new double[ assignment.size() ];
+			final V vref = refcol.createRef();
+			int i = 0;
+			for ( final V source : assignment.keySet() )
+			{
+				sources.add( source );
+				targets.add( assignment.get( source, vref ) );
+				costs[ i++ ] = assignmentCosts.get( source );
+			}
+			refcol.releaseRef( vref );
+		}
+
+		public void addTo( final EdgeCreator< V > edgeCreator )
+		{
+			edgeCreator.createEdges( sources, targets, costs );
+		}
+	}
+
 	private static final boolean checkSettingsValidity( final Map< String, Object > settings, final StringBuilder str )
 	{
 		if ( null == settings )
@@ -295,6 +481,16 @@ public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizab
 		ok = ok & checkFeatureMap( settings, KEY_LINKING_FEATURE_PENALTIES, str );
 		// Others
 		ok = ok & checkParameter( settings, KEY_ALTERNATIVE_LINKING_COST_FACTOR, Double.class, str );
+		if ( settings.containsKey( KEY_BATCH_EDGE_CREATION ) )
+			ok = ok & checkParameter( settings, KEY_BATCH_EDGE_CREATION, Boolean.class, str );
+		if ( settings.containsKey( KEY_SOLVE_BY_COMPONENTS ) )
+			ok = ok & checkParameter( settings, KEY_SOLVE_BY_COMPONENTS, Boolean.class, str );
+		if ( settings.containsKey( KEY_LAP_SOLVER ) )
+			ok = ok & checkEnumParameter( settings, KEY_LAP_SOLVER, LAPSolverType.class, str );
+		if ( settings.containsKey( KEY_LAP_SOLVER_TOLERANCE ) )
+			ok = ok & checkParameter( settings, KEY_LAP_SOLVER_TOLERANCE, Double.class, str );
+		if ( settings.containsKey( KEY_WARM_START ) )
+			ok = ok & checkParameter( settings, KEY_WARM_START, Boolean.class, str );
 
 		// Check keys
 		final List< String > mandatoryKeys = new ArrayList< >();
@@ -305,6 +501,11 @@ public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizab
 		final List< String > optionalKeys = new ArrayList< >();
 		optionalKeys.add( KEY_LINKING_FEATURE_PENALTIES );
 		optionalKeys.add( KEY_DO_LINK_SELECTION );
+		optionalKeys.add( KEY_BATCH_EDGE_CREATION );
+		optionalKeys.add( KEY_SOLVE_BY_COMPONENTS );
+		optionalKeys.add( KEY_LAP_SOLVER );
+		optionalKeys.add( KEY_LAP_SOLVER_TOLERANCE );
+		optionalKeys.add( KEY_WARM_START );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, str );
 
 		return ok;
@@ -327,4 +528,55 @@ public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizab
 	{
 		return processingTime;
 	}
+
+	/**
+	 * Returns the time spent building and solving the cost matrices of all
+	 * frame pairs, in ms. When edges are not created in batch, this includes
+	 * the time spent adding edges.
+	 *
+	 * @return the linking phase duration.
+	 */
+	public long getLinkingProcessingTime()
+	{
+		return linkingProcessingTime;
+	}
+
+	/**
+	 * Returns the time spent adding all edges to the graph in the second phase,
+	 * in ms. Returns 0 when edges are not created in batch.
+	 *
+	 * @return the edge creation phase duration.
+	 */
+	public long getEdgeCreationProcessingTime()
+	{
+		return edgeCreationProcessingTime;
+	}
+
+	/**
+	 * Returns the sum over all frame pairs of the optimality gaps of the LAP
+	 * solver, that is an upper bound of the difference between the total cost
+	 * of the links found and the optimal one. This is 0 for exact solvers,
+	 * and may be positive for the {@link LAPSolverType#AUCTION} solver.
+	 *
+	 * @return the optimality gap.
+	 * @see JaqamanLinker#getOptimalityGap()
+	 */
+	public double getOptimalityGap()
+	{
+		return optimalityGap;
+	}
+
+	/**
+	 * Returns the sum over all frame pairs of the number of augmenting paths
+	 * searched by the LAP solver. This is the costly part of the
+	 * {@link LAPSolverType#JONKER_VOLGENANT} solver, and the part
+	 * warm-starting reduces. Other solvers count for 0.
+	 *
+	 * @return the number of augmentations.
+	 * @see JaqamanLinker#getNumberOfAugmentations()
+	 */
+	public long getNumberOfAugmentations()
+	{
+		return nAugmentations;
+	}
 }
@@ -0,0 +1,240 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.costfunction;
+
+import java.util.Arrays;
+
+import org.mastodon.RefPool;
+import org.mastodon.collection.RefCollection;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+
+import net.imglib2.RealLocalizable;
+
+/**
+ * A block of link targets, whose costs from one source are computed in one
+ * call to {@link CostFunction#linkingCosts(Object, CandidateBlock, double[])}.
+ * <p>
+ * When a target is added, its coordinates are copied in one primitive column
+ * per dimension, and its index in the pool specified at construction is
+ * stored. Cost functions can then compute the costs of the whole block by
+ * reading contiguous arrays. The block is meant to be cleared and refilled
+ * for each source, and is not thread-safe.
+ *
+ * @author Jean-Yves Tinevez
+ * @param <J>
+ *            the type of targets.
+ */
+public class CandidateBlock< J >
+{
+
+	private final RefList< J > targets;
+
+	private final RefPool< J > pool;
+
+	/**
+	 * One column of coordinates per dimension. Empty if the targets are not
+	 * {@link RealLocalizable}.
+	 */
+	private double[][] positions;
+
+	private int[] ids;
+
+	private double[] costs;
+
+	private double[] scratch;
+
+	/**
+	 * Creates a new empty block.
+	 *
+	 * @param collection
+	 *            a collection of the targets, used to create the target list.
+	 * @param pool
+	 *            the pool the target indices are taken from. Can be
+	 *            <code>null</code>, in which case the indices are all
+	 *            <code>-1</code>.
+	 */
+	public CandidateBlock( final RefCollection< J > collection, final RefPool< J > pool )
+	{
+		this.targets = RefCollections.createRefList( collection );
+		this.pool = pool;
+		this.positions = new double[ 0 ][ 0 ];
+		this.ids = new int[ 16 ];
+		this.costs = new double[ 16 ];
+		this.scratch = new double[ 16 ];
+	}
+
+	/**
+	 * Removes all the targets from this block.
+	 */
+	public void clear()
+	{
+		targets.clear();
+	}
+
+	/**
+	 * Adds a target at the end of this block.
+	 *
+	 * @param target
+	 *            the target to add.
+	 */
+	public void add( final J target )
+	{
+		final int i = targets.size();
+		if ( i == ids.length )
+			grow();
+		targets.add( target );
+		ids[ i ] = ( null == pool ) ? -1 : pool.getId( target );
+		if ( target instanceof RealLocalizable )
+		{
+			final RealLocalizable rl = ( RealLocalizable ) target;
+			if ( positions.length != rl.numDimensions() )
+				positions = new double[ rl.numDimensions() ][ ids.length ];
+			for ( int d = 0; d < positions.length; d++ )
+				positions[ d ][ i ] = rl.getDoublePosition( d );
+		}
+	}
+
+	private void grow()
+	{
+		final int capacity = 2 * ids.length;
+		ids = Arrays.copyOf( ids, capacity );
+		costs = new double[ capacity ];
+		scratch = new double[ capacity ];
+		for ( int d = 0; d < positions.length; d++ )
+			positions[ d ] = Arrays.copyOf( positions[ d ], capacity );
+	}
+
+	/**
+	 * Returns the number of targets in this block.
+	 *
+	 * @return the number of targets.
+	 */
+	public int size()
+	{
+		return targets.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return targets.isEmpty();
+	}
+
+	/**
+	 * Returns the target at the specified index.
+	 *
+	 * @param i
+	 *            the index of the target in this block.
+	 * @param ref
+	 *            a reference object to use.
+	 * @return the target.
+	 */
+	public J get( final int i, final J ref )
+	{
+		return targets.get( i, ref );
+	}
+
+	public J createRef()
+	{
+		return targets.createRef();
+	}
+
+	public void releaseRef( final J ref )
+	{
+		targets.releaseRef( ref );
+	}
+
+	/**
+	 * Returns the number of dimensions of the coordinate columns, or 0 if the
+	 * targets are not {@link RealLocalizable}.
+	 *
+	 * @return the number of dimensions.
+	 */
+	public int numDimensions()
+	{
+		return positions.length;
+	}
+
+	/**
+	 * Returns the coordinates of the targets along the specified dimension.
+	 * The array is indexed by target index in this block, and can be longer
+	 * than the block.
+	 *
+	 * @param d
+	 *            the dimension.
+	 * @return the coordinate column.
+	 */
+	public double[] getPositions( final int d )
+	{
+		return positions[ d ];
+	}
+
+	/**
+	 * Returns the pool indices of the targets. The array is indexed by target
+	 * index in this block, and can be longer than the block.
+	 *
+	 * @return the pool indices.
+	 */
+	public int[] getIds()
+	{
+		return ids;
+	}
+
+	/**
+	 * Returns the pool the target indices are taken from.
+	 *
+	 * @return the pool, or <code>null</code>.
+	 */
+	public RefPool< J > getPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Returns an array to write the costs of this block in, at least as long
+	 * as this block. It is reused from one fill of the block to the next.
+	 *
+	 * @return the cost array.
+	 */
+	public double[] getCosts()
+	{
+		return costs;
+	}
+
+	/**
+	 * Returns a scratch array cost functions can use during a block
+	 * computation, at least as long as this block.
+	 *
+	 * @return the scratch array.
+	 */
+	public double[] getScratch()
+	{
+		return scratch;
+	}
+}
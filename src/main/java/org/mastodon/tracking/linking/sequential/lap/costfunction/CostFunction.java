@@ -53,4 +53,29 @@ public interface CostFunction< K, J >
 	 */
 	public double linkingCost( K source, J target );
 
+	/**
+	 * Computes the costs to link one source to a block of targets. The cost
+	 * to link the source to the target at index <code>i</code> in the block
+	 * is stored at index <code>i</code> in the cost array.
+	 * <p>
+	 * The default implementation calls {@link #linkingCost(Object, Object)}
+	 * for each target. Implementations can override it to compute the costs
+	 * from the coordinate columns and pool indices of the block.
+	 *
+	 * @param source
+	 *            the source object.
+	 * @param targets
+	 *            the block of targets.
+	 * @param costs
+	 *            the array to write the costs in. Must be at least as long as
+	 *            the block.
+	 */
+	public default void linkingCosts( final K source, final CandidateBlock< J > targets, final double[] costs )
+	{
+		final J ref = targets.createRef();
+		for ( int i = 0; i < targets.size(); i++ )
+			costs[ i ] = linkingCost( source, targets.get( i, ref ) );
+		targets.releaseRef( ref );
+	}
+
 }
@@ -0,0 +1,267 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.costfunction;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.mastodon.RefPool;
+import org.mastodon.feature.FeatureModel;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.feature.FeatureProjectionKey;
+import org.mastodon.tracking.linking.LinkingUtils;
+
+import net.imglib2.RealLocalizable;
+
+/**
+ * Computes the same costs as {@link FeaturePenaltiesCostFunction}, but on a
+ * snapshot of the penalized feature values.
+ * <p>
+ * The position and the values of each penalized feature projection are
+ * copied, for the vertices passed to {@link #prepare(Iterable)}, in primitive
+ * <code>double[]</code> columns indexed by the vertex pool index. Values that
+ * are not set are stored as <code>NaN</code>. The feature weights are stored
+ * in a flat array. The cost of a pair of prepared vertices is then computed
+ * without map lookups nor calls to the feature projections. Vertices that were
+ * not prepared fall back on reading the feature projections, so the costs are
+ * always the ones of {@link FeaturePenaltiesCostFunction}.
+ * <p>
+ * The snapshot must be prepared before the cost function is used, and not
+ * modified while it is used. Positions and feature values modified after
+ * preparation are not seen by this cost function, except for the target
+ * positions of a {@link CandidateBlock}, which are copied when the block is
+ * filled.
+ *
+ * @author Jean-Yves Tinevez
+ * @param <V>
+ *            the type of the vertices to compute cost for.
+ */
+public class PreparedFeaturePenaltiesCostFunction< V extends RealLocalizable > implements CostFunction< V, V >
+{
+
+	private final RefPool< V > pool;
+
+	private final FeatureProjection< V >[] projections;
+
+	/**
+	 * The feature weights, already multiplied by 1.5.
+	 */
+	private final double[] weights;
+
+	/**
+	 * One column of feature values per projection, indexed by pool index.
+	 */
+	private final double[][] columns;
+
+	/**
+	 * One column of coordinates per dimension, indexed by pool index. Empty
+	 * until the first vertex is prepared.
+	 */
+	private double[][] positions;
+
+	/**
+	 * Whether the vertex with a given pool index has been prepared.
+	 */
+	private boolean[] prepared;
+
+	@SuppressWarnings( "unchecked" )
+	public PreparedFeaturePenaltiesCostFunction( final Map< FeatureProjectionKey, Double > featurePenalties, final FeatureModel featureModel, final RefPool< V > pool )
+	{
+		this.pool = pool;
+		final Map< FeatureProjection< V >, Double > map = LinkingUtils.penaltyToProjectionMap( featurePenalties, featureModel );
+		this.projections = new FeatureProjection[ map.size() ];
+		this.weights = new double[ map.size() ];
+		int f = 0;
+		for ( final FeatureProjection< V > projection : map.keySet() )
+		{
+			projections[ f ] = projection;
+			weights[ f ] = 1.5 * map.get( projection ).doubleValue();
+			f++;
+		}
+		this.columns = new double[ projections.length ][ 0 ];
+		this.positions = new double[ 0 ][ 0 ];
+		this.prepared = new boolean[ 0 ];
+	}
+
+	/**
+	 * Copies the position and the penalized feature values of the specified
+	 * vertices in the snapshot. Can be called several times, for instance once per
+	 * time-point. Vertices already in the snapshot are skipped.
+	 *
+	 * @param vertices
+	 *            the vertices that will be passed to this cost function.
+	 */
+	public void prepare( final Iterable< V > vertices )
+	{
+		for ( final V v : vertices )
+		{
+			if ( positions.length == 0 )
+				positions = new double[ v.numDimensions() ][ prepared.length ];
+			final int id = pool.getId( v );
+			if ( isPrepared( id ) )
+				continue;
+			if ( id >= prepared.length )
+				grow( id + 1 );
+			for ( int d = 0; d < positions.length; d++ )
+				positions[ d ][ id ] = v.getDoublePosition( d );
+			for ( int f = 0; f < projections.length; f++ )
+				columns[ f ][ id ] = projections[ f ].isSet( v ) ? projections[ f ].value( v ) : Double.NaN;
+			prepared[ id ] = true;
+		}
+	}
+
+	private void grow( final int minCapacity )
+	{
+		final int capacity = Math.max( minCapacity, prepared.length + ( prepared.length >> 1 ) );
+		prepared = Arrays.copyOf( prepared, capacity );
+		for ( int f = 0; f < columns.length; f++ )
+			columns[ f ] = Arrays.copyOf( columns[ f ], capacity );
+		for ( int d = 0; d < positions.length; d++ )
+			positions[ d ] = Arrays.copyOf( positions[ d ], capacity );
+	}
+
+	private boolean isPrepared( final int id )
+	{
+		return id < prepared.length && prepared[ id ];
+	}
+
+	@Override
+	public double linkingCost( final V source, final V target )
+	{
+		final int si = pool.getId( source );
+		final int ti = pool.getId( target );
+		if ( !isPrepared( si ) || !isPrepared( ti ) )
+			return unpreparedCost( source, target );
+
+		double d2 = 0.;
+		for ( int d = 0; d < positions.length; d++ )
+		{
+			final double[] position = positions[ d ];
+			final double dx = position[ ti ] - position[ si ];
+			d2 += ( dx * dx );
+		}
+		double penalty = 1.;
+		for ( int f = 0; f < columns.length; f++ )
+		{
+			final double[] column = columns[ f ];
+			final double a = column[ si ];
+			final double b = column[ ti ];
+			if ( a == -b )
+				continue;
+			final double ndiff = Math.abs( a - b ) / ( Math.abs( a + b ) / 2 );
+			// NaN when a value is not set.
+			if ( ndiff == ndiff )
+				penalty += weights[ f ] * ndiff;
+		}
+		return d2 * penalty * penalty;
+	}
+
+	@Override
+	public void linkingCosts( final V source, final CandidateBlock< V > targets, final double[] costs )
+	{
+		final int si = pool.getId( source );
+		final int nDims = positions.length;
+		if ( !isPrepared( si ) || targets.getPool() != pool || targets.numDimensions() != nDims )
+		{
+			CostFunction.super.linkingCosts( source, targets, costs );
+			return;
+		}
+
+		// Square distances, one pass per coordinate column of the block.
+		final int n = targets.size();
+		Arrays.fill( costs, 0, n, 0. );
+		for ( int d = 0; d < nDims; d++ )
+		{
+			final double s = positions[ d ][ si ];
+			final double[] column = targets.getPositions( d );
+			for ( int i = 0; i < n; i++ )
+			{
+				final double dx = column[ i ] - s;
+				costs[ i ] += ( dx * dx );
+			}
+		}
+
+		// Penalties, one pass per feature column.
+		final int[] ids = targets.getIds();
+		final double[] penalties = targets.getScratch();
+		Arrays.fill( penalties, 0, n, 1. );
+		for ( int f = 0; f < columns.length; f++ )
+		{
+			final double[] column = columns[ f ];
+			final double weight = weights[ f ];
+			final double a = column[ si ];
+			for ( int i = 0; i < n; i++ )
+			{
+				final int ti = ids[ i ];
+				if ( !isPrepared( ti ) )
+					continue;
+				final double b = column[ ti ];
+				if ( a == -b )
+					continue;
+				final double ndiff = Math.abs( a - b ) / ( Math.abs( a + b ) / 2 );
+				// NaN when a value is not set.
+				if ( ndiff == ndiff )
+					penalties[ i ] += weight * ndiff;
+			}
+		}
+
+		V ref = null;
+		for ( int i = 0; i < n; i++ )
+		{
+			if ( isPrepared( ids[ i ] ) )
+			{
+				costs[ i ] = costs[ i ] * penalties[ i ] * penalties[ i ];
+				continue;
+			}
+			if ( null == ref )
+				ref = targets.createRef();
+			costs[ i ] = unpreparedCost( source, targets.get( i, ref ) );
+		}
+		if ( null != ref )
+			targets.releaseRef( ref );
+	}
+
+	/**
+	 * Returns the cost computed from the feature projections, for vertices
+	 * that have not been prepared.
+	 */
+	private double unpreparedCost( final V source, final V target )
+	{
+		final double d2 = LinkingUtils.squareDistance( source, target );
+		double penalty = 1.;
+		for ( int f = 0; f < projections.length; f++ )
+		{
+			final double ndiff = LinkingUtils.normalizeDiffCost( source, target, projections[ f ] );
+			if ( Double.isNaN( ndiff ) )
+				continue;
+			penalty += weights[ f ] * ndiff;
+		}
+		return d2 * penalty * penalty;
+	}
+}
@@ -28,6 +28,8 @@
  */
 package org.mastodon.tracking.linking.sequential.lap.costfunction;
 
+import java.util.Arrays;
+
 import org.mastodon.tracking.linking.LinkingUtils;
 
 import net.imglib2.RealLocalizable;
@@ -49,4 +51,29 @@ public class SquareDistCostFunction< K extends RealLocalizable > implements Cost
 		return LinkingUtils.squareDistance( source, target );
 	}
 
+	@Override
+	public void linkingCosts( final K source, final CandidateBlock< K > targets, final double[] costs )
+	{
+		final int nDims = source.numDimensions();
+		if ( targets.numDimensions() != nDims )
+		{
+			CostFunction.super.linkingCosts( source, targets, costs );
+			return;
+		}
+
+		// One pass per dimension over the coordinate column of the block.
+		final int n = targets.size();
+		Arrays.fill( costs, 0, n, 0. );
+		for ( int d = 0; d < nDims; d++ )
+		{
+			final double s = source.getDoublePosition( d );
+			final double[] column = targets.getPositions( d );
+			for ( int i = 0; i < n; i++ )
+			{
+				final double dx = column[ i ] - s;
+				costs[ i ] += ( dx * dx );
+			}
+		}
+	}
+
 }
@@ -28,11 +28,15 @@
  */
 package org.mastodon.tracking.linking.sequential.lap.costmatrix;
 
+import static org.mastodon.tracking.linking.LinkingUtils.tryGetRefPool;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
+import org.mastodon.RefPool;
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefList;
 import org.mastodon.collection.RefSet;
@@ -48,6 +52,12 @@ import net.imglib2.util.Util;
 /**
  * A {@link CostMatrixCreatorOp} that build a cost matrix from 3 lists
  * containing the sources, the targets and the associated costs.
+ * <p>
+ * If the row and column lists are backed by a {@link RefPool}, the matrix is
+ * built from the pool indices of the objects with a
+ * {@link SparseCostMatrixBuilder}, which does not allocate objects per
+ * candidate. Otherwise, the candidates are sorted as boxed assignments. Both
+ * paths yield the same matrix.
  *
  * @author Jean-Yves Tinevez - 2014
  *
@@ -127,6 +137,76 @@ public class DefaultCostMatrixCreatorOp< K, J >
 			return null;
 		}
 
+		final RefPool< K > rowPool = tryGetRefPool( rows );
+		final RefPool< J > colPool = tryGetRefPool( cols );
+		final SparseCostMatrix scm = ( null != rowPool && null != colPool )
+				? buildFromPoolIndices( rowPool, colPool )
+				: buildFromAssignments();
+		if ( null == scm )
+			return null;
+
+		alternativeCost = computeAlternativeCosts();
+		return scm;
+	}
+
+	/**
+	 * Builds the cost matrix from the pool indices of the row and column
+	 * objects.
+	 */
+	private SparseCostMatrix buildFromPoolIndices( final RefPool< K > rowPool, final RefPool< J > colPool )
+	{
+		final int[] rowIds = new int[ rows.size() ];
+		int i = 0;
+		for ( final K rowObj : rows )
+			rowIds[ i++ ] = rowPool.getId( rowObj );
+
+		final int[] colIds = new int[ cols.size() ];
+		i = 0;
+		for ( final J colObj : cols )
+			colIds[ i++ ] = colPool.getId( colObj );
+
+		final SparseCostMatrixBuilder builder = new SparseCostMatrixBuilder( rowIds, colIds, costs );
+
+		/*
+		 * Sort unique objects with the comparators, then rank them. Ranks are
+		 * indexed by the position of the object index in the sorted unique
+		 * indices, so that no array is sized by the pool.
+		 */
+		final int[] uniqueRowIds = builder.getUniqueRows();
+		uniqueRows = RefCollections.createRefList( rows, uniqueRowIds.length );
+		final K kref = rowPool.createRef();
+		for ( final int id : uniqueRowIds )
+			uniqueRows.add( rowPool.getObject( id, kref ) );
+		rowPool.releaseRef( kref );
+		uniqueRows.sort( rowComparator );
+		final int[] rowRank = new int[ uniqueRowIds.length ];
+		i = 0;
+		for ( final K rowObj : uniqueRows )
+			rowRank[ Arrays.binarySearch( uniqueRowIds, rowPool.getId( rowObj ) ) ] = i++;
+
+		final int[] uniqueColIds = builder.getUniqueCols();
+		uniqueCols = RefCollections.createRefList( cols, uniqueColIds.length );
+		final J jref = colPool.createRef();
+		for ( final int id : uniqueColIds )
+			uniqueCols.add( colPool.getObject( id, jref ) );
+		colPool.releaseRef( jref );
+		uniqueCols.sort( colComparator );
+		final int[] colRank = new int[ uniqueColIds.length ];
+		i = 0;
+		for ( final J colObj : uniqueCols )
+			colRank[ Arrays.binarySearch( uniqueColIds, colPool.getId( colObj ) ) ] = i++;
+
+		final SparseCostMatrix scm = builder.build( rowRank, colRank );
+		if ( null == scm )
+			errorMessage = BASE_ERROR_MESSAGE + builder.getErrorMessage();
+		return scm;
+	}
+
+	/**
+	 * Builds the cost matrix by sorting one assignment object per candidate.
+	 */
+	private SparseCostMatrix buildFromAssignments()
+	{
 		final RefSet< K > tmpSet1 = RefCollections.createRefSet( rows, rows.size() );
 		tmpSet1.addAll( rows );
 		uniqueRows = RefCollections.createRefList( rows, tmpSet1.size() );
@@ -191,9 +271,7 @@ public class DefaultCostMatrixCreatorOp< K, J >
 		}
 		number[ currentRow ] = nOfEl + 1;
 
-		final SparseCostMatrix scm = new SparseCostMatrix( cc, kk, number, nCols );
-		alternativeCost = computeAlternativeCosts();
-		return scm;
+		return new SparseCostMatrix( cc, kk, number, nCols );
 	}
 
 	protected double computeAlternativeCosts()
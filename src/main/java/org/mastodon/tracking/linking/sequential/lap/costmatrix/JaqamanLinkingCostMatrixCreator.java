@@ -28,11 +28,16 @@
  */
 package org.mastodon.tracking.linking.sequential.lap.costmatrix;
 
+import static org.mastodon.tracking.linking.LinkingUtils.tryGetRefPool;
+
 import java.util.Comparator;
 
 import org.mastodon.collection.RefCollection;
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefList;
+import org.mastodon.kdtree.IncrementalNearestNeighborSearch;
+import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.tracking.linking.sequential.lap.costfunction.CandidateBlock;
 import org.mastodon.tracking.linking.sequential.lap.costfunction.CostFunction;
 import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
 import org.scijava.ItemIO;
@@ -42,12 +47,25 @@ import org.scijava.plugin.Plugin;
 import gnu.trove.list.array.TDoubleArrayList;
 import net.imagej.ops.special.function.AbstractNullaryFunctionOp;
 import net.imagej.ops.special.function.Functions;
+import net.imglib2.RealLocalizable;
 import net.imglib2.algorithm.Benchmark;
 
 /**
  * A {@link CostMatrixCreatorOp} that can generate a cost matrix from a list of
  * sources, a list of targets and a {@link CostFunction} that can generate a
  * cost for any combination.
+ * <p>
+ * By default, the cost of every source-target combination is computed, and
+ * only the ones below the cost threshold are retained. If a positive search
+ * radius is specified and the targets are stored in a {@link SpatialIndex},
+ * candidates are instead collected with a radius query around each source, so
+ * that the number of costs computed grows with the number of neighbors rather
+ * than with the product of the number of sources and targets. The sources must
+ * then be {@link RealLocalizable}s. The resulting matrix is identical to the
+ * all-pairs one provided that the cost of a pair located farther than the
+ * search radius is never below the cost threshold. This is the case for the
+ * square-distance and feature-penalties cost functions, with a search radius
+ * equal to the square root of the cost threshold.
  *
  * @author Jean-Yves Tinevez - 2014
  *
@@ -94,6 +112,9 @@ public class JaqamanLinkingCostMatrixCreator< K, J >
 	@Parameter( type = ItemIO.INPUT )
 	private  Comparator< J > targetComparator;
 
+	@Parameter( type = ItemIO.INPUT, required = false )
+	private double searchRadius = Double.NaN;
+
 	@Parameter( type = ItemIO.OUTPUT)
 	private RefList< K > sourceList;
 
@@ -127,19 +148,18 @@ public class JaqamanLinkingCostMatrixCreator< K, J >
 		final RefList< J > accTargets = RefCollections.createRefList( targetPool );
 		final TDoubleArrayList costs = new TDoubleArrayList();
 
-		for ( final K source : sources )
+		if ( searchRadius > 0. && targets instanceof SpatialIndex )
 		{
-			for ( final J target : targets )
+			if ( !( sources.iterator().next() instanceof RealLocalizable ) )
 			{
-
-				final double cost = costFunction.linkingCost( source, target );
-				if ( cost < costThreshold )
-				{
-					accSources.add( source );
-					accTargets.add( target );
-					costs.add( cost );
-				}
+				errorMessage = BASE_ERROR_MSG + "Sources must be RealLocalizable to be used with a search radius.";
+				return null;
 			}
+			collectNeighborCandidates( accSources, accTargets, costs );
+		}
+		else
+		{
+			collectAllCandidates( accSources, accTargets, costs );
 		}
 		costs.trimToSize();
 
@@ -190,6 +210,79 @@ public class JaqamanLinkingCostMatrixCreator< K, J >
 		return scm;
 	}
 
+	/**
+	 * Computes the costs of all source-target pairs and keeps the ones below
+	 * the cost threshold. The costs of each source are computed in one block
+	 * over all the targets.
+	 */
+	private void collectAllCandidates( final RefList< K > accSources, final RefList< J > accTargets, final TDoubleArrayList costs )
+	{
+		final CandidateBlock< J > block = new CandidateBlock<>( targetPool, tryGetRefPool( targetPool ) );
+		for ( final J target : targets )
+			block.add( target );
+		final double[] blockCosts = block.getCosts();
+		final J ref = block.createRef();
+		for ( final K source : sources )
+		{
+			costFunction.linkingCosts( source, block, blockCosts );
+			accept( source, block, blockCosts, ref, accSources, accTargets, costs );
+		}
+		block.releaseRef( ref );
+	}
+
+	/**
+	 * Computes the costs of the source-target pairs that are closer than the
+	 * search radius, and keeps the ones below the cost threshold. The targets
+	 * are queried through their spatial index, and the costs of each source
+	 * are computed in one block over its neighbors.
+	 */
+	private void collectNeighborCandidates( final RefList< K > accSources, final RefList< J > accTargets, final TDoubleArrayList costs )
+	{
+		@SuppressWarnings( "unchecked" )
+		final SpatialIndex< J > si = ( SpatialIndex< J > ) targets;
+		final IncrementalNearestNeighborSearch< J > search = si.getIncrementalNearestNeighborSearch();
+		final double r2 = searchRadius * searchRadius;
+		final CandidateBlock< J > block = new CandidateBlock<>( targetPool, tryGetRefPool( targetPool ) );
+		final J ref = block.createRef();
+		for ( final K source : sources )
+		{
+			block.clear();
+			search.search( ( RealLocalizable ) source );
+			while ( search.hasNext() )
+			{
+				final J target = search.next();
+				if ( search.getSquareDistance() > r2 )
+					break;
+				block.add( target );
+			}
+			if ( block.isEmpty() )
+				continue;
+
+			final double[] blockCosts = block.getCosts();
+			costFunction.linkingCosts( source, block, blockCosts );
+			accept( source, block, blockCosts, ref, accSources, accTargets, costs );
+		}
+		block.releaseRef( ref );
+	}
+
+	/**
+	 * Adds the pairs of a block whose cost is below the cost threshold to the
+	 * candidate lists.
+	 */
+	private void accept( final K source, final CandidateBlock< J > block, final double[] blockCosts, final J ref, final RefList< K > accSources, final RefList< J > accTargets, final TDoubleArrayList costs )
+	{
+		for ( int i = 0; i < block.size(); i++ )
+		{
+			final double cost = blockCosts[ i ];
+			if ( cost < costThreshold )
+			{
+				accSources.add( source );
+				accTargets.add( block.get( i, ref ) );
+				costs.add( cost );
+			}
+		}
+	}
+
 	@Override
 	public String getErrorMessage()
 	{
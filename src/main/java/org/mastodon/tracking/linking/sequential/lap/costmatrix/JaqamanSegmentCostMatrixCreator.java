@@ -36,8 +36,11 @@ import static org.mastodon.tracking.linking.LinkerKeys.KEY_CUTOFF_PERCENTILE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER_TOLERANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SOLVE_BY_COMPONENTS;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkingUtils.checkFeatureMap;
@@ -47,9 +50,12 @@ import static org.mastodon.tracking.linking.LinkingUtils.checkParameter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.mastodon.RefPool;
+import org.mastodon.collection.RefCollection;
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefList;
 import org.mastodon.feature.FeatureModel;
@@ -57,15 +63,21 @@ import org.mastodon.feature.FeatureProjectionKey;
 import org.mastodon.graph.Edge;
 import org.mastodon.graph.ReadOnlyGraph;
 import org.mastodon.graph.Vertex;
+import org.mastodon.kdtree.IncrementalNearestNeighborSearch;
 import org.mastodon.spatial.HasTimepoint;
-import org.mastodon.tracking.linking.LinkingUtils;
+import org.mastodon.spatial.SpatialIndexImp;
+import org.mastodon.tracking.linking.sequential.lap.costfunction.CandidateBlock;
 import org.mastodon.tracking.linking.sequential.lap.costfunction.CostFunction;
+import org.mastodon.tracking.linking.sequential.lap.costfunction.PreparedFeaturePenaltiesCostFunction;
+import org.mastodon.tracking.linking.sequential.lap.costfunction.SquareDistCostFunction;
 import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import net.imagej.ops.special.function.AbstractNullaryFunctionOp;
 import net.imagej.ops.special.function.Functions;
 import net.imglib2.RealLocalizable;
@@ -85,6 +97,11 @@ import net.imglib2.algorithm.Benchmark;
  * non-infinite costs.
  * <li>Costs are based on square distance +/- feature penalties.
  * </ul>
+ * <p>
+ * Segment starts and middle points are bucketed per time-point in k-d trees.
+ * Candidates for a source are then collected with radius queries in the
+ * time-points allowed by the event type, instead of iterating over all the
+ * possible targets.
  *
  * @author Jean-Yves Tinevez - 2014 - 2017
  * @param <V>
@@ -142,12 +159,11 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		 * Extract parameters
 		 */
 
-		@SuppressWarnings( "unchecked" )
-		final Class< V > vertexClass = ( Class< V > ) graph.vertexRef().getClass();
+		// Penalized feature values are read from arrays indexed by pool index.
+		final RefPool< V > vertexPool = graph.getGraphIdBimap().vertexIdBimap();
 		// Gap closing.
 		@SuppressWarnings( "unchecked" )
 		final Map< FeatureProjectionKey, Double > gcFeaturePenalties = ( Map< FeatureProjectionKey, Double > ) settings.get( KEY_GAP_CLOSING_FEATURE_PENALTIES );
-		final CostFunction< V, V > gcCostFunction = LinkingUtils.getCostFunctionFor( gcFeaturePenalties, featureModel, vertexClass );
 		final int maxFrameInterval = ( Integer ) settings.get( KEY_GAP_CLOSING_MAX_FRAME_GAP );
 		final double gcMaxDistance = ( Double ) settings.get( KEY_GAP_CLOSING_MAX_DISTANCE );
 		final double gcCostThreshold = gcMaxDistance * gcMaxDistance;
@@ -156,7 +172,6 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		// Merging
 		@SuppressWarnings( "unchecked" )
 		final Map< FeatureProjectionKey, Double > mFeaturePenalties = ( Map< FeatureProjectionKey, Double > ) settings.get( KEY_MERGING_FEATURE_PENALTIES );
-		final CostFunction< V, V > mCostFunction = LinkingUtils.getCostFunctionFor( mFeaturePenalties, featureModel, vertexClass );
 		final double mMaxDistance = ( Double ) settings.get( KEY_MERGING_MAX_DISTANCE );
 		final double mCostThreshold = mMaxDistance * mMaxDistance;
 		final boolean allowMerging = ( Boolean ) settings.get( KEY_ALLOW_TRACK_MERGING );
@@ -164,7 +179,6 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		// Splitting
 		@SuppressWarnings( "unchecked" )
 		final Map< FeatureProjectionKey, Double > sFeaturePenalties = ( Map< FeatureProjectionKey, Double > ) settings.get( KEY_SPLITTING_FEATURE_PENALTIES );
-		final CostFunction< V, V > sCostFunction = LinkingUtils.getCostFunctionFor( sFeaturePenalties, featureModel, vertexClass );
 		final boolean allowSplitting = ( Boolean ) settings.get( KEY_ALLOW_TRACK_SPLITTING );
 		final double sMaxDistance = ( Double ) settings.get( KEY_SPLITTING_MAX_DISTANCE );
 		final double sCostThreshold = sMaxDistance * sMaxDistance;
@@ -208,6 +222,21 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 			allMiddles = Collections.emptyList();
 		}
 
+		/*
+		 * Cost functions, prepared only for the vertices of the events
+		 * allowed. Events with equal feature penalties share one snapshot.
+		 */
+		final Map< Map< FeatureProjectionKey, Double >, PreparedFeaturePenaltiesCostFunction< V > > prepared = new HashMap<>();
+		final CostFunction< V, V > gcCostFunction = allowGapClosing
+				? preparedCostFunction( gcFeaturePenalties, featureModel, vertexPool, prepared, segmentEnds, segmentStarts )
+				: null;
+		final CostFunction< V, V > mCostFunction = allowMerging
+				? preparedCostFunction( mFeaturePenalties, featureModel, vertexPool, prepared, segmentEnds, allMiddles )
+				: null;
+		final CostFunction< V, V > sCostFunction = allowSplitting
+				? preparedCostFunction( sFeaturePenalties, featureModel, vertexPool, prepared, allMiddles, segmentStarts )
+				: null;
+
 		/*
 		 * Sources and targets.
 		 */
@@ -215,6 +244,20 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		final List< V > targets = RefCollections.createRefList( graph.vertices() );
 		// Corresponding costs.
 		final TDoubleArrayList linkCosts = new TDoubleArrayList();
+		// Targets of the current source, whose costs are computed in one block.
+		final CandidateBlock< V > block = new CandidateBlock<>( graph.vertices(), vertexPool );
+		final V ref = block.createRef();
+
+		/*
+		 * Bucket the targets per time-point, so that we can query them
+		 * spatially.
+		 */
+		final TimepointBuckets< V > startBuckets = ( allowGapClosing || allowSplitting )
+				? new TimepointBuckets<>( segmentStarts, graph.vertices(), vertexPool )
+				: null;
+		final TimepointBuckets< V > middleBuckets = allowMerging
+				? new TimepointBuckets<>( allMiddles, graph.vertices(), vertexPool )
+				: null;
 
 		/*
 		 * A. We iterate over all segment ends, targeting 1st the segment starts
@@ -226,88 +269,43 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 			final int sourceFrame = source.getTimepoint();
 
 			/*
-			 * Iterate over segment starts - GAP-CLOSING.
+			 * Query segment starts - GAP-CLOSING. Frame interval must be
+			 * within user specification.
 			 */
 
 			if ( allowGapClosing )
 			{
-				for ( final V target : segmentStarts )
-				{
-					// Check frame interval, must be within user
-					// specification.
-					final int targetFrame = target.getTimepoint();
-					final int tdiff = targetFrame - sourceFrame;
-					if ( tdiff < 1 || tdiff > maxFrameInterval )
-						continue;
-
-					// Check max distance
-					final double cost = gcCostFunction.linkingCost( source, target );
-					if ( cost > gcCostThreshold )
-						continue;
-
-					sources.add( source );
-					targets.add( target );
-					linkCosts.add( cost );
-				}
-
+				for ( int tdiff = 1; tdiff <= maxFrameInterval; tdiff++ )
+					collectCandidates( source, startBuckets.get( sourceFrame + tdiff ),
+							gcCostFunction, gcCostThreshold, block, ref, sources, targets, linkCosts );
 			}
 
 			/*
-			 * Iterate over middle points - MERGING.
+			 * Query middle points - MERGING. Frame interval must be 1.
 			 */
 
 			if ( allowMerging )
 			{
-				for ( final V target : allMiddles )
-				{
-					// Check frame interval, must be 1.
-					final int targetFrame = target.getTimepoint();
-					final int tdiff = targetFrame - sourceFrame;
-					if ( tdiff != 1 )
-						continue;
-
-					// Check max distance
-					final double cost = mCostFunction.linkingCost( source, target );
-					if ( cost > mCostThreshold )
-						continue;
-
-					sources.add( source );
-					targets.add( target );
-					linkCosts.add( cost );
-				}
+				collectCandidates( source, middleBuckets.get( sourceFrame + 1 ),
+						mCostFunction, mCostThreshold, block, ref, sources, targets, linkCosts );
 			}
 		}
 
 		/*
-		 * Iterate over middle points targeting segment starts - SPLITTING
+		 * Iterate over middle points targeting segment starts - SPLITTING.
+		 * Frame interval must be 1.
 		 */
 		if ( allowSplitting )
 		{
 			for ( final V source : allMiddles )
 			{
-
-				final int sourceFrame = source.getTimepoint();
-				for ( final V target : segmentStarts )
-				{
-
-					// Check frame interval, must be 1.
-					final int targetFrame = target.getTimepoint();
-					final int tdiff = targetFrame - sourceFrame;
-					if ( tdiff != 1 )
-						continue;
-
-					// Check max distance
-					final double cost = sCostFunction.linkingCost( source, target );
-					if ( cost > sCostThreshold )
-						continue;
-
-					sources.add( source );
-					targets.add( target );
-					linkCosts.add( cost );
-				}
+				collectCandidates( source, startBuckets.get( source.getTimepoint() + 1 ),
+						sCostFunction, sCostThreshold, block, ref, sources, targets, linkCosts );
 			}
 		}
 
+		block.releaseRef( ref );
+
 		/*
 		 * Build a sparse cost matrix from this. If the accepted costs are not
 		 * empty.
@@ -393,6 +391,126 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		return errorMessage;
 	}
 
+	/**
+	 * Returns a cost function for the specified feature penalties, prepared
+	 * for the specified sources and targets. If a cost function was already
+	 * prepared for equal penalties, it is also prepared for these vertices
+	 * and returned.
+	 */
+	private static < V extends RealLocalizable > CostFunction< V, V > preparedCostFunction(
+			final Map< FeatureProjectionKey, Double > featurePenalties,
+			final FeatureModel featureModel,
+			final RefPool< V > vertexPool,
+			final Map< Map< FeatureProjectionKey, Double >, PreparedFeaturePenaltiesCostFunction< V > > prepared,
+			final Iterable< V > sources,
+			final Iterable< V > targets )
+	{
+		if ( null == featurePenalties || featurePenalties.isEmpty() )
+			return new SquareDistCostFunction<>();
+
+		PreparedFeaturePenaltiesCostFunction< V > costFunction = prepared.get( featurePenalties );
+		if ( null == costFunction )
+		{
+			costFunction = new PreparedFeaturePenaltiesCostFunction<>( featurePenalties, featureModel, vertexPool );
+			prepared.put( featurePenalties, costFunction );
+		}
+		costFunction.prepare( sources );
+		costFunction.prepare( targets );
+		return costFunction;
+	}
+
+	/**
+	 * Adds to the candidate lists all the targets returned by the specified
+	 * search whose cost is below the cost threshold. The search radius is
+	 * derived from the cost threshold, which assumes that a cost is never
+	 * smaller than the square distance, as for the square-distance and the
+	 * feature-penalties cost functions. The costs are computed in one block
+	 * over the targets found by the search.
+	 */
+	private static < V extends RealLocalizable > void collectCandidates(
+			final V source,
+			final IncrementalNearestNeighborSearch< V > search,
+			final CostFunction< V, V > costFunction,
+			final double costThreshold,
+			final CandidateBlock< V > block,
+			final V ref,
+			final List< V > sources,
+			final List< V > targets,
+			final TDoubleArrayList linkCosts )
+	{
+		if ( null == search )
+			return;
+
+		block.clear();
+		search.search( source );
+		while ( search.hasNext() )
+		{
+			final V target = search.next();
+			if ( search.getSquareDistance() > costThreshold )
+				break;
+			block.add( target );
+		}
+		if ( block.isEmpty() )
+			return;
+
+		final double[] costs = block.getCosts();
+		costFunction.linkingCosts( source, block, costs );
+		for ( int i = 0; i < block.size(); i++ )
+		{
+			// Check max distance
+			final double cost = costs[ i ];
+			if ( cost > costThreshold )
+				continue;
+
+			sources.add( source );
+			targets.add( block.get( i, ref ) );
+			linkCosts.add( cost );
+		}
+	}
+
+	/**
+	 * Stores vertices in one k-d tree per time-point, and exposes a search for
+	 * each of them.
+	 */
+	private static final class TimepointBuckets< V extends HasTimepoint & RealLocalizable >
+	{
+
+		private final TIntObjectHashMap< IncrementalNearestNeighborSearch< V > > searches;
+
+		public TimepointBuckets( final Iterable< V > vertices, final RefCollection< V > pool, final RefPool< V > vertexPool )
+		{
+			final TIntObjectHashMap< RefList< V > > buckets = new TIntObjectHashMap<>();
+			for ( final V v : vertices )
+			{
+				RefList< V > bucket = buckets.get( v.getTimepoint() );
+				if ( null == bucket )
+				{
+					bucket = RefCollections.createRefList( pool );
+					buckets.put( v.getTimepoint(), bucket );
+				}
+				bucket.add( v );
+			}
+
+			this.searches = new TIntObjectHashMap<>( buckets.size() );
+			final TIntObjectIterator< RefList< V > > it = buckets.iterator();
+			while ( it.hasNext() )
+			{
+				it.advance();
+				final SpatialIndexImp< V > index = new SpatialIndexImp<>( it.value(), vertexPool );
+				searches.put( it.key(), index.getIncrementalNearestNeighborSearch() );
+			}
+		}
+
+		/**
+		 * Returns a search over the vertices of the specified time-point, or
+		 * <code>null</code> if there are none.
+		 */
+		public IncrementalNearestNeighborSearch< V > get( final int timepoint )
+		{
+			return searches.get( timepoint );
+		}
+	}
+
 	private static final boolean checkSettingsValidity( final Map< String, Object > settings, final StringBuilder str )
 	{
 		if ( null == settings )
@@ -434,6 +552,9 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		optionalKeys.add( KEY_GAP_CLOSING_FEATURE_PENALTIES );
 		optionalKeys.add( KEY_SPLITTING_FEATURE_PENALTIES );
 		optionalKeys.add( KEY_MERGING_FEATURE_PENALTIES );
+		optionalKeys.add( KEY_SOLVE_BY_COMPONENTS );
+		optionalKeys.add( KEY_LAP_SOLVER );
+		optionalKeys.add( KEY_LAP_SOLVER_TOLERANCE );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, str );
 
 		return ok;
@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.costmatrix;
+
+import java.util.Arrays;
+
+import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
+
+/**
+ * Builds a {@link SparseCostMatrix} from 3 primitive arrays containing the row
+ * index, the column index and the cost of each assignment candidate.
+ * <p>
+ * Row and column indices are typically the pool indices of the source and
+ * target objects. They are first compacted to their rank among the distinct
+ * indices, so that the work and memory depend only on the number of
+ * candidates, not on the magnitude of the indices. The compacted indices are
+ * mapped to matrix rows and columns either in ascending order, or following
+ * the ranks specified by the caller. The candidates are then arranged row by
+ * row with two passes of a counting sort, so that no object is allocated per
+ * candidate.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SparseCostMatrixBuilder
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[SparseCostMatrixBuilder] ";
+
+	/**
+	 * The compacted row index of each candidate, that is the position of its
+	 * row index in {@link #uniqueRows}.
+	 */
+	private final int[] rows;
+
+	/**
+	 * The compacted column index of each candidate, that is the position of
+	 * its column index in {@link #uniqueCols}.
+	 */
+	private final int[] cols;
+
+	private final double[] costs;
+
+	private final int[] uniqueRows;
+
+	private final int[] uniqueCols;
+
+	private String errorMessage;
+
+	/**
+	 * Creates a builder for the specified assignment candidates. The 3 arrays
+	 * must have the same length, and the indices must be positive or 0.
+	 *
+	 * @param rows
+	 *            the row index of each candidate.
+	 * @param cols
+	 *            the column index of each candidate.
+	 * @param costs
+	 *            the cost of each candidate.
+	 * @throws IllegalArgumentException
+	 *             if the arrays do not have the same length.
+	 */
+	public SparseCostMatrixBuilder( final int[] rows, final int[] cols, final double[] costs )
+	{
+		if ( rows.length != cols.length || rows.length != costs.length )
+			throw new IllegalArgumentException( "Row, column and cost arrays must have the same length. Found " + rows.length + ", " + cols.length + " and " + costs.length + "." );
+
+		this.costs = costs;
+		this.uniqueRows = unique( rows );
+		this.uniqueCols = unique( cols );
+		this.rows = compact( rows, uniqueRows );
+		this.cols = compact( cols, uniqueCols );
+	}
+
+	/**
+	 * Returns the distinct row indices of the candidates, in ascending order.
+	 *
+	 * @return the distinct row indices.
+	 */
+	public int[] getUniqueRows()
+	{
+		return uniqueRows;
+	}
+
+	/**
+	 * Returns the distinct column indices of the candidates, in ascending
+	 * order.
+	 *
+	 * @return the distinct column indices.
+	 */
+	public int[] getUniqueCols()
+	{
+		return uniqueCols;
+	}
+
+	/**
+	 * Builds the cost matrix, with rows and columns ordered by ascending
+	 * indices. Row <code>i</code> of the matrix then corresponds to
+	 * <code>getUniqueRows()[i]</code>.
+	 *
+	 * @return a new sparse cost matrix, or <code>null</code> if there was a
+	 *         problem with the candidates.
+	 */
+	public SparseCostMatrix build()
+	{
+		return build( identity( uniqueRows.length ), identity( uniqueCols.length ) );
+	}
+
+	/**
+	 * Builds the cost matrix, with rows and columns ordered as specified. A
+	 * candidate with row index <code>getUniqueRows()[u]</code> and column
+	 * index <code>getUniqueCols()[v]</code> ends up in the matrix at row
+	 * <code>rowRank[u]</code> and column <code>colRank[v]</code>. The rank
+	 * arrays must be permutations of <code>0 .. n-1</code>, where
+	 * <code>n</code> is the number of distinct indices.
+	 *
+	 * @param rowRank
+	 *            the matrix row for each distinct row index, in the order of
+	 *            {@link #getUniqueRows()}.
+	 * @param colRank
+	 *            the matrix column for each distinct column index, in the
+	 *            order of {@link #getUniqueCols()}.
+	 * @return a new sparse cost matrix, or <code>null</code> if there was a
+	 *         problem with the candidates.
+	 */
+	public SparseCostMatrix build( final int[] rowRank, final int[] colRank )
+	{
+		final int n = costs.length;
+		if ( n == 0 )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "The candidate arrays are empty.";
+			return null;
+		}
+
+		final int nRows = uniqueRows.length;
+		final int nCols = uniqueCols.length;
+
+		/*
+		 * Sort candidates by column then, stably, by row. This yields the
+		 * row-by-row, ascending column order expected by the matrix.
+		 */
+
+		final int[] byCol = new int[ n ];
+		final int[] colStart = new int[ nCols + 1 ];
+		for ( int i = 0; i < n; i++ )
+			colStart[ colRank[ cols[ i ] ] + 1 ]++;
+		for ( int c = 0; c < nCols; c++ )
+			colStart[ c + 1 ] += colStart[ c ];
+		for ( int i = 0; i < n; i++ )
+			byCol[ colStart[ colRank[ cols[ i ] ] ]++ ] = i;
+
+		final int[] number = new int[ nRows ];
+		for ( int i = 0; i < n; i++ )
+			number[ rowRank[ rows[ i ] ] ]++;
+		final int[] rowStart = new int[ nRows ];
+		for ( int r = 1; r < nRows; r++ )
+			rowStart[ r ] = rowStart[ r - 1 ] + number[ r - 1 ];
+
+		final int[] kk = new int[ n ];
+		final double[] cc = new double[ n ];
+		for ( int k = 0; k < n; k++ )
+		{
+			final int i = byCol[ k ];
+			final int r = rowRank[ rows[ i ] ];
+			final int index = rowStart[ r ]++;
+			kk[ index ] = colRank[ cols[ i ] ];
+			cc[ index ] = costs[ i ];
+		}
+
+		// Test we do not have duplicates.
+		int index = 0;
+		for ( int r = 0; r < nRows; r++ )
+		{
+			for ( int k = index + 1; k < index + number[ r ]; k++ )
+			{
+				if ( kk[ k ] == kk[ k - 1 ] )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "Found duplicate assignment at index: Assignment r = " + r + ", c = " + kk[ k ] + ", cost = " + cc[ k ] + ".";
+					return null;
+				}
+			}
+			index += number[ r ];
+		}
+
+		return new SparseCostMatrix( cc, kk, number, nCols );
+	}
+
+	/**
+	 * Returns an error message in case the cost matrix could not be built.
+	 *
+	 * @return an error message.
+	 */
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns the distinct values of the specified array in ascending order,
+	 * by sorting a copy of it.
+	 */
+	private static int[] unique( final int[] indices )
+	{
+		final int[] sorted = indices.clone();
+		Arrays.sort( sorted );
+		if ( sorted.length > 0 && sorted[ 0 ] < 0 )
+			throw new IllegalArgumentException( "Indices must be positive or 0. Found " + sorted[ 0 ] + "." );
+
+		int nUnique = 0;
+		for ( int i = 0; i < sorted.length; i++ )
+			if ( i == 0 || sorted[ i ] != sorted[ i - 1 ] )
+				sorted[ nUnique++ ] = sorted[ i ];
+		return Arrays.copyOf( sorted, nUnique );
+	}
+
+	/**
+	 * Returns the position of each of the specified indices in the specified
+	 * sorted array of distinct indices.
+	 */
+	private static int[] compact( final int[] indices, final int[] sortedUnique )
+	{
+		final int[] compacted = new int[ indices.length ];
+		for ( int i = 0; i < indices.length; i++ )
+			compacted[ i ] = Arrays.binarySearch( sortedUnique, indices[ i ] );
+		return compacted;
+	}
+
+	/**
+	 * Returns the identity rank array of the specified size.
+	 */
+	private static int[] identity( final int size )
+	{
+		final int[] rank = new int[ size ];
+		for ( int i = 0; i < size; i++ )
+			rank[ i ] = i;
+		return rank;
+	}
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+/**
+ * Row-wise, read-only access to a sparse cost matrix of a linear assignment
+ * problem, as used by the solvers.
+ * <p>
+ * Each row stores its non-infinite costs in slots <code>0</code> to
+ * <code>rowSize(i) - 1</code>, with their column indices in ascending order.
+ * Missing values represent infinite costs. Implementations may store the costs
+ * explicitly, like {@link SparseCostMatrix}, or compute them on the fly from
+ * a more compact representation, like {@link JaqamanAugmentedCostMatrix}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public interface AssignmentCostMatrix
+{
+
+	/**
+	 * Returns the number of rows in the matrix.
+	 *
+	 * @return the number of rows.
+	 */
+	public int getNRows();
+
+	/**
+	 * Returns the number of columns in the matrix.
+	 *
+	 * @return the number of columns.
+	 */
+	public int getNCols();
+
+	/**
+	 * Returns the number of non-infinite costs in the specified row.
+	 *
+	 * @param i
+	 *            the row.
+	 * @return the number of costs in the row.
+	 */
+	public int rowSize( int i );
+
+	/**
+	 * Returns the column index of the specified slot in the specified row.
+	 *
+	 * @param i
+	 *            the row.
+	 * @param k
+	 *            the slot in the row, from 0 to <code>rowSize(i) - 1</code>.
+	 * @return the column index.
+	 */
+	public int column( int i, int k );
+
+	/**
+	 * Returns the cost stored in the specified slot of the specified row.
+	 *
+	 * @param i
+	 *            the row.
+	 * @param k
+	 *            the slot in the row, from 0 to <code>rowSize(i) - 1</code>.
+	 * @return the cost.
+	 */
+	public double cost( int i, int k );
+
+	/**
+	 * Returns the slot of the specified column in the specified row.
+	 *
+	 * @param i
+	 *            the row.
+	 * @param j
+	 *            the column.
+	 * @return the slot in the row, or a negative value if the matrix does not
+	 *         store a cost at this row and column.
+	 */
+	public int indexOf( int i, int j );
+
+	/**
+	 * Returns the smallest cost stored in the matrix.
+	 *
+	 * @return the smallest cost.
+	 */
+	public double getMinCost();
+
+	/**
+	 * Returns the value stored by this matrix at the specified row and column.
+	 * If a value is not present in the sparse matrix, the specified missing
+	 * value is returned.
+	 *
+	 * @param i
+	 *            the row.
+	 * @param j
+	 *            the column.
+	 * @param missingValue
+	 *            what to return if the matrix does not store a value at the
+	 *            specified row and column.
+	 * @return the value.
+	 */
+	public default double get( final int i, final int j, final double missingValue )
+	{
+		final int k = indexOf( i, j );
+		return ( k < 0 ) ? missingValue : cost( i, k );
+	}
+
+	/**
+	 * Computes the total cost for an assignment specified by row. It is
+	 * supposed that row <code>i</code> is assigned to column
+	 * <code>rowAssignment[i]</code>.
+	 *
+	 * @param rowAssignment
+	 *            the assignment, specified by row.
+	 * @return the total cost for this assignment.
+	 */
+	public default double totalAssignmentCost( final int[] rowAssignment )
+	{
+		double sum = 0;
+		for ( int i = 0; i < rowAssignment.length; i++ )
+			sum += cost( i, indexOf( i, rowAssignment[ i ] ) );
+		return sum;
+	}
+}
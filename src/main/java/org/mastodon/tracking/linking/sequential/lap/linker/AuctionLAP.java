@@ -0,0 +1,385 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.OutputAlgorithm;
+
+/**
+ * Solves linear assignment problems with the epsilon-scaling auction
+ * algorithm of Bertsekas, with parallel bidding rounds.
+ * <p>
+ * Rows bid for columns. In each round, all the unassigned rows compute their
+ * bids concurrently (Jacobi variant), then each column is given to its
+ * highest bidder and its price raised accordingly. Rounds are repeated until
+ * all rows are assigned, for decreasing values of epsilon. The resulting
+ * assignment is not necessarily optimal: its total cost is within
+ * <code>n x epsilon</code> of the optimum. After each scaling phase, the
+ * actual gap to the optimum is bounded with the dual value given by the
+ * prices, and the solver stops as soon as this gap is below the specified
+ * tolerance. The final gap is available with {@link #getOptimalityGap()}.
+ * <p>
+ * The cost matrix must be square and admit a complete assignment. This is the
+ * case for the augmented matrices of the Jaqaman linker.
+ *
+ * @author Jean-Yves Tinevez
+ * @see <a href="https://doi.org/10.1007/BF02186476">Bertsekas, D. P. "The
+ *      auction algorithm: A distributed relaxation method for the assignment
+ *      problem." Annals of Operations Research 14 (1988)</a>
+ */
+public class AuctionLAP implements OutputAlgorithm< int[] >, Benchmark
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[AuctionLAP] ";
+
+	/**
+	 * Factor by which epsilon is divided between scaling phases.
+	 */
+	private static final double EPSILON_SCALING_FACTOR = 5.;
+
+	/**
+	 * Below this number of bidders, a round is computed sequentially.
+	 */
+	private static final int PARALLEL_THRESHOLD = 1024;
+
+	private int[] output;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private double optimalityGap = Double.NaN;
+
+	private final AssignmentCostMatrix cm;
+
+	private final double tolerance;
+
+	/**
+	 * Instantiates a new auction solver for the specified sparse cost matrix.
+	 *
+	 * @param cm
+	 *            the cost matrix of the linear assignment problem to solve.
+	 * @param tolerance
+	 *            the maximal difference between the total cost of the
+	 *            assignment returned and the optimal total cost. Must be
+	 *            strictly positive.
+	 */
+	public AuctionLAP( final AssignmentCostMatrix cm, final double tolerance )
+	{
+		this.cm = cm;
+		this.tolerance = tolerance;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final int n = cm.getNRows();
+		final int[] x = new int[ n ];
+		final int[] y = new int[ n ];
+		final double[] prices = new double[ n ];
+		Arrays.fill( x, -1 );
+		Arrays.fill( y, -1 );
+
+		double minCost = Double.POSITIVE_INFINITY;
+		double maxCost = Double.NEGATIVE_INFINITY;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int size = cm.rowSize( i );
+			if ( size == 0 )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Row " + i + " has no finite cost.";
+				return false;
+			}
+			for ( int k = 0; k < size; k++ )
+			{
+				final double c = cm.cost( i, k );
+				minCost = Math.min( minCost, c );
+				maxCost = Math.max( maxCost, c );
+			}
+		}
+		final double range = Math.max( maxCost - minCost, tolerance );
+		final double minEpsilon = tolerance / n;
+
+		// Bid buffers, indexed by bidder.
+		final int[] bidders = new int[ n ];
+		final int[] bidColumn = new int[ n ];
+		final double[] bidPrice = new double[ n ];
+
+		// Highest bid of each column in the current round.
+		final int[] winner = new int[ n ];
+		final double[] winningPrice = new double[ n ];
+		final int[] round = new int[ n ];
+		Arrays.fill( round, -1 );
+		final int[] biddenColumns = new int[ n ];
+
+		double epsilon = Math.max( range / EPSILON_SCALING_FACTOR, minEpsilon );
+		int r = 0;
+		while ( true )
+		{
+			/*
+			 * Scaling phase: prices are kept, and so are the assignments
+			 * that still satisfy epsilon-complementary slackness.
+			 */
+
+			int nBidders = 0;
+			for ( int i = 0; i < n; i++ )
+			{
+				if ( x[ i ] >= 0 && isHappy( i, x[ i ], prices, epsilon ) )
+					continue;
+				if ( x[ i ] >= 0 )
+				{
+					y[ x[ i ] ] = -1;
+					x[ i ] = -1;
+				}
+				bidders[ nBidders++ ] = i;
+			}
+
+			// Single-candidate rows bid as if their second best were this far.
+			final double maxIncrement = range + epsilon;
+			final double maxPrice = maxAbs( prices ) + ( 2. * n + 1. ) * maxIncrement;
+			final double eps = epsilon;
+
+			while ( nBidders > 0 )
+			{
+				/*
+				 * Bidding, in parallel.
+				 */
+
+				final IntStream bidding = IntStream.range( 0, nBidders );
+				( nBidders < PARALLEL_THRESHOLD ? bidding : bidding.parallel() ).forEach(
+						b -> bid( bidders[ b ], prices, eps, maxIncrement, b, bidColumn, bidPrice ) );
+
+				/*
+				 * Assignment: each column goes to its highest bidder.
+				 */
+
+				int nBidden = 0;
+				for ( int b = 0; b < nBidders; b++ )
+				{
+					final int j = bidColumn[ b ];
+					if ( round[ j ] != r )
+					{
+						round[ j ] = r;
+						winner[ j ] = bidders[ b ];
+						winningPrice[ j ] = bidPrice[ b ];
+						biddenColumns[ nBidden++ ] = j;
+					}
+					else if ( bidPrice[ b ] > winningPrice[ j ] )
+					{
+						winner[ j ] = bidders[ b ];
+						winningPrice[ j ] = bidPrice[ b ];
+					}
+				}
+
+				// Losers bid again in the next round.
+				int nLosers = 0;
+				for ( int b = 0; b < nBidders; b++ )
+				{
+					final int i = bidders[ b ];
+					if ( winner[ bidColumn[ b ] ] != i )
+						bidders[ nLosers++ ] = i;
+				}
+
+				for ( int t = 0; t < nBidden; t++ )
+				{
+					final int j = biddenColumns[ t ];
+					final int previous = y[ j ];
+					if ( previous >= 0 )
+					{
+						x[ previous ] = -1;
+						bidders[ nLosers++ ] = previous;
+					}
+					x[ winner[ j ] ] = j;
+					y[ j ] = winner[ j ];
+					prices[ j ] = winningPrice[ j ];
+					if ( prices[ j ] > maxPrice )
+					{
+						errorMessage = BASE_ERROR_MESSAGE + "Prices diverge. The cost matrix probably does not admit a complete assignment.";
+						return false;
+					}
+				}
+				nBidders = nLosers;
+				r++;
+			}
+
+			/*
+			 * Gap to the optimum, bounded by the dual value given by prices.
+			 */
+
+			optimalityGap = gap( x, prices );
+			if ( optimalityGap <= tolerance || epsilon <= minEpsilon )
+				break;
+
+			epsilon = Math.max( epsilon / EPSILON_SCALING_FACTOR, minEpsilon );
+		}
+
+		this.output = x;
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		return true;
+	}
+
+	/**
+	 * Returns <code>true</code> if row <code>i</code> assigned to column
+	 * <code>j</code> satisfies epsilon-complementary slackness: its cost plus
+	 * price is within epsilon of the best one of the row.
+	 */
+	private boolean isHappy( final int i, final int j, final double[] prices, final double epsilon )
+	{
+		double best = Double.POSITIVE_INFINITY;
+		final int size = cm.rowSize( i );
+		for ( int k = 0; k < size; k++ )
+			best = Math.min( best, cm.cost( i, k ) + prices[ cm.column( i, k ) ] );
+		return cm.cost( i, cm.indexOf( i, j ) ) + prices[ j ] <= best + epsilon;
+	}
+
+	/**
+	 * Computes the bid of row <code>i</code>, and stores it in the bid buffers
+	 * at index <code>b</code>. The row bids for the column with the lowest
+	 * cost plus price, and raises its price so that it is indifferent, within
+	 * epsilon, to its second best choice.
+	 */
+	private void bid( final int i, final double[] prices, final double epsilon, final double maxIncrement, final int b, final int[] bidColumn, final double[] bidPrice )
+	{
+		double best = Double.POSITIVE_INFINITY;
+		double second = Double.POSITIVE_INFINITY;
+		int bestColumn = -1;
+		final int size = cm.rowSize( i );
+		for ( int k = 0; k < size; k++ )
+		{
+			final int j = cm.column( i, k );
+			final double h = cm.cost( i, k ) + prices[ j ];
+			if ( h < best )
+			{
+				second = best;
+				best = h;
+				bestColumn = j;
+			}
+			else if ( h < second )
+			{
+				second = h;
+			}
+		}
+		final double increment = ( second == Double.POSITIVE_INFINITY ) ? maxIncrement : second - best;
+		bidColumn[ b ] = bestColumn;
+		bidPrice[ b ] = prices[ bestColumn ] + increment + epsilon;
+	}
+
+	/**
+	 * Returns the difference between the total cost of the specified
+	 * assignment and the dual lower bound of the optimal cost given by the
+	 * specified prices.
+	 */
+	private double gap( final int[] x, final double[] prices )
+	{
+		final int n = x.length;
+		double primal = 0.;
+		double dual = 0.;
+		for ( int i = 0; i < n; i++ )
+		{
+			primal += cm.cost( i, cm.indexOf( i, x[ i ] ) );
+
+			double best = Double.POSITIVE_INFINITY;
+			final int size = cm.rowSize( i );
+			for ( int k = 0; k < size; k++ )
+				best = Math.min( best, cm.cost( i, k ) + prices[ cm.column( i, k ) ] );
+			dual += best;
+		}
+		for ( int j = 0; j < n; j++ )
+			dual -= prices[ j ];
+		return Math.max( 0., primal - dual );
+	}
+
+	private static double maxAbs( final double[] values )
+	{
+		double max = 0.;
+		for ( final double v : values )
+			max = Math.max( max, Math.abs( v ) );
+		return max;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( cm.getNRows() != cm.getNCols() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "This solver requires a square cost matrix. Found " + cm.getNRows() + " rows and " + cm.getNCols() + " columns.";
+			return false;
+		}
+		if ( !( tolerance > 0. ) )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "The tolerance must be strictly positive. Found " + tolerance + ".";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	/**
+	 * Returns an upper bound of the difference between the total cost of the
+	 * assignment found and the optimal total cost, computed from the final
+	 * prices. Returns {@link Double#NaN} if the solver was not run.
+	 *
+	 * @return the optimality gap.
+	 */
+	public double getOptimalityGap()
+	{
+		return optimalityGap;
+	}
+
+	/**
+	 * Returns the results as row assignments. The row <code>i</code> is
+	 * associated to the column <code>x[i]</code> in the cost matrix.
+	 *
+	 * @return the row assignments as an <code>int[]</code> array. This array is
+	 *         re-instantiated upon calling {@link #process()}.
+	 */
+	@Override
+	public int[] getResult()
+	{
+		return output;
+	}
+}
@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.util.Arrays;
+
+/**
+ * A block view of the cost matrix of the LAP framework described in Jaqaman
+ * <i>et al.</i>, Nature Methods, <b>2008</b>, Figure 1b:
+ *
+ * <pre>
+ * -----------
+ * | TL | TR |
+ * | BL | BR |
+ * -----------
+ * </pre>
+ *
+ * where <code>TL</code> is the <code>n x m</code> linking cost matrix,
+ * <code>TR</code> is the <code>n x n</code> diagonal matrix of the
+ * alternative costs of the sources, <code>BL</code> is the
+ * <code>m x m</code> diagonal matrix of the alternative costs of the targets,
+ * and <code>BR</code> has the sparsity pattern of the transpose of
+ * <code>TL</code>, filled with a single cost.
+ * <p>
+ * The view does not copy the costs of <code>TL</code> and does not store the
+ * diagonal blocks. Only the sparsity pattern of the transpose of
+ * <code>TL</code> is built, as one <code>int</code> per non-infinite cost.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class JaqamanAugmentedCostMatrix implements AssignmentCostMatrix
+{
+
+	private final SparseCostMatrix tl;
+
+	private final double[] sourceAltCosts;
+
+	private final double[] targetAltCosts;
+
+	private final double brCost;
+
+	/**
+	 * Number of rows of TL.
+	 */
+	private final int n;
+
+	/**
+	 * Number of columns of TL.
+	 */
+	private final int m;
+
+	/**
+	 * For each column of TL, the index in {@link #colRows} where its rows
+	 * start. Has <code>m + 1</code> elements.
+	 */
+	private final int[] colStart;
+
+	/**
+	 * The row indices of TL, stored column by column, in ascending order.
+	 */
+	private final int[] colRows;
+
+	/**
+	 * Creates a new augmented cost matrix view.
+	 *
+	 * @param tl
+	 *            the linking cost matrix.
+	 * @param sourceAltCosts
+	 *            the alternative costs for not linking each row of
+	 *            <code>tl</code>.
+	 * @param targetAltCosts
+	 *            the alternative costs for not linking each column of
+	 *            <code>tl</code>.
+	 * @param brCost
+	 *            the cost of the bottom-right block.
+	 * @throws IllegalArgumentException
+	 *             if the number of alternative costs does not match the size
+	 *             of <code>tl</code>.
+	 */
+	public JaqamanAugmentedCostMatrix( final SparseCostMatrix tl, final double[] sourceAltCosts, final double[] targetAltCosts, final double brCost )
+	{
+		if ( sourceAltCosts.length != tl.nRows )
+			throw new IllegalArgumentException( "Expected " + tl.nRows + " source alternative costs, found " + sourceAltCosts.length + "." );
+		if ( targetAltCosts.length != tl.nCols )
+			throw new IllegalArgumentException( "Expected " + tl.nCols + " target alternative costs, found " + targetAltCosts.length + "." );
+
+		this.tl = tl;
+		this.sourceAltCosts = sourceAltCosts;
+		this.targetAltCosts = targetAltCosts;
+		this.brCost = brCost;
+		this.n = tl.nRows;
+		this.m = tl.nCols;
+
+		// Transposed pattern of TL. Scanning rows in order keeps rows sorted.
+		this.colStart = new int[ m + 1 ];
+		for ( int i = 0; i < n; i++ )
+			for ( int k = tl.start[ i ]; k < tl.start[ i ] + tl.number[ i ]; k++ )
+				colStart[ tl.kk[ k ] + 1 ]++;
+		for ( int j = 0; j < m; j++ )
+			colStart[ j + 1 ] += colStart[ j ];
+
+		this.colRows = new int[ colStart[ m ] ];
+		final int[] fill = Arrays.copyOf( colStart, m );
+		for ( int i = 0; i < n; i++ )
+			for ( int k = tl.start[ i ]; k < tl.start[ i ] + tl.number[ i ]; k++ )
+				colRows[ fill[ tl.kk[ k ] ]++ ] = i;
+	}
+
+	@Override
+	public int getNRows()
+	{
+		return n + m;
+	}
+
+	@Override
+	public int getNCols()
+	{
+		return m + n;
+	}
+
+	@Override
+	public int rowSize( final int i )
+	{
+		if ( i < n )
+			return tl.number[ i ] + 1;
+
+		final int j = i - n;
+		return colStart[ j + 1 ] - colStart[ j ] + 1;
+	}
+
+	@Override
+	public int column( final int i, final int k )
+	{
+		if ( i < n )
+			return ( k < tl.number[ i ] ) ? tl.kk[ tl.start[ i ] + k ] : m + i;
+
+		final int j = i - n;
+		return ( k == 0 ) ? j : m + colRows[ colStart[ j ] + k - 1 ];
+	}
+
+	@Override
+	public double cost( final int i, final int k )
+	{
+		if ( i < n )
+			return ( k < tl.number[ i ] ) ? tl.cc[ tl.start[ i ] + k ] : sourceAltCosts[ i ];
+
+		return ( k == 0 ) ? targetAltCosts[ i - n ] : brCost;
+	}
+
+	@Override
+	public int indexOf( final int i, final int j )
+	{
+		if ( i < n )
+		{
+			if ( j >= m )
+				return ( j == m + i ) ? tl.number[ i ] : -1;
+
+			final int k = Arrays.binarySearch( tl.kk, tl.start[ i ], tl.start[ i ] + tl.number[ i ], j );
+			return ( k < 0 ) ? -1 : k - tl.start[ i ];
+		}
+
+		final int c = i - n;
+		if ( j < m )
+			return ( j == c ) ? 0 : -1;
+
+		final int k = Arrays.binarySearch( colRows, colStart[ c ], colStart[ c + 1 ], j - m );
+		return ( k < 0 ) ? -1 : k - colStart[ c ] + 1;
+	}
+
+	@Override
+	public double getMinCost()
+	{
+		double min = brCost;
+		for ( final double c : tl.cc )
+			min = Math.min( min, c );
+		for ( final double c : sourceAltCosts )
+			min = Math.min( min, c );
+		for ( final double c : targetAltCosts )
+			min = Math.min( min, c );
+		return min;
+	}
+}
@@ -28,7 +28,13 @@
  */
 package org.mastodon.tracking.linking.sequential.lap.linker;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.mastodon.Ref;
 import org.mastodon.collection.RefCollection;
@@ -38,8 +44,11 @@ import org.mastodon.collection.RefList;
 import org.mastodon.collection.RefMaps;
 import org.mastodon.collection.RefRefMap;
 import org.mastodon.collection.RefSet;
+import org.mastodon.tracking.linking.LinkerKeys;
 import org.mastodon.tracking.linking.sequential.lap.costmatrix.CostMatrixCreatorOp;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
 import net.imglib2.algorithm.BenchmarkAlgorithm;
 import net.imglib2.algorithm.OutputAlgorithm;
 import net.imglib2.util.Util;
@@ -67,6 +76,22 @@ public class JaqamanLinker< K, J > extends BenchmarkAlgorithm implements OutputA
 
 	private final RefCollection< J > valuePool;
 
+	private boolean solveByComponents = false;
+
+	private LAPSolverType solverType = LAPSolverType.AUTO;
+
+	private double solverTolerance = LinkerKeys.DEFAULT_LAP_SOLVER_TOLERANCE;
+
+	private final DoubleAdder optimalityGap = new DoubleAdder();
+
+	private final LongAdder augmentations = new LongAdder();
+
+	private boolean warmStart = false;
+
+	private RefDoubleMap< K > priorDuals;
+
+	private RefDoubleMap< J > targetDuals;
+
 	/**
 	 * Creates a new linker for the specified cost matrix creator. See Jaqaman
 	 * <i>et al.</i>, Nature Methods, <b>2008</b>, Figure 1b.
@@ -89,6 +114,118 @@ public class JaqamanLinker< K, J > extends BenchmarkAlgorithm implements OutputA
 		this.valuePool = valuePool;
 	}
 
+	/**
+	 * Sets whether the assignment problem is split into the connected
+	 * components of the candidate graph before being solved.
+	 * <p>
+	 * Sources and targets that do not share a candidate link, directly or
+	 * through other sources and targets, cannot influence each other's
+	 * assignment. The augmented cost matrix is then block-diagonal up to a
+	 * permutation, and each block can be solved independently. In this mode,
+	 * one small augmented matrix is built per connected component, and the
+	 * components are solved concurrently on the common {@link ForkJoinPool}.
+	 * The total assignment cost is the same as for the monolithic solve.
+	 *
+	 * @param solveByComponents
+	 *            whether to solve connected components separately.
+	 */
+	public void setSolveByComponents( final boolean solveByComponents )
+	{
+		this.solveByComponents = solveByComponents;
+	}
+
+	/**
+	 * Sets the solver used for the assignment problems.
+	 *
+	 * @param solverType
+	 *            the solver type.
+	 * @param tolerance
+	 *            the maximal gap to the optimal total cost, for approximate
+	 *            solvers.
+	 * @see LAPSolvers#create(AssignmentCostMatrix, LAPSolverType, double)
+	 */
+	public void setSolver( final LAPSolverType solverType, final double tolerance )
+	{
+		this.solverType = solverType;
+		this.solverTolerance = tolerance;
+	}
+
+	/**
+	 * Sets whether the assignment problem is warm-started from the dual prices
+	 * of a previous, similar problem.
+	 * <p>
+	 * The dual price of a column is split into its column reduction value,
+	 * which depends on the costs of the current problem only, and a premium
+	 * that reflects the competition for this column. Only the premiums are
+	 * carried from one problem to the next. In a sequence of frame pairs, the
+	 * targets of a problem are the sources of the next one. The premiums of
+	 * the targets of a problem, returned by {@link #getTargetDuals()}, are
+	 * therefore passed to the next problem keyed by source, where they are
+	 * used for the column of the alternative cost of each source. The columns
+	 * of the targets are initialized by column reduction, as in a cold start:
+	 * their premiums depend on the displacements in the frame pair, and do not
+	 * carry over. Fewer rows are then left to assign by augmenting paths.
+	 * <p>
+	 * Warm starts are supported by the {@link WarmStartLAPSolver}s. The
+	 * {@link LAPSolverType#AUCTION} solver set by
+	 * {@link #setSolver(LAPSolverType, double)} is then replaced by the
+	 * automatic choice.
+	 *
+	 * @param warmStart
+	 *            whether to warm-start the problem and compute the dual prices
+	 *            of the targets.
+	 * @param priorDuals
+	 *            the dual price premiums of the previous problem, keyed by
+	 *            source. Can be <code>null</code> or empty for the first
+	 *            problem of a sequence.
+	 */
+	public void setWarmStart( final boolean warmStart, final RefDoubleMap< K > priorDuals )
+	{
+		this.warmStart = warmStart;
+		this.priorDuals = priorDuals;
+	}
+
+	/**
+	 * Returns the dual price premiums of the targets of the last problem
+	 * solved, to be passed to the next problem of a sequence. Only computed in
+	 * warm start mode.
+	 *
+	 * @return the dual price premiums, keyed by target, or <code>null</code> if
+	 *         the linker is not in warm start mode.
+	 * @see #setWarmStart(boolean, RefDoubleMap)
+	 */
+	public RefDoubleMap< J > getTargetDuals()
+	{
+		return targetDuals;
+	}
+
+	/**
+	 * Returns an upper bound of the difference between the total cost of the
+	 * assignment found and the optimal total cost. This is 0 for exact
+	 * solvers, and the sum of the gaps of all the problems solved for
+	 * approximate solvers.
+	 *
+	 * @return the optimality gap.
+	 */
+	public double getOptimalityGap()
+	{
+		return optimalityGap.sum();
+	}
+
+	/**
+	 * Returns the number of augmenting paths searched by the LAP solver, over
+	 * all the problems solved. Only the {@link LAPJV} solver reports it, be it
+	 * selected by {@link LAPSolverType#JONKER_VOLGENANT} or by
+	 * {@link LAPSolverType#AUTO}. Other solvers count for 0. Warm-starting is
+	 * expected to lower it.
+	 *
+	 * @return the number of augmentations.
+	 */
+	public long getNumberOfAugmentations()
+	{
+		return augmentations.sum();
+	}
+
 	/**
 	 * Returns the resulting assignments from this algorithm.
 	 * <p>
@@ -144,6 +281,9 @@ public class JaqamanLinker< K, J > extends BenchmarkAlgorithm implements OutputA
 
 		assignments = RefMaps.createRefRefMap( keyPool, valuePool );
 		costs = RefMaps.createRefDoubleMap( keyPool, Double.NaN );
+		optimalityGap.reset();
+		augmentations.reset();
+		targetDuals = warmStart ? RefMaps.createRefDoubleMap( valuePool, Double.NaN ) : null;
 
 		if ( matrixCols.isEmpty() || matrixRows.isEmpty() )
 		{
@@ -153,87 +293,392 @@ public class JaqamanLinker< K, J > extends BenchmarkAlgorithm implements OutputA
 		}
 
 		/*
-		 * Complement the cost matrix with alternative no linking cost matrix.
+		 * Alternative costs for not linking.
 		 */
 
 		final int nCols = tl.getNCols();
 		final int nRows = tl.getNRows();
 
-		/*
-		 * Top right
-		 */
-
 		final double[] cctr = new double[ nRows ];
-		final int[] kktr = new int[ nRows ];
 		for ( int i = 0; i < nRows; i++ )
-		{
-			kktr[ i ] = i;
 			cctr[ i ] = costMatrixCreator.getAlternativeCostForSource( matrixRows.get( i ) );
-		}
-		final int[] numbertr = new int[ nRows ];
-		Arrays.fill( numbertr, 1 );
-		final SparseCostMatrix tr = new SparseCostMatrix( cctr, kktr, numbertr, nRows );
 
-		/*
-		 * Bottom left
-		 */
 		final double[] ccbl = new double[ nCols ];
-		final int[] kkbl = new int[ nCols ];
-		for ( int i = 0; i < kkbl.length; i++ )
-		{
-			kkbl[ i ] = i;
-			ccbl[ i ] = costMatrixCreator.getAlternativeCostForTarget( matrixCols.get( i ) );
-		}
-		final int[] numberbl = new int[ nCols ];
-		Arrays.fill( numberbl, 1 );
-		final SparseCostMatrix bl = new SparseCostMatrix( ccbl, kkbl, numberbl, nCols );
+		for ( int j = 0; j < nCols; j++ )
+			ccbl[ j ] = costMatrixCreator.getAlternativeCostForTarget( matrixCols.get( j ) );
 
 		/*
-		 * Bottom right.
-		 *
 		 * Alt. cost is the overall min of alternative costs. This deviate or
 		 * extend a bit the u-track code.
 		 */
 		final double minCost = Math.min( Util.min( ccbl ), Util.min( cctr ) );
-		final SparseCostMatrix br = tl.transpose();
-		br.fillWith( minCost );
 
 		/*
-		 * Stitch them together
+		 * Solve, and store the assignment as a row-to-column array in the
+		 * top-left matrix.
 		 */
-		final SparseCostMatrix full = ( tl.hcat( tr ) ).vcat( bl.hcat( br ) );
 
-		/*
-		 * Solve the full cost matrix.
-		 */
-		final LAPJV solver = new LAPJV( full );
+		final int[] rowAssignment = new int[ nRows ];
+		Arrays.fill( rowAssignment, -1 );
+		final double[] reduction = warmStart ? new double[ nCols ] : null;
+		final double[] duals = warmStart ? initialDuals( tl, matrixRows, ccbl, minCost, reduction ) : null;
+		final boolean solved = solveByComponents
+				? solveComponents( tl, cctr, ccbl, minCost, duals, rowAssignment )
+				: solve( tl, cctr, ccbl, minCost, duals, rowAssignment );
+		if ( !solved )
+			return false;
+
+		if ( warmStart )
+			for ( int j = 0; j < nCols; j++ )
+				targetDuals.put( matrixCols.get( j ), duals[ j ] - reduction[ j ] );
+
+		for ( int i = 0; i < nRows; i++ )
+		{
+			final int j = rowAssignment[ i ];
+			if ( j < 0 )
+				continue;
+
+			final K source = matrixRows.get( i );
+			final J target = matrixCols.get( j );
+			assignments.put( source, target );
+
+			final double cost = tl.get( i, j, Double.POSITIVE_INFINITY );
+			costs.put( source, Double.valueOf( cost ) );
+		}
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+
+		return true;
+	}
+
+	/**
+	 * Computes the initial column duals of the augmented matrix, for a warm
+	 * start. The first <code>nCols</code> values are the duals of the targets,
+	 * the next <code>nRows</code> ones are the duals of the alternatives of
+	 * the sources. The column reduction values of the targets are stored in
+	 * the specified array.
+	 */
+	private double[] initialDuals( final SparseCostMatrix tl, final RefList< K > matrixRows, final double[] ccbl, final double minCost, final double[] reduction )
+	{
+		final int nRows = tl.nRows;
+		final int nCols = tl.nCols;
+		final double[] duals = new double[ nCols + nRows ];
+
+		// Targets: column reduction over TL and BL.
+		System.arraycopy( ccbl, 0, reduction, 0, nCols );
+		for ( int k = 0; k < tl.cardinality; k++ )
+			if ( tl.cc[ k ] < reduction[ tl.kk[ k ] ] )
+				reduction[ tl.kk[ k ] ] = tl.cc[ k ];
+		System.arraycopy( reduction, 0, duals, 0, nCols );
+
+		// Alternatives of sources: column reduction over TR and BR, plus the
+		// premium of the source.
+		Arrays.fill( duals, nCols, nCols + nRows, minCost );
+		if ( null != priorDuals && !priorDuals.isEmpty() )
+		{
+			final K ref = keyPool.createRef();
+			for ( int i = 0; i < nRows; i++ )
+			{
+				final K source = matrixRows.get( i, ref );
+				if ( priorDuals.containsKey( source ) )
+					duals[ nCols + i ] += priorDuals.get( source );
+			}
+			keyPool.releaseRef( ref );
+		}
+
+		return duals;
+	}
+
+	/**
+	 * Creates the solver for an augmented matrix. In warm start mode, the
+	 * solver starts from the specified column duals.
+	 */
+	private OutputAlgorithm< int[] > createSolver( final JaqamanAugmentedCostMatrix cm, final double[] duals )
+	{
+		if ( null == duals )
+			return LAPSolvers.create( cm, solverType, solverTolerance );
+
+		final WarmStartLAPSolver solver = LAPSolvers.createWarmStart( cm, solverType );
+		solver.setInitialColumnDuals( duals );
+		return solver;
+	}
+
+	/**
+	 * Solves the full augmented cost matrix at once. The augmented matrix is
+	 * a view over the top-left matrix and the alternative costs. In warm
+	 * start mode, the column duals are updated in place.
+	 */
+	private boolean solve( final SparseCostMatrix tl, final double[] cctr, final double[] ccbl, final double minCost, final double[] duals, final int[] rowAssignment )
+	{
+		final OutputAlgorithm< int[] > solver = createSolver( new JaqamanAugmentedCostMatrix( tl, cctr, ccbl, minCost ), duals );
 		if ( !solver.checkInput() || !solver.process() )
 		{
 			errorMessage = solver.getErrorMessage();
 			return false;
 		}
+		optimalityGap.add( LAPSolvers.getOptimalityGap( solver ) );
+		augmentations.add( LAPSolvers.getNumberOfAugmentations( solver ) );
+		if ( null != duals )
+			System.arraycopy( ( ( WarmStartLAPSolver ) solver ).getColumnDuals(), 0, duals, 0, duals.length );
 
 		final int[] assgn = solver.getResult();
-		for ( int i = 0; i < assgn.length; i++ )
+		for ( int i = 0; i < tl.nRows; i++ )
+			if ( assgn[ i ] < tl.nCols )
+				rowAssignment[ i ] = assgn[ i ];
+		return true;
+	}
+
+	/**
+	 * Splits the top-left matrix in the connected components of its
+	 * candidate graph, and solves the augmented matrix of each component
+	 * concurrently. In warm start mode, the column duals are updated in
+	 * place.
+	 */
+	private boolean solveComponents( final SparseCostMatrix tl, final double[] cctr, final double[] ccbl, final double minCost, final double[] duals, final int[] rowAssignment )
+	{
+		final int nRows = tl.nRows;
+		final int nCols = tl.nCols;
+
+		/*
+		 * Union-find on rows (0 .. nRows-1) and columns (nRows .. nRows+nCols-1).
+		 */
+
+		final int[] parent = new int[ nRows + nCols ];
+		for ( int n = 0; n < parent.length; n++ )
+			parent[ n ] = n;
+		for ( int i = 0; i < nRows; i++ )
+			for ( int k = tl.start[ i ]; k < tl.start[ i ] + tl.number[ i ]; k++ )
+				union( parent, i, nRows + tl.kk[ k ] );
+
+		/*
+		 * Gather the rows and columns of each component. Rows and columns are
+		 * kept in increasing order, so that the column indices of a component
+		 * matrix stay sorted. Components without any candidate link are
+		 * single rows or columns that are not linked; they are skipped.
+		 */
+
+		final int[] componentOf = new int[ nRows + nCols ];
+		Arrays.fill( componentOf, -1 );
+		final List< Component > components = new ArrayList<>();
+		for ( int i = 0; i < nRows; i++ )
 		{
-			final int j = assgn[ i ];
-			if ( i < matrixRows.size() && j < matrixCols.size() )
+			if ( tl.number[ i ] == 0 )
+				continue;
+			final int root = find( parent, i );
+			if ( componentOf[ root ] < 0 )
 			{
-				final K source = matrixRows.get( i );
-				final J target = matrixCols.get( j );
-				assignments.put( source, target );
-
-				final double cost = full.get( i, j, Double.POSITIVE_INFINITY );
-				costs.put( source, Double.valueOf( cost ) );
+				componentOf[ root ] = components.size();
+				components.add( new Component() );
 			}
+			components.get( componentOf[ root ] ).rows.add( i );
+		}
+		for ( int j = 0; j < nCols; j++ )
+		{
+			final int root = find( parent, nRows + j );
+			if ( componentOf[ root ] >= 0 )
+				components.get( componentOf[ root ] ).cols.add( j );
 		}
 
-		final long end = System.currentTimeMillis();
-		processingTime = end - start;
+		/*
+		 * Solve.
+		 */
 
+		final ComponentSolver solver = new ComponentSolver( components, 0, components.size(), tl, cctr, ccbl, minCost, duals, rowAssignment );
+		ForkJoinPool.commonPool().invoke( solver );
+		if ( null != solver.errorMessage )
+		{
+			errorMessage = solver.errorMessage;
+			return false;
+		}
 		return true;
 	}
 
+	private static int find( final int[] parent, int n )
+	{
+		while ( parent[ n ] != n )
+		{
+			parent[ n ] = parent[ parent[ n ] ];
+			n = parent[ n ];
+		}
+		return n;
+	}
+
+	private static void union( final int[] parent, final int a, final int b )
+	{
+		final int ra = find( parent, a );
+		final int rb = find( parent, b );
+		if ( ra != rb )
+			parent[ rb ] = ra;
+	}
+
+	/**
+	 * The rows and columns of a connected component of the top-left matrix.
+	 */
+	private static final class Component
+	{
+		private final TIntArrayList rows = new TIntArrayList();
+
+		private final TIntArrayList cols = new TIntArrayList();
+
+		private int size()
+		{
+			return rows.size() + cols.size();
+		}
+	}
+
+	/**
+	 * Solves a range of components, splitting it in halves until it is small
+	 * enough to be solved sequentially.
+	 */
+	private final class ComponentSolver extends RecursiveAction
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Below this total number of rows and columns, a range of components
+		 * is solved sequentially.
+		 */
+		private static final int SEQUENTIAL_THRESHOLD = 256;
+
+		private final List< Component > components;
+
+		private final int from;
+
+		private final int to;
+
+		private final SparseCostMatrix tl;
+
+		private final double[] cctr;
+
+		private final double[] ccbl;
+
+		private final double minCost;
+
+		private final double[] duals;
+
+		private final int[] rowAssignment;
+
+		private volatile String errorMessage;
+
+		private ComponentSolver( final List< Component > components, final int from, final int to, final SparseCostMatrix tl, final double[] cctr, final double[] ccbl, final double minCost, final double[] duals, final int[] rowAssignment )
+		{
+			this.components = components;
+			this.from = from;
+			this.to = to;
+			this.tl = tl;
+			this.cctr = cctr;
+			this.ccbl = ccbl;
+			this.minCost = minCost;
+			this.duals = duals;
+			this.rowAssignment = rowAssignment;
+		}
+
+		@Override
+		protected void compute()
+		{
+			int size = 0;
+			for ( int c = from; c < to; c++ )
+				size += components.get( c ).size();
+
+			if ( to - from <= 1 || size <= SEQUENTIAL_THRESHOLD )
+			{
+				for ( int c = from; c < to; c++ )
+					if ( !solve( components.get( c ) ) )
+						return;
+				return;
+			}
+
+			final int mid = ( from + to ) >>> 1;
+			final ComponentSolver left = new ComponentSolver( components, from, mid, tl, cctr, ccbl, minCost, duals, rowAssignment );
+			final ComponentSolver right = new ComponentSolver( components, mid, to, tl, cctr, ccbl, minCost, duals, rowAssignment );
+			invokeAll( left, right );
+			errorMessage = ( null != left.errorMessage ) ? left.errorMessage : right.errorMessage;
+		}
+
+		private boolean solve( final Component component )
+		{
+			final TIntArrayList rows = component.rows;
+			final TIntArrayList cols = component.cols;
+			final int nRows = rows.size();
+			final int nCols = cols.size();
+
+			/*
+			 * Component top-left matrix. Column indices are remapped to the
+			 * component, in the same order.
+			 */
+
+			final TIntIntHashMap localCol = new TIntIntHashMap( nCols * 2, 0.5f, -1, -1 );
+			for ( int j = 0; j < nCols; j++ )
+				localCol.put( cols.getQuick( j ), j );
+
+			int cardinality = 0;
+			for ( int i = 0; i < nRows; i++ )
+				cardinality += tl.number[ rows.getQuick( i ) ];
+			final double[] cc = new double[ cardinality ];
+			final int[] kk = new int[ cardinality ];
+			final int[] number = new int[ nRows ];
+			final double[] ctr = new double[ nRows ];
+			int index = 0;
+			for ( int i = 0; i < nRows; i++ )
+			{
+				final int row = rows.getQuick( i );
+				number[ i ] = tl.number[ row ];
+				ctr[ i ] = cctr[ row ];
+				for ( int k = tl.start[ row ]; k < tl.start[ row ] + tl.number[ row ]; k++ )
+				{
+					cc[ index ] = tl.cc[ k ];
+					kk[ index ] = localCol.get( tl.kk[ k ] );
+					index++;
+				}
+			}
+			final double[] cbl = new double[ nCols ];
+			for ( int j = 0; j < nCols; j++ )
+				cbl[ j ] = ccbl[ cols.getQuick( j ) ];
+
+			/*
+			 * Component column duals, targets then alternatives of sources, as
+			 * in the full augmented matrix.
+			 */
+
+			double[] cduals = null;
+			if ( null != duals )
+			{
+				cduals = new double[ nCols + nRows ];
+				for ( int j = 0; j < nCols; j++ )
+					cduals[ j ] = duals[ cols.getQuick( j ) ];
+				for ( int i = 0; i < nRows; i++ )
+					cduals[ nCols + i ] = duals[ tl.nCols + rows.getQuick( i ) ];
+			}
+
+			final SparseCostMatrix ctl = new SparseCostMatrix( cc, kk, number, nCols );
+			final OutputAlgorithm< int[] > solver = createSolver( new JaqamanAugmentedCostMatrix( ctl, ctr, cbl, minCost ), cduals );
+			if ( !solver.checkInput() || !solver.process() )
+			{
+				errorMessage = solver.getErrorMessage();
+				return false;
+			}
+			optimalityGap.add( LAPSolvers.getOptimalityGap( solver ) );
+			augmentations.add( LAPSolvers.getNumberOfAugmentations( solver ) );
+
+			// Components have disjoint rows and columns: no synchronization needed.
+			if ( null != duals )
+			{
+				final double[] v = ( ( WarmStartLAPSolver ) solver ).getColumnDuals();
+				for ( int j = 0; j < nCols; j++ )
+					duals[ cols.getQuick( j ) ] = v[ j ];
+				for ( int i = 0; i < nRows; i++ )
+					duals[ tl.nCols + rows.getQuick( i ) ] = v[ nCols + i ];
+			}
+			final int[] assgn = solver.getResult();
+			for ( int i = 0; i < nRows; i++ )
+				if ( assgn[ i ] < nCols )
+					rowAssignment[ rows.getQuick( i ) ] = cols.getQuick( assgn[ i ] );
+			return true;
+		}
+	}
+
 	public String resultToString()
 	{
 		if ( null == assignments ) { return "Not solved yet. Process the algorithm prior to calling this method."; }
@@ -35,15 +35,14 @@ import java.util.List;
 import java.util.Set;
 
 import net.imglib2.algorithm.Benchmark;
-import net.imglib2.algorithm.OutputAlgorithm;
-import net.imglib2.util.Util;
 
 /**
  * Implements the Jonker-Volgenant algorithm for linear assignment problems,
  * tailored for sparse cost matrices.
  * <p>
- * We rely on the {@link SparseCostMatrix} class to represent these costs. The
- * implementation itself is an unlikely mix between:
+ * We rely on the {@link AssignmentCostMatrix} interface to access these costs,
+ * implemented for instance by {@link SparseCostMatrix}. The implementation
+ * itself is an unlikely mix between:
  * <ul>
  * <li>my (JYT) limited understanding of the original Volgemant paper (
  * <code>Volgenant. Linear and semi-assignment problems:
@@ -60,6 +59,12 @@ import net.imglib2.util.Util;
  * 0.1% to 70%, the computation time increased by a factor ranging from 1.5 to 7
  * compared to the non-sparse version. For a given density, the comparison
  * depends very weakly on the matrix size.
+ * <p>
+ * The solver can be warm-started from the column duals of a similar problem,
+ * see {@link #setInitialColumnDuals(double[])}. The column reduction and
+ * reduction transfer are then replaced by a row reduction against these
+ * duals, and most rows are assigned before the augmentation phase when the
+ * problem changed little.
  *
  *
  * @author Jean-Yves Tinevez - 2014
@@ -69,7 +74,7 @@ import net.imglib2.util.Util;
  *      Volgenant
  *      "Linear and semi-assignment problems: A core oriented approach"</a>
  */
-public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
+public class LAPJV implements WarmStartLAPSolver, Benchmark
 {
 
 	private static final String BASE_ERROR_MESSAGE = "[JonkerVolgenantSparseAlgorithm] ";
@@ -80,7 +85,13 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 
 	private long processingTime;
 
-	private final SparseCostMatrix cm;
+	private final AssignmentCostMatrix cm;
+
+	private double[] initialColumnDuals;
+
+	private double[] columnDuals;
+
+	private int nAugmentations;
 
 	/**
 	 * Instantiates a new Jonker-Volgenant algorithm for the specified sparse
@@ -89,102 +100,168 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 	 * @param cm
 	 *            the cost matrix of the linear assignment problem to solve.
 	 */
-	public LAPJV( final SparseCostMatrix cm )
+	public LAPJV( final AssignmentCostMatrix cm )
 	{
 		this.cm = cm;
 	}
 
+	@Override
+	public void setInitialColumnDuals( final double[] v )
+	{
+		this.initialColumnDuals = v;
+	}
+
+	@Override
+	public double[] getColumnDuals()
+	{
+		return columnDuals;
+	}
+
+	/**
+	 * Returns the number of rows that were still free after the initial
+	 * reductions of the last solve, and that were assigned by searching an
+	 * augmenting path. This is the costly part of the solver.
+	 *
+	 * @return the number of augmentations.
+	 */
+	public int getNumberOfAugmentations()
+	{
+		return nAugmentations;
+	}
+
 	@Override
 	public boolean process()
 	{
 		final long start = System.currentTimeMillis();
 
-		final int[] x = new int[ cm.nRows ];
-		final int[] y = new int[ cm.nCols ];
-		final double[] v = new double[ cm.nCols ];
+		final int nRows = cm.getNRows();
+		final int nCols = cm.getNCols();
+		final int[] x = new int[ nRows ];
+		final int[] y = new int[ nCols ];
+		final double[] v = new double[ nCols ];
 
-		final int[] col = new int[ cm.nCols ];
+		final int[] col = new int[ nCols ];
 		for ( int j = 0; j < col.length; j++ )
 		{
 			col[ j ] = j;
 		}
 
-		/*
-		 * Column reduction
-		 */
-
-		Arrays.fill( v, Double.MAX_VALUE );
-		for ( int i = 0; i < cm.nRows; i++ )
+		int f = 0;
+		final int[] free = new int[ nRows ];
+		if ( null != initialColumnDuals )
 		{
-			for ( int k = cm.start[ i ]; k < cm.start[ i ] + cm.number[ i ]; k++ )
+			/*
+			 * Row reduction against the given column duals. Each row is
+			 * assigned to the column of its minimal reduced cost, if this
+			 * column is still free.
+			 */
+
+			System.arraycopy( initialColumnDuals, 0, v, 0, nCols );
+			for ( int i = 0; i < nRows; i++ )
 			{
-				final int j = cm.kk[ k ];
-				if ( cm.cc[ k ] < v[ j ] )
+				double min = Double.MAX_VALUE;
+				int jmin = -1;
+				final int size = cm.rowSize( i );
+				for ( int k = 0; k < size; k++ )
+				{
+					final int j = cm.column( i, k );
+					final double h = cm.cost( i, k ) - v[ j ];
+					if ( h < min )
+					{
+						min = h;
+						jmin = j;
+					}
+				}
+				if ( jmin >= 0 && y[ jmin ] == 0 )
+				{
+					x[ i ] = jmin + 1;
+					y[ jmin ] = i + 1;
+				}
+				else
 				{
-					v[ j ] = cm.cc[ k ];
-					y[ j ] = i + 1;
+					free[ f++ ] = i;
 				}
 			}
 		}
-
-		for ( int j = cm.nCols - 1; j >= 0; j-- )
+		else
 		{
-			final int i = y[ j ] - 1;
-			if ( x[ i ] == 0 )
+			/*
+			 * Column reduction
+			 */
+
+			Arrays.fill( v, Double.MAX_VALUE );
+			for ( int i = 0; i < nRows; i++ )
 			{
-				x[ i ] = j + 1;
+				final int size = cm.rowSize( i );
+				for ( int k = 0; k < size; k++ )
+				{
+					final int j = cm.column( i, k );
+					final double c = cm.cost( i, k );
+					if ( c < v[ j ] )
+					{
+						v[ j ] = c;
+						y[ j ] = i + 1;
+					}
+				}
 			}
-			else
+
+			for ( int j = nCols - 1; j >= 0; j-- )
 			{
-				if ( x[ i ] > 0 )
+				final int i = y[ j ] - 1;
+				if ( x[ i ] == 0 )
 				{
-					x[ i ] = -x[ i ];
+					x[ i ] = j + 1;
+				}
+				else
+				{
+					if ( x[ i ] > 0 )
+					{
+						x[ i ] = -x[ i ];
+					}
+					y[ j ] = 0;
 				}
-				y[ j ] = 0;
 			}
-		}
 
-		/*
-		 * Reduction transfer.
-		 */
+			/*
+			 * Reduction transfer.
+			 */
 
-		int f = 0;
-		final int[] free = new int[ cm.nRows ];
-		for ( int i = 0; i < cm.nRows; i++ )
-		{
-			if ( x[ i ] == 0 )
+			for ( int i = 0; i < nRows; i++ )
 			{
-				// unassigned row in free-array
-				free[ f++ ] = i;
-				continue;
-			}
-			else if ( x[ i ] < 0 )
-			{
-				// no reduction transfer possible
-				x[ i ] = -x[ i ];
-			}
-			else
-			{
-				// reduction transfer from assigned row
-				final int j1 = x[ i ] - 1;
-				double min = Double.MAX_VALUE;
-				for ( int k = cm.start[ i ]; k < cm.start[ i ] + cm.number[ i ]; k++ )
+				if ( x[ i ] == 0 )
+				{
+					// unassigned row in free-array
+					free[ f++ ] = i;
+					continue;
+				}
+				else if ( x[ i ] < 0 )
+				{
+					// no reduction transfer possible
+					x[ i ] = -x[ i ];
+				}
+				else
 				{
-					final int j = cm.kk[ k ];
-					if ( j != j1 )
+					// reduction transfer from assigned row
+					final int j1 = x[ i ] - 1;
+					double min = Double.MAX_VALUE;
+					final int size = cm.rowSize( i );
+					for ( int k = 0; k < size; k++ )
 					{
-						if ( cm.cc[ k ] - v[ j ] < min )
+						final int j = cm.column( i, k );
+						if ( j != j1 )
 						{
-							min = cm.cc[ k ] - v[ j ];
+							final double h = cm.cost( i, k ) - v[ j ];
+							if ( h < min )
+							{
+								min = h;
+							}
 						}
 					}
+					v[ j1 ] -= min;
 				}
-				v[ j1 ] -= min;
 			}
 		}
 
-		if ( f == 0 ) { return true; }
-
 		/*
 		 * Augmenting row reduction.
 		 */
@@ -200,10 +277,11 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 				double v0 = Double.MAX_VALUE;
 				int j0 = 0, j1 = -1;
 				double vj = Double.MAX_VALUE;
-				for ( int kj = cm.start[ i ]; kj < cm.start[ i ] + cm.number[ i ]; kj++ )
+				final int size = cm.rowSize( i );
+				for ( int kj = 0; kj < size; kj++ )
 				{
-					final int j = cm.kk[ kj ];
-					final double h = cm.cc[ kj ] - v[ j ];
+					final int j = cm.column( i, kj );
+					final double h = cm.cost( i, kj ) - v[ j ];
 					if ( h < vj )
 					{
 						if ( h > v0 )
@@ -254,18 +332,20 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 		 */
 
 		final int f0 = f;
-		final double[] d = new double[ cm.nCols ];
-		final int[] pred = new int[ cm.nCols ];
+		nAugmentations = f0;
+		final double[] d = new double[ nCols ];
+		final int[] pred = new int[ nCols ];
 		for ( f = 0; f < f0; f++ )
 		{
 			final int i1 = free[ f ];
 			int low = 0, up = 0;
 			// initialize d- and pred-array
 			Arrays.fill( d, Double.MAX_VALUE );
-			for ( int k = cm.start[ i1 ]; k < cm.start[ i1 ] + cm.number[ i1 ]; k++ )
+			final int size1 = cm.rowSize( i1 );
+			for ( int k = 0; k < size1; k++ )
 			{
-				final int j = cm.kk[ k ];
-				d[ j ] = cm.cc[ k ] - v[ j ];
+				final int j = cm.column( i1, k );
+				d[ j ] = cm.cost( i1, k ) - v[ j ];
 				pred[ j ] = i1;
 			}
 			int last;
@@ -279,7 +359,7 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 				{
 					last = low;
 					min = d[ col[ up++ ] ];
-					for ( int k = up; k < cm.nCols; k++ )
+					for ( int k = up; k < nCols; k++ )
 					{
 						j = col[ k ];
 						final double h = d[ j ];
@@ -309,23 +389,23 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 					final int j1 = col[ low++ ];
 					i = y[ j1 ] - 1;
 
-					final int kj1 = Arrays.binarySearch( cm.kk, cm.start[ i ], cm.start[ i ] + cm.number[ i ], j1 );
+					final int kj1 = cm.indexOf( i, j1 );
 					if ( kj1 < 0 )
 					{
 						continue;
 					}
 
-					final double u1 = cm.cc[ kj1 ] - v[ j1 ] - min;
-					for ( int k = up; k < cm.nCols; k++ )
+					final double u1 = cm.cost( i, kj1 ) - v[ j1 ] - min;
+					for ( int k = up; k < nCols; k++ )
 					{
 						j = col[ k ];
-						final int kj = Arrays.binarySearch( cm.kk, cm.start[ i ], cm.start[ i ] + cm.number[ i ], j );
+						final int kj = cm.indexOf( i, j );
 						if ( kj < 0 )
 						{
 							continue;
 						}
 
-						final double h = cm.cc[ kj ] - v[ j ] - u1;
+						final double h = cm.cost( i, kj ) - v[ j ] - u1;
 						if ( h < d[ j ] )
 						{
 							d[ j ] = h;
@@ -374,6 +454,7 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 		{
 			output[ i ] = x[ i ] - 1;
 		}
+		this.columnDuals = v;
 
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
@@ -387,12 +468,12 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 	@Override
 	public boolean checkInput()
 	{
-		if ( cm.nRows > cm.nCols )
+		if ( cm.getNRows() > cm.getNCols() )
 		{
-			errorMessage = BASE_ERROR_MESSAGE + "This solver converges only if the cost matrix has more rows than column. Found " + cm.nRows + " rows and " + cm.nCols + " columns.";
+			errorMessage = BASE_ERROR_MESSAGE + "This solver converges only if the cost matrix has more rows than column. Found " + cm.getNRows() + " rows and " + cm.getNCols() + " columns.";
 			return false;
 		}
-		final double minCost = Util.min( cm.cc );
+		final double minCost = cm.getMinCost();
 		if ( minCost < 0 )
 		{
 			errorMessage = BASE_ERROR_MESSAGE + "This solver only accept positive costs. Found " + minCost + ".";
@@ -435,13 +516,13 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 	{
 		if ( null == output ) { return "Not solved yet. Process the algorithm prior to calling this method."; }
 
-		final String[] colNames = new String[ cm.nCols ];
+		final String[] colNames = new String[ cm.getNCols() ];
 		// default names
 		for ( int j = 0; j < colNames.length; j++ )
 		{
 			colNames[ j ] = "" + j;
 		}
-		final String[] rowNames = new String[ cm.nRows ];
+		final String[] rowNames = new String[ cm.getNRows() ];
 		for ( int i = 0; i < rowNames.length; i++ )
 		{
 			rowNames[ i ] = "" + i;
@@ -521,7 +602,7 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 			}
 			str.append( String.format( " cost = %" + digits + ".1f\n", cost ) );
 		}
-		if ( cm.nCols > cm.nRows )
+		if ( cm.getNCols() > cm.getNRows() )
 		{
 			str.append( "Unassigned columns:\n" );
 			for ( final String ucn : unassignedColNames )
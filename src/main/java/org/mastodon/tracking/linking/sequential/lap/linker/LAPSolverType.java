@@ -26,56 +26,54 @@
  * POSSIBILITY OF SUCH DAMAGE.
  * #L%
  */
-package org.mastodon.tracking.linking.sequential.kalman;
+package org.mastodon.tracking.linking.sequential.lap.linker;
 
-import org.mastodon.pool.ByteMappedElement;
-import org.mastodon.pool.ByteMappedElementArray;
-import org.mastodon.pool.Pool;
-import org.mastodon.pool.PoolObjectLayout;
-import org.mastodon.pool.SingleArrayMemPool;
-import org.mastodon.pool.attributes.RealPointAttribute;
-
-class PredictionPool extends Pool< Prediction, ByteMappedElement >
+/**
+ * The solvers available for linear assignment problems.
+ */
+public enum LAPSolverType
 {
-	static class PredictionLayout extends PoolObjectLayout
-	{
-		final DoubleArrayField position = doubleArrayField( 3 );
-	}
+	/**
+	 * Chooses between {@link #JONKER_VOLGENANT} and
+	 * {@link #SHORTEST_AUGMENTING_PATH} from the size and density of the
+	 * matrix.
+	 */
+	AUTO( "automatic" ),
+	/**
+	 * The {@link LAPJV} solver.
+	 */
+	JONKER_VOLGENANT( "Jonker-Volgenant" ),
+	/**
+	 * The {@link ShortestAugmentingPathLAP} solver.
+	 */
+	SHORTEST_AUGMENTING_PATH( "shortest augmenting path" ),
+	/**
+	 * The {@link AuctionLAP} solver, parallel and approximate.
+	 */
+	AUCTION( "parallel auction" );
 
-	static final PredictionLayout layout = new PredictionLayout();
+	private final String str;
 
-	final RealPointAttribute< Prediction > position;
-
-	public PredictionPool( final int initialCapacity )
+	LAPSolverType( final String str )
 	{
-		super(
-				initialCapacity,
-				layout,
-				Prediction.class,
-				SingleArrayMemPool.factory( ByteMappedElementArray.factory ) );
-		position = new RealPointAttribute<>( layout.position, this );
+		this.str = str;
 	}
 
 	@Override
-	public Prediction create( final Prediction obj )
+	public String toString()
 	{
-		return super.create( obj );
+		return str;
 	}
 
-	public Prediction create()
-	{
-		return super.create( createRef() );
-	}
-
-	@Override
-	public void delete( final Prediction obj )
-	{
-		super.delete( obj );
-	}
-
-	@Override
-	protected Prediction createEmptyRef()
+	public static LAPSolverType getOrDefault( final String name, final LAPSolverType defaultSolverType )
 	{
-		return new Prediction( this );
+		try
+		{
+			return LAPSolverType.valueOf( name );
+		}
+		catch ( final IllegalArgumentException | NullPointerException e )
+		{
+			return defaultSolverType;
+		}
 	}
 }
@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import net.imglib2.algorithm.OutputAlgorithm;
+
+/**
+ * Static utilities to create solvers for linear assignment problems.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class LAPSolvers
+{
+
+	/**
+	 * Below this fraction of non-infinite costs, and above
+	 * {@link #MIN_SPARSE_SIZE} columns, the shortest augmenting path solver is
+	 * used.
+	 */
+	public static final double MAX_SPARSE_DENSITY = 0.01;
+
+	/**
+	 * Below this number of columns, {@link LAPJV} is always used.
+	 */
+	public static final int MIN_SPARSE_SIZE = 1000;
+
+	/**
+	 * Creates a solver for the specified cost matrix, chosen from its size and
+	 * density. {@link LAPJV} scans all the columns when looking for augmenting
+	 * paths, which is efficient for small or dense matrices. Large and very
+	 * sparse matrices are solved with a {@link ShortestAugmentingPathLAP},
+	 * that only visits the columns reachable from each row.
+	 *
+	 * @param cm
+	 *            the cost matrix.
+	 * @return a new solver, returning the assignment by row.
+	 */
+	public static final OutputAlgorithm< int[] > create( final AssignmentCostMatrix cm )
+	{
+		return isLargeAndSparse( cm ) ? new ShortestAugmentingPathLAP( cm ) : new LAPJV( cm );
+	}
+
+	/**
+	 * Creates a solver of the specified type for the specified cost matrix.
+	 *
+	 * @param cm
+	 *            the cost matrix.
+	 * @param type
+	 *            the solver type. {@link LAPSolverType#AUTO} chooses as in
+	 *            {@link #create(AssignmentCostMatrix)}.
+	 * @param tolerance
+	 *            the maximal gap to the optimal total cost, for approximate
+	 *            solvers.
+	 * @return a new solver, returning the assignment by row.
+	 */
+	public static final OutputAlgorithm< int[] > create( final AssignmentCostMatrix cm, final LAPSolverType type, final double tolerance )
+	{
+		switch ( type )
+		{
+		case JONKER_VOLGENANT:
+			return new LAPJV( cm );
+		case SHORTEST_AUGMENTING_PATH:
+			return new ShortestAugmentingPathLAP( cm );
+		case AUCTION:
+			return new AuctionLAP( cm, tolerance );
+		case AUTO:
+		default:
+			return create( cm );
+		}
+	}
+
+	/**
+	 * Creates a solver of the specified type that can be warm-started from
+	 * column duals. The {@link LAPSolverType#AUCTION} solver does not support
+	 * warm starts, and is replaced by the automatic choice.
+	 *
+	 * @param cm
+	 *            the cost matrix.
+	 * @param type
+	 *            the solver type.
+	 * @return a new solver, returning the assignment by row.
+	 */
+	public static final WarmStartLAPSolver createWarmStart( final AssignmentCostMatrix cm, final LAPSolverType type )
+	{
+		switch ( type )
+		{
+		case JONKER_VOLGENANT:
+			return new LAPJV( cm );
+		case SHORTEST_AUGMENTING_PATH:
+			return new ShortestAugmentingPathLAP( cm );
+		case AUCTION:
+		case AUTO:
+		default:
+			return isLargeAndSparse( cm ) ? new ShortestAugmentingPathLAP( cm ) : new LAPJV( cm );
+		}
+	}
+
+	private static boolean isLargeAndSparse( final AssignmentCostMatrix cm )
+	{
+		final int nRows = cm.getNRows();
+		final int nCols = cm.getNCols();
+		if ( nCols < MIN_SPARSE_SIZE )
+			return false;
+
+		long cardinality = 0;
+		for ( int i = 0; i < nRows; i++ )
+			cardinality += cm.rowSize( i );
+		final double density = ( double ) cardinality / ( ( double ) nRows * nCols );
+		return density <= MAX_SPARSE_DENSITY;
+	}
+
+	/**
+	 * Returns the gap to the optimal total cost of the assignment found by
+	 * the specified solver, after it was run. Exact solvers have a gap of 0.
+	 *
+	 * @param solver
+	 *            the solver.
+	 * @return the optimality gap.
+	 */
+	public static final double getOptimalityGap( final OutputAlgorithm< int[] > solver )
+	{
+		if ( solver instanceof AuctionLAP )
+			return ( ( AuctionLAP ) solver ).getOptimalityGap();
+		return 0.;
+	}
+
+	/**
+	 * Returns the number of augmenting paths searched by the specified solver
+	 * in its last run, after the initial reductions. Solvers that do not
+	 * report it return 0.
+	 *
+	 * @param solver
+	 *            the solver.
+	 * @return the number of augmentations.
+	 */
+	public static final int getNumberOfAugmentations( final OutputAlgorithm< int[] > solver )
+	{
+		if ( solver instanceof LAPJV )
+			return ( ( LAPJV ) solver ).getNumberOfAugmentations();
+		return 0;
+	}
+
+	private LAPSolvers()
+	{}
+}
@@ -0,0 +1,467 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.util.Arrays;
+
+import net.imglib2.algorithm.Benchmark;
+
+/**
+ * Solves linear assignment problems on very sparse cost matrices with
+ * successive shortest augmenting paths.
+ * <p>
+ * After a column reduction, each free row is assigned by a Dijkstra search
+ * on the reduced costs, from the row to the closest free column. The search
+ * only visits the columns reachable from the row, and keeps them in an
+ * indexed binary heap. The cost of one augmentation therefore depends on the
+ * number of non-infinite costs visited, and not on the number of columns as
+ * in the linear scans of {@link LAPJV}. This solver is faster than
+ * {@link LAPJV} on large matrices with a handful of costs per row, and slower
+ * on small or dense ones. See {@link LAPSolvers#create(AssignmentCostMatrix)}
+ * for an automatic choice.
+ * <p>
+ * Like {@link LAPJV}, this solver requires the matrix to have at least as many
+ * columns as rows, returns the assignment by row, and can be warm-started from
+ * column duals. The column reduction is then replaced by a row reduction
+ * against these duals.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ShortestAugmentingPathLAP implements WarmStartLAPSolver, Benchmark
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[ShortestAugmentingPathLAP] ";
+
+	private static final byte UNSEEN = 0;
+
+	private static final byte IN_HEAP = 1;
+
+	private static final byte SCANNED = 2;
+
+	private int[] output;
+
+	private double[] columnDuals;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private final AssignmentCostMatrix cm;
+
+	private double[] initialColumnDuals;
+
+	/**
+	 * Instantiates a new shortest augmenting path solver for the specified
+	 * sparse cost matrix.
+	 *
+	 * @param cm
+	 *            the cost matrix of the linear assignment problem to solve.
+	 */
+	public ShortestAugmentingPathLAP( final AssignmentCostMatrix cm )
+	{
+		this.cm = cm;
+	}
+
+	@Override
+	public void setInitialColumnDuals( final double[] v )
+	{
+		this.initialColumnDuals = v;
+	}
+
+	@Override
+	public double[] getColumnDuals()
+	{
+		return columnDuals;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final int nRows = cm.getNRows();
+		final int nCols = cm.getNCols();
+
+		// Row to column, and column to row assignments, -1 if free.
+		final int[] x = new int[ nRows ];
+		final int[] y = new int[ nCols ];
+		Arrays.fill( x, -1 );
+		Arrays.fill( y, -1 );
+
+		// Column duals.
+		final double[] v = new double[ nCols ];
+
+		if ( null != initialColumnDuals )
+		{
+			/*
+			 * Row reduction against the given column duals. Each row is
+			 * assigned to the column of its minimal reduced cost, if this
+			 * column is still free, which keeps the reduced costs of assigned
+			 * rows non-negative and zero on the assignment.
+			 */
+
+			System.arraycopy( initialColumnDuals, 0, v, 0, nCols );
+			for ( int i = 0; i < nRows; i++ )
+			{
+				double min = Double.POSITIVE_INFINITY;
+				int jmin = -1;
+				final int size = cm.rowSize( i );
+				for ( int k = 0; k < size; k++ )
+				{
+					final int j = cm.column( i, k );
+					final double h = cm.cost( i, k ) - v[ j ];
+					if ( h < min )
+					{
+						min = h;
+						jmin = j;
+					}
+				}
+				if ( jmin >= 0 && y[ jmin ] < 0 )
+				{
+					x[ i ] = jmin;
+					y[ jmin ] = i;
+				}
+			}
+		}
+		else
+		{
+			/*
+			 * Column reduction. A row is assigned to the first column it is the
+			 * minimum of, so that all the reduced costs of assigned rows are
+			 * non-negative and zero on the assignment.
+			 */
+
+			Arrays.fill( v, Double.POSITIVE_INFINITY );
+			final int[] argmin = new int[ nCols ];
+			for ( int i = 0; i < nRows; i++ )
+			{
+				final int size = cm.rowSize( i );
+				for ( int k = 0; k < size; k++ )
+				{
+					final int j = cm.column( i, k );
+					final double c = cm.cost( i, k );
+					if ( c < v[ j ] )
+					{
+						v[ j ] = c;
+						argmin[ j ] = i;
+					}
+				}
+			}
+			for ( int j = 0; j < nCols; j++ )
+			{
+				if ( v[ j ] == Double.POSITIVE_INFINITY )
+				{
+					// Empty column, never reached.
+					v[ j ] = 0.;
+					continue;
+				}
+				final int i = argmin[ j ];
+				if ( x[ i ] < 0 )
+				{
+					x[ i ] = j;
+					y[ j ] = i;
+				}
+			}
+		}
+
+		/*
+		 * Shortest augmenting paths.
+		 */
+
+		final double[] d = new double[ nCols ];
+		final int[] pred = new int[ nCols ];
+		final byte[] state = new byte[ nCols ];
+		final int[] touched = new int[ nCols ];
+		final int[] scanned = new int[ nCols ];
+		final IndexedMinHeap heap = new IndexedMinHeap( nCols, d );
+
+		for ( int i1 = 0; i1 < nRows; i1++ )
+		{
+			if ( x[ i1 ] >= 0 )
+				continue;
+
+			int nTouched = 0;
+			int nScanned = 0;
+
+			// Distances from the free row.
+			final int size1 = cm.rowSize( i1 );
+			for ( int k = 0; k < size1; k++ )
+			{
+				final int j = cm.column( i1, k );
+				final double h = cm.cost( i1, k ) - v[ j ];
+				if ( state[ j ] == UNSEEN )
+				{
+					state[ j ] = IN_HEAP;
+					touched[ nTouched++ ] = j;
+					d[ j ] = h;
+					pred[ j ] = i1;
+					heap.add( j );
+				}
+				else if ( h < d[ j ] )
+				{
+					d[ j ] = h;
+					pred[ j ] = i1;
+					heap.decreaseKey( j );
+				}
+			}
+
+			int sink = -1;
+			double min = 0.;
+			while ( !heap.isEmpty() )
+			{
+				final int j1 = heap.poll();
+				min = d[ j1 ];
+				if ( y[ j1 ] < 0 )
+				{
+					sink = j1;
+					break;
+				}
+
+				state[ j1 ] = SCANNED;
+				scanned[ nScanned++ ] = j1;
+
+				// Scan the row assigned to this column.
+				final int i = y[ j1 ];
+				final double u1 = cm.cost( i, cm.indexOf( i, j1 ) ) - v[ j1 ] - min;
+				final int size = cm.rowSize( i );
+				for ( int k = 0; k < size; k++ )
+				{
+					final int j = cm.column( i, k );
+					if ( state[ j ] == SCANNED )
+						continue;
+
+					final double h = cm.cost( i, k ) - v[ j ] - u1;
+					if ( state[ j ] == UNSEEN )
+					{
+						state[ j ] = IN_HEAP;
+						touched[ nTouched++ ] = j;
+						d[ j ] = h;
+						pred[ j ] = i;
+						heap.add( j );
+					}
+					else if ( h < d[ j ] )
+					{
+						d[ j ] = h;
+						pred[ j ] = i;
+						heap.decreaseKey( j );
+					}
+				}
+			}
+
+			if ( sink < 0 )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Could not find a complete assignment: row " + i1 + " cannot be assigned.";
+				return false;
+			}
+
+			// Update the duals of the scanned columns.
+			for ( int s = 0; s < nScanned; s++ )
+			{
+				final int j = scanned[ s ];
+				v[ j ] += d[ j ] - min;
+			}
+
+			// Augment along the path.
+			int j = sink;
+			int i;
+			do
+			{
+				i = pred[ j ];
+				y[ j ] = i;
+				final int k = j;
+				j = x[ i ];
+				x[ i ] = k;
+			}
+			while ( i != i1 );
+
+			// Reset the columns visited by this search.
+			heap.clear();
+			for ( int t = 0; t < nTouched; t++ )
+				state[ touched[ t ] ] = UNSEEN;
+		}
+
+		this.output = x;
+		this.columnDuals = v;
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		return true;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( cm.getNRows() > cm.getNCols() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "This solver converges only if the cost matrix has more rows than column. Found " + cm.getNRows() + " rows and " + cm.getNCols() + " columns.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	/**
+	 * Returns the results as row assignments. The row <code>i</code> is
+	 * associated to the column <code>x[i]</code> in the cost matrix.
+	 *
+	 * @return the row assignments as an <code>int[]</code> array. This array is
+	 *         re-instantiated upon calling {@link #process()}.
+	 */
+	@Override
+	public int[] getResult()
+	{
+		return output;
+	}
+
+	/**
+	 * A binary min-heap of column indices, ordered by their value in a
+	 * <code>double[]</code> array, that supports decreasing the value of an
+	 * element in the heap.
+	 */
+	private static final class IndexedMinHeap
+	{
+
+		private final int[] heap;
+
+		/**
+		 * Position of each column in the heap, -1 if not in the heap.
+		 */
+		private final int[] position;
+
+		private final double[] keys;
+
+		private int size;
+
+		private IndexedMinHeap( final int capacity, final double[] keys )
+		{
+			this.heap = new int[ capacity ];
+			this.position = new int[ capacity ];
+			Arrays.fill( position, -1 );
+			this.keys = keys;
+			this.size = 0;
+		}
+
+		private boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		private void add( final int j )
+		{
+			heap[ size ] = j;
+			position[ j ] = size;
+			size++;
+			siftUp( size - 1 );
+		}
+
+		/**
+		 * Restores the heap order after the key of <code>j</code> was
+		 * decreased.
+		 */
+		private void decreaseKey( final int j )
+		{
+			siftUp( position[ j ] );
+		}
+
+		private int poll()
+		{
+			final int top = heap[ 0 ];
+			position[ top ] = -1;
+			size--;
+			if ( size > 0 )
+			{
+				heap[ 0 ] = heap[ size ];
+				position[ heap[ 0 ] ] = 0;
+				siftDown( 0 );
+			}
+			return top;
+		}
+
+		private void clear()
+		{
+			for ( int p = 0; p < size; p++ )
+				position[ heap[ p ] ] = -1;
+			size = 0;
+		}
+
+		private void siftUp( int p )
+		{
+			final int j = heap[ p ];
+			final double key = keys[ j ];
+			while ( p > 0 )
+			{
+				final int parent = ( p - 1 ) >>> 1;
+				final int jp = heap[ parent ];
+				if ( keys[ jp ] <= key )
+					break;
+				heap[ p ] = jp;
+				position[ jp ] = p;
+				p = parent;
+			}
+			heap[ p ] = j;
+			position[ j ] = p;
+		}
+
+		private void siftDown( int p )
+		{
+			final int j = heap[ p ];
+			final double key = keys[ j ];
+			final int half = size >>> 1;
+			while ( p < half )
+			{
+				int child = 2 * p + 1;
+				int jc = heap[ child ];
+				final int right = child + 1;
+				if ( right < size && keys[ heap[ right ] ] < keys[ jc ] )
+				{
+					child = right;
+					jc = heap[ child ];
+				}
+				if ( key <= keys[ jc ] )
+					break;
+				heap[ p ] = jc;
+				position[ jc ] = p;
+				p = child;
+			}
+			heap[ p ] = j;
+			position[ j ] = p;
+		}
+	}
+}
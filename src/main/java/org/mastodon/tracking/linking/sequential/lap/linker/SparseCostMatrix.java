@@ -57,7 +57,7 @@ import java.util.List;
  *
  * @author Jean-Yves Tinevez - 2014
  */
-public class SparseCostMatrix
+public class SparseCostMatrix implements AssignmentCostMatrix
 {
 
 	/**
@@ -314,6 +314,7 @@ public class SparseCostMatrix
 	 *            the assignment, specified by row.
 	 * @return the total cost for this assignment.
 	 */
+	@Override
 	public double totalAssignmentCost( final int[] rowAssignment )
 	{
 		double sum = 0;
@@ -368,6 +369,7 @@ public class SparseCostMatrix
 	 *            the specified row and column.
 	 * @return the value.
 	 */
+	@Override
 	public final double get( final int i, final int j, final double missingValue )
 	{
 		final int k = Arrays.binarySearch( kk, start[ i ], start[ i ] + number[ i ], j );
@@ -391,16 +393,52 @@ public class SparseCostMatrix
 		return cc;
 	}
 
+	@Override
 	public int getNCols()
 	{
 		return nCols;
 	}
 
+	@Override
 	public int getNRows()
 	{
 		return nRows;
 	}
 
+	@Override
+	public int rowSize( final int i )
+	{
+		return number[ i ];
+	}
+
+	@Override
+	public int column( final int i, final int k )
+	{
+		return kk[ start[ i ] + k ];
+	}
+
+	@Override
+	public double cost( final int i, final int k )
+	{
+		return cc[ start[ i ] + k ];
+	}
+
+	@Override
+	public int indexOf( final int i, final int j )
+	{
+		final int k = Arrays.binarySearch( kk, start[ i ], start[ i ] + number[ i ], j );
+		return ( k < 0 ) ? -1 : k - start[ i ];
+	}
+
+	@Override
+	public double getMinCost()
+	{
+		double min = Double.POSITIVE_INFINITY;
+		for ( final double c : cc )
+			min = Math.min( min, c );
+		return min;
+	}
+
 	/**
 	 * Returns the vertical concatenation of this matrix with the specified one.
 	 * So that if this matrix is A and the specified matrix is B, you get
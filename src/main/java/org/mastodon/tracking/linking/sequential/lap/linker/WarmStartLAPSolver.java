@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import net.imglib2.algorithm.OutputAlgorithm;
+
+/**
+ * Interface for solvers of linear assignment problems that maintain column
+ * duals, and that can be warm-started from the column duals of a similar
+ * problem.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public interface WarmStartLAPSolver extends OutputAlgorithm< int[] >
+{
+
+	/**
+	 * Sets the column duals to start from. If <code>null</code>, the default,
+	 * the duals are initialized by column reduction. Any values give a valid
+	 * starting point, but the solver only saves work if they are close to the
+	 * optimal duals of this problem.
+	 *
+	 * @param v
+	 *            the initial column duals, one per column. Not modified.
+	 */
+	public void setInitialColumnDuals( double[] v );
+
+	/**
+	 * Returns the column duals of the last solve. Together with the
+	 * assignment, they satisfy <code>c(i,j) - v[j] &ge; c(i,x[i]) -
+	 * v[x[i]]</code> for every non-infinite cost <code>c(i,j)</code>.
+	 *
+	 * @return the column duals, or <code>null</code> if the solver was not
+	 *         run.
+	 */
+	public double[] getColumnDuals();
+
+}
@@ -48,9 +48,17 @@ import net.imglib2.algorithm.Benchmark;
 				+ "to the image, with a sigma suited to the blob estimated size. "
 				+ "<p>"
 				+ "This detector exploits multi-resolution images to speed-up detection. "
-				+ "Calculations are made in the Fourier space. The maxima in the "
+				+ "Calculations are made with separable convolutions or in the Fourier "
+				+ "space, whichever is the fastest. The maxima in the "
 				+ "filtered image are searched for, and a quadratic fitting scheme allows to do "
 				+ "sub-pixel localization. "
+				+ "<p>"
+				+ "The LoG kernel extends to 3 sigma along each dimension, with the sigma of "
+				+ "this dimension. The quality values keep the scale they had with the "
+				+ "previous kernel, but can differ slightly for small radii, where the previous "
+				+ "kernel was truncated closer to its center, and for images with anisotropic "
+				+ "pixel sizes, where it used the X sigma in all dimensions. Thresholds may "
+				+ "need to be adjusted in these cases. "
 				+ "</html>" )
 public class LoGDetectorMamut extends AbstractSpotDetectorOp implements SpotDetectorOp, Benchmark
 {
@@ -28,20 +28,13 @@
  */
 package org.mastodon.tracking.mamut.detection;
 
-import org.mastodon.collection.RefCollections;
-import org.mastodon.collection.RefList;
-import org.mastodon.collection.RefSet;
-import org.mastodon.kdtree.IncrementalNearestNeighborSearch;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
-import org.mastodon.spatial.SpatialIndex;
 import org.mastodon.spatial.SpatioTemporalIndex;
 import org.mastodon.tracking.detection.DetectionCreatorFactory;
 import org.mastodon.tracking.detection.DetectionCreatorFactory.DetectionCreator;
 
-import net.imglib2.RealPoint;
-
 /**
  * Collection of {@link DetectionCreatorFactory}s suitable to be used with a
  * MaMuT {@link Model}.
@@ -231,7 +224,7 @@ public class MamutDetectionCreatorFactories
 		@Override
 		public DetectionCreator create( final int timepoint )
 		{
-			return new RemoveAllDetectionCreator( graph, qualityFeature, sti.getSpatialIndex( timepoint ), timepoint );
+			return new RemoveAllDetectionCreator( graph, qualityFeature, sti, timepoint );
 		}
 	}
 
@@ -242,17 +235,17 @@ public class MamutDetectionCreatorFactories
 
 		private final DetectionQualityFeature qualityFeature;
 
-		private final SpatialIndex< Spot > spatialIndex;
+		private final SpatioTemporalIndex< Spot > sti;
 
 		private final int timepoint;
 
 		private final Spot ref;
 
-		public RemoveAllDetectionCreator( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final SpatialIndex< Spot > spatialIndex, final int timepoint )
+		public RemoveAllDetectionCreator( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final SpatioTemporalIndex< Spot > sti, final int timepoint )
 		{
 			this.graph = graph;
 			this.qualityFeature = qualityFeature;
-			this.spatialIndex = spatialIndex;
+			this.sti = sti;
 			this.timepoint = timepoint;
 			this.ref = graph.vertexRef();
 		}
@@ -260,16 +253,9 @@ public class MamutDetectionCreatorFactories
 		@Override
 		public void preAddition()
 		{
-			graph.getLock().readLock().lock();
-			final RefList< Spot > toRemove = RefCollections.createRefList( graph.vertices() );
-			// Remove all in time-point.
-			for ( final Spot spot : spatialIndex )
-				toRemove.add( spot );
-
-			graph.getLock().readLock().unlock();
 			graph.getLock().writeLock().lock();
-			for ( final Spot spot : toRemove )
-				graph.remove( spot );
+			// Remove all in time-point.
+			MamutDetectionUtil.clearTimepoint( graph, sti, timepoint, false );
 		}
 
 		@Override
@@ -305,84 +291,7 @@ public class MamutDetectionCreatorFactories
 		@Override
 		public DetectionCreator create( final int timepoint )
 		{
-			return new ReplaceDetectionCreator( graph, qualityFeature, sti.getSpatialIndex( timepoint ), timepoint );
-		}
-	}
-
-	private static class ReplaceDetectionCreator implements DetectionCreator
-	{
-
-		private final IncrementalNearestNeighborSearch< Spot > search;
-
-		private double r2max = 0.;
-
-		private final SpatialIndex< Spot > si;
-
-		private final EllipsoidInsideTest test;
-
-		private final RefSet< Spot > toRemove;
-
-		private final ModelGraph graph;
-
-		private final DetectionQualityFeature qualityFeature;
-
-		private final int timepoint;
-
-		private final Spot ref;
-
-		private ReplaceDetectionCreator( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final SpatialIndex< Spot > si, final int timepoint )
-		{
-			this.graph = graph;
-			this.qualityFeature = qualityFeature;
-			this.si = si;
-			this.timepoint = timepoint;
-			this.ref = graph.vertexRef();
-			this.search = si.getIncrementalNearestNeighborSearch();
-			this.test = new EllipsoidInsideTest();
-			this.toRemove = RefCollections.createRefSet( graph.vertices() );
-		}
-
-		@Override
-		public void preAddition()
-		{
-			toRemove.clear();
-			// Measure current max bounding sphere radius squared.
-			graph.getLock().readLock().lock();
-			this.r2max = 0.;
-			for ( final Spot spot : si )
-				if ( spot.getBoundingSphereRadiusSquared() > r2max )
-					r2max = spot.getBoundingSphereRadiusSquared();
-
-			graph.getLock().readLock().unlock();
-			graph.getLock().writeLock().lock();
-		}
-
-		@Override
-		public void createDetection( final double[] pos, final double radius, final double quality )
-		{
-			final Spot spot = graph.addVertex( ref ).init( timepoint, pos, radius );
-			qualityFeature.set( spot, quality );
-			search.search( spot );
-			final double lr2 = Math.max( r2max, radius * radius );
-			while ( search.hasNext() )
-			{
-				final Spot neigbhor = search.next();
-				if ( neigbhor.equals( spot ) )
-					continue;
-				if ( search.getSquareDistance() > lr2 )
-					break;
-				if ( test.areCentersInside( spot, neigbhor ) )
-					toRemove.add( neigbhor );
-			}
-		}
-
-		@Override
-		public void postAddition()
-		{
-			for ( final Spot spot : toRemove )
-				graph.remove( spot );
-
-			graph.getLock().writeLock().unlock();
+			return new OverlapResolvingDetectionCreator( graph, qualityFeature, sti.getSpatialIndex( timepoint ), timepoint, true );
 		}
 	}
 
@@ -405,79 +314,7 @@ public class MamutDetectionCreatorFactories
 		@Override
 		public DetectionCreator create( final int timepoint )
 		{
-			return new DontAddDetectionCreator( graph, qualityFeature, sti.getSpatialIndex( timepoint ), timepoint );
-		}
-	}
-
-	private static class DontAddDetectionCreator implements DetectionCreator
-	{
-
-		private final IncrementalNearestNeighborSearch< Spot > search;
-
-		private double r2max;
-
-		private final ModelGraph graph;
-
-		private final DetectionQualityFeature qualityFeature;
-
-		private final int timepoint;
-
-		private final SpatialIndex< Spot > si;
-
-		private final EllipsoidInsideTest test;
-
-		private final Spot ref;
-
-		private final RealPoint center;
-
-		private DontAddDetectionCreator( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final SpatialIndex< Spot > si, final int timepoint )
-		{
-			this.graph = graph;
-			this.qualityFeature = qualityFeature;
-			this.si = si;
-			this.search = si.getIncrementalNearestNeighborSearch();
-			this.timepoint = timepoint;
-			this.ref = graph.vertexRef();
-			this.test = new EllipsoidInsideTest();
-			this.center = new RealPoint( 3 );
-		}
-
-		@Override
-		public void preAddition()
-		{
-			graph.getLock().readLock().lock();
-			this.r2max = 0.;
-			for ( final Spot spot : si )
-				if ( spot.getBoundingSphereRadiusSquared() > r2max )
-					r2max = spot.getBoundingSphereRadiusSquared();
-
-			graph.getLock().readLock().unlock();
-			graph.getLock().writeLock().lock();
-		}
-
-		@Override
-		public void createDetection( final double[] pos, final double radius, final double quality )
-		{
-			center.setPosition( pos );
-			search.search( center );
-			final double lr2 = Math.max( r2max, radius * radius );
-			while ( search.hasNext() )
-			{
-				final Spot neigbhor = search.next();
-				if ( search.getSquareDistance() > lr2 )
-					break;
-				if ( test.isCenterWithin( neigbhor, pos, radius ) || test.isPointInside( pos, neigbhor ) )
-					return;
-			}
-
-			final Spot spot = graph.addVertex( ref ).init( timepoint, pos, radius );
-			qualityFeature.set( spot, quality );
-		}
-
-		@Override
-		public void postAddition()
-		{
-			graph.getLock().writeLock().unlock();
+			return new OverlapResolvingDetectionCreator( graph, qualityFeature, sti.getSpatialIndex( timepoint ), timepoint, false );
 		}
 	}
 
@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.mamut.detection;
+
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.SpatioTemporalIndex;
+
+/**
+ * Utilities related to detection in a MaMuT model.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class MamutDetectionUtil
+{
+
+	/**
+	 * Removes all the spots of a time-point, and the links attached to them.
+	 * <p>
+	 * The spots are first collected from the spatial index of the time-point,
+	 * then removed in a single pass. This method must be called while holding
+	 * the write lock of the graph.
+	 * <p>
+	 * If <code>pauseListeners</code> is <code>true</code>, the graph listeners
+	 * are paused during the removal, and notified once that the whole graph
+	 * was rebuilt when it is done. The spatio-temporal index then rebuilds the
+	 * spatial indices of all the time-points once, instead of being updated
+	 * for every spot and link. This pays off when the time-point holds a large
+	 * part of the graph, as in a preview model. Because the graph
+	 * listeners include the undo recorder, this should only be used on models
+	 * for which the removal does not need to be undoable, such as preview
+	 * models.
+	 *
+	 * @param graph
+	 *            the graph to remove spots from.
+	 * @param sti
+	 *            the spatio-temporal index of the graph.
+	 * @param timepoint
+	 *            the time-point to clear.
+	 * @param pauseListeners
+	 *            whether to pause the graph listeners during the removal.
+	 * @return the number of spots removed.
+	 */
+	public static int clearTimepoint( final ModelGraph graph, final SpatioTemporalIndex< Spot > sti, final int timepoint, final boolean pauseListeners )
+	{
+		final RefList< Spot > toRemove = RefCollections.createRefList( graph.vertices() );
+		sti.readLock().lock();
+		try
+		{
+			for ( final Spot spot : sti.getSpatialIndex( timepoint ) )
+				toRemove.add( spot );
+		}
+		finally
+		{
+			sti.readLock().unlock();
+		}
+
+		if ( toRemove.isEmpty() )
+			return 0;
+
+		if ( pauseListeners )
+			graph.pauseListeners();
+		try
+		{
+			for ( final Spot spot : toRemove )
+				graph.remove( spot );
+		}
+		finally
+		{
+			if ( pauseListeners )
+				graph.resumeListeners();
+		}
+		return toRemove.size();
+	}
+
+	private MamutDetectionUtil()
+	{}
+}
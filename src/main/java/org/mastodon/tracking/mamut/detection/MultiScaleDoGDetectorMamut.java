@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.mamut.detection;
+
+import java.util.List;
+
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.tracking.detection.MultiScaleDoGDetectorOp;
+import org.scijava.Priority;
+import org.scijava.plugin.Plugin;
+
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.algorithm.Benchmark;
+
+/**
+ * Multi-scale Difference of Gaussian detector.
+ * <p>
+ * Not shown in the wizard, which has no panel for the radius range yet. Use
+ * it from scripts, with the {@link org.mastodon.tracking.detection.DetectorKeys#KEY_MAX_RADIUS}
+ * setting.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@Plugin( type = SpotDetectorOp.class, priority = Priority.LOW, visible = false, name = "Multi-scale DoG detector",
+		description = "<html>"
+				+ "This detector finds spots with radii in a range, by searching for the "
+				+ "extrema of a DoG scale-space. Each detection is given the radius of "
+				+ "the scale it was found in."
+				+ "<p>"
+				+ "The scale-space of a time-point is built incrementally, so that each "
+				+ "Gaussian blur is reused for the next scale."
+				+ "</html>" )
+public class MultiScaleDoGDetectorMamut extends AbstractSpotDetectorOp implements SpotDetectorOp, Benchmark
+{
+
+	@Override
+	public void compute( final List< SourceAndConverter< ? > > sources, final ModelGraph graph )
+	{
+		exec( sources, graph, MultiScaleDoGDetectorOp.class );
+	}
+
+}
@@ -0,0 +1,454 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.mamut.detection;
+
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.RefSet;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.tracking.detection.DetectionCreatorFactory.DetectionCreator;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import net.imglib2.util.LinAlgHelpers;
+
+/**
+ * A {@link DetectionCreator} that resolves the overlap between the new
+ * detections of a time-point and the spots already present in this time-point
+ * in one batch.
+ * <p>
+ * A new detection and an existing spot overlap if the center of the existing
+ * spot is within the radius of the detection, or if the center of the
+ * detection is inside the ellipsoid of the existing spot. Depending on the
+ * mode, the existing spots that overlap a detection are removed (replace
+ * mode), or the detections that overlap an existing spot are not added
+ * (don't-add mode). Detections are only tested against the spots that existed
+ * before the batch, not against each other.
+ * <p>
+ * The detections are only buffered until {@link #postAddition()}. There, the
+ * existing spots are copied under the read lock, with their precision
+ * matrices computed once. The conflicts are then resolved outside of any lock,
+ * by querying a k-d tree built over the detections. The write lock is only
+ * held to remove and add the spots. An existing spot is only removed if it is
+ * still in the spatial index of the time-point and has not moved in between.
+ *
+ * @author Jean-Yves Tinevez
+ */
+class OverlapResolvingDetectionCreator implements DetectionCreator
+{
+
+	private final ModelGraph graph;
+
+	private final DetectionQualityFeature qualityFeature;
+
+	private final SpatialIndex< Spot > si;
+
+	private final int timepoint;
+
+	private final boolean replace;
+
+	/**
+	 * Detection positions, stored as <code>x, y, z</code> per detection.
+	 */
+	private final TDoubleArrayList positions = new TDoubleArrayList();
+
+	private final TDoubleArrayList radii = new TDoubleArrayList();
+
+	private final TDoubleArrayList qualities = new TDoubleArrayList();
+
+	/**
+	 * Creates a new detection creator.
+	 *
+	 * @param graph
+	 *            the graph to add spots to.
+	 * @param qualityFeature
+	 *            the feature to store the detection quality in.
+	 * @param si
+	 *            the spatial index of the time-point.
+	 * @param timepoint
+	 *            the time-point.
+	 * @param replace
+	 *            if <code>true</code>, the existing spots that overlap a
+	 *            detection are removed. If <code>false</code>, the detections
+	 *            that overlap an existing spot are not added.
+	 */
+	OverlapResolvingDetectionCreator( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final SpatialIndex< Spot > si, final int timepoint, final boolean replace )
+	{
+		this.graph = graph;
+		this.qualityFeature = qualityFeature;
+		this.si = si;
+		this.timepoint = timepoint;
+		this.replace = replace;
+	}
+
+	@Override
+	public void preAddition()
+	{
+		positions.resetQuick();
+		radii.resetQuick();
+		qualities.resetQuick();
+	}
+
+	@Override
+	public void createDetection( final double[] pos, final double radius, final double quality )
+	{
+		positions.add( pos, 0, 3 );
+		radii.add( radius );
+		qualities.add( quality );
+	}
+
+	@Override
+	public void createDetections( final double[] pos, final double[] radius, final double[] quality, final int n )
+	{
+		positions.add( pos, 0, 3 * n );
+		radii.add( radius, 0, n );
+		qualities.add( quality, 0, n );
+	}
+
+	@Override
+	public void postAddition()
+	{
+		final int n = radii.size();
+		if ( n == 0 )
+			return;
+
+		/*
+		 * Copy the existing spots of the time-point.
+		 */
+
+		final RefList< Spot > existing = RefCollections.createRefList( graph.vertices() );
+		final double[] epos;
+		final double[] ecov;
+		final double[] er2;
+		graph.getLock().readLock().lock();
+		try
+		{
+			for ( final Spot spot : si )
+				existing.add( spot );
+
+			final int m = existing.size();
+			epos = new double[ 3 * m ];
+			ecov = new double[ 9 * m ];
+			er2 = new double[ m ];
+			final double[][] cov = new double[ 3 ][ 3 ];
+			final Spot ref = graph.vertexRef();
+			for ( int e = 0; e < m; e++ )
+			{
+				final Spot spot = existing.get( e, ref );
+				for ( int d = 0; d < 3; d++ )
+					epos[ 3 * e + d ] = spot.getDoublePosition( d );
+				spot.getCovariance( cov );
+				for ( int r = 0; r < 3; r++ )
+					System.arraycopy( cov[ r ], 0, ecov, 9 * e + 3 * r, 3 );
+				er2[ e ] = spot.getBoundingSphereRadiusSquared();
+			}
+			graph.releaseRef( ref );
+		}
+		finally
+		{
+			graph.getLock().readLock().unlock();
+		}
+
+		/*
+		 * Resolve conflicts, outside of the lock.
+		 */
+
+		final boolean[] conflicting = replace
+				? new boolean[ existing.size() ]
+				: new boolean[ n ];
+		if ( !existing.isEmpty() )
+			resolve( epos, ecov, er2, conflicting );
+
+		/*
+		 * Commit.
+		 */
+
+		graph.getLock().writeLock().lock();
+		try
+		{
+			final Spot ref = graph.vertexRef();
+			if ( replace )
+			{
+				// The spots might have been removed since they were copied.
+				final RefSet< Spot > alive = RefCollections.createRefSet( graph.vertices() );
+				for ( final Spot spot : si )
+					alive.add( spot );
+
+				for ( int e = 0; e < conflicting.length; e++ )
+				{
+					if ( !conflicting[ e ] )
+						continue;
+					final Spot spot = existing.get( e, ref );
+					if ( !alive.contains( spot ) )
+						continue;
+					// The spot might have been edited since it was copied.
+					if ( isUnchanged( spot, epos, e ) )
+						graph.remove( spot );
+				}
+			}
+
+			final double[] pos = new double[ 3 ];
+			for ( int i = 0; i < n; i++ )
+			{
+				if ( !replace && conflicting[ i ] )
+					continue;
+				pos[ 0 ] = positions.getQuick( 3 * i );
+				pos[ 1 ] = positions.getQuick( 3 * i + 1 );
+				pos[ 2 ] = positions.getQuick( 3 * i + 2 );
+				final Spot spot = graph.addVertex( ref ).init( timepoint, pos, radii.getQuick( i ) );
+				qualityFeature.set( spot, qualities.getQuick( i ) );
+			}
+			graph.releaseRef( ref );
+		}
+		finally
+		{
+			graph.getLock().writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Flags the existing spots (replace mode) or the detections (don't-add
+	 * mode) that are involved in an overlap.
+	 *
+	 * @param epos
+	 *            the positions of the existing spots.
+	 * @param ecov
+	 *            the covariance matrices of the existing spots, row-major.
+	 *            Inverted in place into precision matrices.
+	 * @param er2
+	 *            the squared bounding-sphere radii of the existing spots.
+	 * @param conflicting
+	 *            the flags to set.
+	 */
+	private void resolve( final double[] epos, final double[] ecov, final double[] er2, final boolean[] conflicting )
+	{
+		final int n = radii.size();
+		final int m = er2.length;
+
+		// Precision matrices, computed once per existing spot.
+		final double[][] cov = new double[ 3 ][ 3 ];
+		final double[][] P = new double[ 3 ][ 3 ];
+		for ( int e = 0; e < m; e++ )
+		{
+			for ( int r = 0; r < 3; r++ )
+				System.arraycopy( ecov, 9 * e + 3 * r, cov[ r ], 0, 3 );
+			LinAlgHelpers.invertSymmetric3x3( cov, P );
+			for ( int r = 0; r < 3; r++ )
+				System.arraycopy( P[ r ], 0, ecov, 9 * e + 3 * r, 3 );
+		}
+
+		// k-d tree over the detections.
+		double r2maxDetection = 0.;
+		for ( int i = 0; i < n; i++ )
+		{
+			final double r = radii.getQuick( i );
+			r2maxDetection = Math.max( r2maxDetection, r * r );
+		}
+		final PointTree tree = new PointTree( positions.toArray(), n );
+		final TIntArrayList neighbors = new TIntArrayList();
+
+		final double[] center = new double[ 3 ];
+		final double[] diff = new double[ 3 ];
+		for ( int e = 0; e < m; e++ )
+		{
+			System.arraycopy( epos, 3 * e, center, 0, 3 );
+			// An overlapping detection is within this distance.
+			tree.search( center, Math.sqrt( Math.max( er2[ e ], r2maxDetection ) ), neighbors );
+			for ( int k = 0; k < neighbors.size(); k++ )
+			{
+				final int i = neighbors.getQuick( k );
+				if ( !replace && conflicting[ i ] )
+					continue;
+
+				for ( int d = 0; d < 3; d++ )
+					diff[ d ] = epos[ 3 * e + d ] - positions.getQuick( 3 * i + d );
+				if ( !overlap( diff, radii.getQuick( i ), ecov, 9 * e ) )
+					continue;
+
+				if ( replace )
+				{
+					conflicting[ e ] = true;
+					break;
+				}
+				conflicting[ i ] = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the center of an existing spot is within
+	 * the radius of a detection, or if the center of the detection is inside
+	 * the ellipsoid of the existing spot.
+	 *
+	 * @param diff
+	 *            the existing spot position minus the detection position.
+	 * @param radius
+	 *            the detection radius.
+	 * @param precision
+	 *            the precision matrices of the existing spots, row-major.
+	 * @param offset
+	 *            the offset of the existing spot precision matrix.
+	 */
+	private static boolean overlap( final double[] diff, final double radius, final double[] precision, final int offset )
+	{
+		final double d2 = diff[ 0 ] * diff[ 0 ] + diff[ 1 ] * diff[ 1 ] + diff[ 2 ] * diff[ 2 ];
+		if ( d2 < radius * radius )
+			return true;
+
+		double m2 = 0.;
+		for ( int r = 0; r < 3; r++ )
+		{
+			double vn = 0.;
+			for ( int c = 0; c < 3; c++ )
+				vn += precision[ offset + 3 * r + c ] * diff[ c ];
+			m2 += diff[ r ] * vn;
+		}
+		return m2 < 1.;
+	}
+
+	private boolean isUnchanged( final Spot spot, final double[] epos, final int e )
+	{
+		return spot.getTimepoint() == timepoint
+				&& spot.getDoublePosition( 0 ) == epos[ 3 * e ]
+				&& spot.getDoublePosition( 1 ) == epos[ 3 * e + 1 ]
+				&& spot.getDoublePosition( 2 ) == epos[ 3 * e + 2 ];
+	}
+
+	/**
+	 * A k-d tree over 3D points stored in a flat <code>x, y, z</code> array.
+	 * The tree is implicit: it is a permutation of the point indices, where
+	 * the median of each range splits it. No object is created per point, and
+	 * the point index is the payload.
+	 */
+	private static final class PointTree
+	{
+
+		private final double[] pos;
+
+		private final int[] order;
+
+		private PointTree( final double[] pos, final int n )
+		{
+			this.pos = pos;
+			this.order = new int[ n ];
+			for ( int i = 0; i < n; i++ )
+				order[ i ] = i;
+			build( 0, n, 0 );
+		}
+
+		/**
+		 * Collects in the specified list the indices of the points within the
+		 * specified distance of the specified center.
+		 */
+		private void search( final double[] center, final double radius, final TIntArrayList out )
+		{
+			out.resetQuick();
+			search( 0, order.length, 0, center, radius, out );
+		}
+
+		private void search( final int lo, final int hi, final int d, final double[] center, final double radius, final TIntArrayList out )
+		{
+			if ( hi <= lo )
+				return;
+
+			final int mid = ( lo + hi ) >>> 1;
+			final int i = order[ mid ];
+			double d2 = 0.;
+			for ( int k = 0; k < 3; k++ )
+			{
+				final double dk = center[ k ] - pos[ 3 * i + k ];
+				d2 += dk * dk;
+			}
+			if ( d2 <= radius * radius )
+				out.add( i );
+
+			final double delta = center[ d ] - pos[ 3 * i + d ];
+			final int nd = ( d + 1 ) % 3;
+			if ( delta <= radius )
+				search( lo, mid, nd, center, radius, out );
+			if ( delta >= -radius )
+				search( mid + 1, hi, nd, center, radius, out );
+		}
+
+		/**
+		 * Arranges the range <code>[lo, hi)</code> so that its median along
+		 * dimension <code>d</code> is in its middle, then recurses on both
+		 * halves along the next dimension.
+		 */
+		private void build( final int lo, final int hi, final int d )
+		{
+			if ( hi - lo <= 1 )
+				return;
+
+			final int mid = ( lo + hi ) >>> 1;
+			select( lo, hi - 1, mid, d );
+			final int nd = ( d + 1 ) % 3;
+			build( lo, mid, nd );
+			build( mid + 1, hi, nd );
+		}
+
+		/**
+		 * Quickselect in <code>[lo, hi]</code>: puts the k-th smallest point
+		 * along dimension <code>d</code> at position <code>k</code>, with
+		 * smaller or equal points before and larger or equal points after.
+		 */
+		private void select( int lo, int hi, final int k, final int d )
+		{
+			while ( hi > lo )
+			{
+				final double pivot = pos[ 3 * order[ ( lo + hi ) >>> 1 ] + d ];
+				int i = lo;
+				int j = hi;
+				while ( i <= j )
+				{
+					while ( pos[ 3 * order[ i ] + d ] < pivot )
+						i++;
+					while ( pos[ 3 * order[ j ] + d ] > pivot )
+						j--;
+					if ( i <= j )
+					{
+						final int tmp = order[ i ];
+						order[ i ] = order[ j ];
+						order[ j ] = tmp;
+						i++;
+						j--;
+					}
+				}
+				if ( k <= j )
+					hi = j;
+				else if ( k >= i )
+					lo = i;
+				else
+					return;
+			}
+		}
+	}
+}
@@ -38,6 +38,7 @@ import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_LINKING_MAX_DISTA
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_MAX_SEARCH_RADIUS;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_DO_LINK_SELECTION;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_KALMAN_MAHALANOBIS_GATE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_KALMAN_SEARCH_RADIUS;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_POSITION_SIGMA;
@@ -159,6 +160,8 @@ public class KalmanLinkerMamut extends AbstractSpotLinkerOp
 		ok = ok & checkParameter( settings, KEY_MIN_TIMEPOINT, Integer.class, str );
 		ok = ok & checkParameter( settings, KEY_MAX_TIMEPOINT, Integer.class, str );
 		ok = ok & checkParameter( settings, KEY_DO_LINK_SELECTION, Boolean.class, str );
+		if ( settings.containsKey( KEY_KALMAN_MAHALANOBIS_GATE ) )
+			ok = ok & checkParameter( settings, KEY_KALMAN_MAHALANOBIS_GATE, Double.class, str );
 		return ok;
 	}
 
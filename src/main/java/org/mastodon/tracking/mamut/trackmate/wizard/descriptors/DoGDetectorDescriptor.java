@@ -150,7 +150,8 @@ public class DoGDetectorDescriptor extends SpotDetectorDescriptor
 				try
 				{
 					grabSettings();
-					final boolean ok = WizardUtils.executeDetectionPreview( localModel, settings, ops, currentTimepoint, previewLogger, statusService );
+					// Preview model: no need to record the removal for undo.
+					final boolean ok = WizardUtils.executeDetectionPreview( localModel, settings, ops, currentTimepoint, previewLogger, statusService, true );
 					if ( !ok )
 						return;
 
@@ -48,8 +48,6 @@ import org.mastodon.adapter.FocusModelAdapter;
 import org.mastodon.adapter.HighlightModelAdapter;
 import org.mastodon.adapter.RefBimap;
 import org.mastodon.adapter.SelectionModelAdapter;
-import org.mastodon.collection.RefCollections;
-import org.mastodon.collection.RefList;
 import org.mastodon.graph.GraphIdBimap;
 import org.mastodon.grouping.GroupManager;
 import org.mastodon.mamut.model.BoundingSphereRadiusStatistics;
@@ -65,6 +63,7 @@ import org.mastodon.spatial.SpatialIndex;
 import org.mastodon.tracking.detection.DetectionUtil;
 import org.mastodon.tracking.mamut.detection.DetectionQualityFeature;
 import org.mastodon.tracking.mamut.detection.MamutDetectionCreatorFactories.DetectionBehavior;
+import org.mastodon.tracking.mamut.detection.MamutDetectionUtil;
 import org.mastodon.tracking.mamut.trackmate.Settings;
 import org.mastodon.tracking.mamut.trackmate.TrackMate;
 import org.mastodon.ui.coloring.DefaultGraphColorGenerator;
@@ -176,29 +175,53 @@ public class WizardUtils
 	 * @return <code>true</code> if the preview ran successfully.
 	 */
 	public static final boolean executeDetectionPreview( final Model model, final Settings settings, final OpService ops, final int currentTimepoint, final Logger logger, final StatusService statusService )
+	{
+		return executeDetectionPreview( model, settings, ops, currentTimepoint, logger, statusService, false );
+	}
+
+	/**
+	 * Executes a detection preview with the detector set and configured in the
+	 * specified {@link Settings}, on the images it points to. The results are
+	 * added to the specified {@link Model}.
+	 * <p>
+	 * Only the specified time-point is processed, using the ROI specified in
+	 * the settings as well.
+	 * <p>
+	 * The spots of the time-point are removed from the model first. If
+	 * <code>pauseListeners</code> is <code>true</code>, the graph listeners
+	 * are paused during this removal, and are notified once that the whole
+	 * graph was rebuilt. This is faster, but the removal is not recorded by
+	 * the undo recorder of the model. It should therefore only be used on a
+	 * model dedicated to the preview.
+	 *
+	 * @param model
+	 *            the model to add preview results to.
+	 * @param settings
+	 *            the settings in which the detector is set and configured, and
+	 *            the image data is specified.
+	 * @param ops
+	 *            the OpService.
+	 * @param currentTimepoint
+	 *            the time-point in the data to run the preview on.
+	 * @param logger
+	 *            the log service to report possible errors.
+	 * @param statusService
+	 *            the status service to follow progress.
+	 * @param pauseListeners
+	 *            whether to pause the graph listeners while removing the
+	 *            spots of the time-point.
+	 * @return <code>true</code> if the preview ran successfully.
+	 */
+	public static final boolean executeDetectionPreview( final Model model, final Settings settings, final OpService ops, final int currentTimepoint, final Logger logger, final StatusService statusService, final boolean pauseListeners )
 	{
 		/*
 		 * Remove spots from current time point.
 		 */
 		final ModelGraph graph = model.getGraph();
-		final RefList< Spot > toRemove = RefCollections.createRefList( graph.vertices() );
-		model.getSpatioTemporalIndex().readLock().lock();
-		try
-		{
-			final SpatialIndex< Spot > spatialIndex = model.getSpatioTemporalIndex().getSpatialIndex( currentTimepoint );
-			for ( final Spot spot : spatialIndex )
-				toRemove.add( spot );
-		}
-		finally
-		{
-			model.getSpatioTemporalIndex().readLock().unlock();
-		}
-
 		graph.getLock().writeLock().lock();
 		try
 		{
-			for ( final Spot spot : toRemove )
-				graph.remove( spot );
+			MamutDetectionUtil.clearTimepoint( graph, model.getSpatioTemporalIndex(), currentTimepoint, pauseListeners );
 		}
 		finally
 		{
@@ -0,0 +1,87 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the auction solver returns assignments within the requested
+ * tolerance of the optimum on augmented cost matrices, using the LAPJV solver
+ * as reference.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class AuctionLAPTest
+{
+
+	private static final int N_MATRICES = 400;
+
+	private static final double[] TOLERANCES = new double[] { 1e-3, 1., 10. };
+
+	@Test
+	public void testGapWithinTolerance()
+	{
+		final Random ran = new Random( 1l );
+		for ( int t = 0; t < N_MATRICES; t++ )
+		{
+			final JaqamanAugmentedCostMatrix cm = RandomCostMatrices.randomAugmentedCostMatrix( 30, 0.2, ran );
+			final double optimum = RandomCostMatrices.optimalCost( cm );
+			// Round-off of the total costs.
+			final double eps = 1e-9 * optimum;
+
+			for ( final double tolerance : TOLERANCES )
+			{
+				final AuctionLAP auction = new AuctionLAP( cm, tolerance );
+				assertTrue( auction.getErrorMessage(), auction.checkInput() );
+				assertTrue( auction.getErrorMessage(), auction.process() );
+
+				final int[] x = auction.getResult();
+				assertEquals( cm.getNCols(), x.length );
+				final boolean[] taken = new boolean[ cm.getNCols() ];
+				for ( final int j : x )
+				{
+					assertTrue( "Column " + j + " assigned twice.", !taken[ j ] );
+					taken[ j ] = true;
+				}
+
+				final String msg = "Matrix #" + t + " with tolerance " + tolerance + ".";
+				final double actualGap = cm.totalAssignmentCost( x ) - optimum;
+				final double reportedGap = auction.getOptimalityGap();
+				assertTrue( msg + " The actual gap " + actualGap + " exceeds the tolerance.", actualGap <= tolerance + eps );
+				assertTrue( msg + " The reported gap " + reportedGap + " exceeds the tolerance.", reportedGap <= tolerance );
+				assertTrue( msg + " The reported gap " + reportedGap + " is not an upper bound of the actual gap " + actualGap + ".", actualGap <= reportedGap + eps );
+			}
+		}
+	}
+}
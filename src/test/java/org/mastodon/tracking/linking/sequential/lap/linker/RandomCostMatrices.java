@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates random augmented cost matrices, as they are built by the Jaqaman
+ * linker, to test the LAP solvers.
+ *
+ * @author Jean-Yves Tinevez
+ */
+class RandomCostMatrices
+{
+
+	/**
+	 * Returns a random augmented cost matrix. The linking block has between 1
+	 * and <code>maxSize</code> rows and columns, each of them with at least one
+	 * non-infinite cost between 1 and 101. The alternative costs are drawn
+	 * between the half of and 1.05 times the maximal linking cost, and the
+	 * bottom-right block uses the smallest of them, like in the Jaqaman
+	 * linker.
+	 *
+	 * @param maxSize
+	 *            the maximal number of rows and columns of the linking block.
+	 * @param density
+	 *            the fraction of non-infinite costs in the linking block.
+	 * @param ran
+	 *            the random generator.
+	 * @return a new augmented cost matrix.
+	 */
+	static JaqamanAugmentedCostMatrix randomAugmentedCostMatrix( final int maxSize, final double density, final Random ran )
+	{
+		final int nRows = 1 + ran.nextInt( maxSize );
+		final int nCols = 1 + ran.nextInt( maxSize );
+
+		// Random pattern, with at least one cost per row and per column.
+		final boolean[][] pattern = new boolean[ nRows ][ nCols ];
+		for ( int i = 0; i < nRows; i++ )
+			for ( int j = 0; j < nCols; j++ )
+				pattern[ i ][ j ] = ran.nextDouble() < density;
+		for ( int i = 0; i < nRows; i++ )
+			pattern[ i ][ ran.nextInt( nCols ) ] = true;
+		for ( int j = 0; j < nCols; j++ )
+			pattern[ ran.nextInt( nRows ) ][ j ] = true;
+
+		int cardinality = 0;
+		for ( final boolean[] row : pattern )
+			for ( final boolean b : row )
+				if ( b )
+					cardinality++;
+
+		final double[] cc = new double[ cardinality ];
+		final int[] kk = new int[ cardinality ];
+		final int[] number = new int[ nRows ];
+		int index = 0;
+		double maxCost = 0.;
+		for ( int i = 0; i < nRows; i++ )
+		{
+			for ( int j = 0; j < nCols; j++ )
+			{
+				if ( !pattern[ i ][ j ] )
+					continue;
+
+				kk[ index ] = j;
+				cc[ index ] = 1. + 100. * ran.nextDouble();
+				maxCost = Math.max( maxCost, cc[ index ] );
+				number[ i ]++;
+				index++;
+			}
+		}
+		final SparseCostMatrix tl = new SparseCostMatrix( cc, kk, number, nCols );
+
+		final double[] sourceAltCosts = new double[ nRows ];
+		for ( int i = 0; i < nRows; i++ )
+			sourceAltCosts[ i ] = maxCost * ( 0.5 + 0.55 * ran.nextDouble() );
+		final double[] targetAltCosts = new double[ nCols ];
+		for ( int j = 0; j < nCols; j++ )
+			targetAltCosts[ j ] = maxCost * ( 0.5 + 0.55 * ran.nextDouble() );
+		final double brCost = Math.min(
+				Arrays.stream( sourceAltCosts ).min().getAsDouble(),
+				Arrays.stream( targetAltCosts ).min().getAsDouble() );
+
+		return new JaqamanAugmentedCostMatrix( tl, sourceAltCosts, targetAltCosts, brCost );
+	}
+
+	/**
+	 * Solves the specified cost matrix with the LAPJV solver and returns the
+	 * optimal total cost.
+	 *
+	 * @param cm
+	 *            the cost matrix.
+	 * @return the optimal total cost.
+	 */
+	static double optimalCost( final AssignmentCostMatrix cm )
+	{
+		final LAPJV lapjv = new LAPJV( cm );
+		if ( !lapjv.checkInput() || !lapjv.process() )
+			throw new IllegalStateException( lapjv.getErrorMessage() );
+		return cm.totalAssignmentCost( lapjv.getResult() );
+	}
+
+	private RandomCostMatrices()
+	{}
+}
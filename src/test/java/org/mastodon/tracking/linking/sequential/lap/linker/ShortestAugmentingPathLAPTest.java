@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2021 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the shortest augmenting path solver finds an optimal assignment
+ * on augmented cost matrices, using the LAPJV solver as reference.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ShortestAugmentingPathLAPTest
+{
+
+	private static final int N_MATRICES = 400;
+
+	@Test
+	public void testSameCostAsLAPJV()
+	{
+		final Random ran = new Random( 1l );
+		for ( int t = 0; t < N_MATRICES; t++ )
+		{
+			final JaqamanAugmentedCostMatrix cm = RandomCostMatrices.randomAugmentedCostMatrix( 30, 0.2, ran );
+			final ShortestAugmentingPathLAP sap = new ShortestAugmentingPathLAP( cm );
+			assertTrue( sap.getErrorMessage(), sap.checkInput() );
+			assertTrue( sap.getErrorMessage(), sap.process() );
+
+			final int[] x = sap.getResult();
+			assertIsPermutation( x, cm.getNCols() );
+			final double expected = RandomCostMatrices.optimalCost( cm );
+			assertEquals( "Matrix #" + t + ".", expected, cm.totalAssignmentCost( x ), 1e-9 * expected );
+		}
+	}
+
+	@Test
+	public void testWarmStartSameCostAsLAPJV()
+	{
+		final Random ran = new Random( 2l );
+		for ( int t = 0; t < N_MATRICES; t++ )
+		{
+			final JaqamanAugmentedCostMatrix cm = RandomCostMatrices.randomAugmentedCostMatrix( 30, 0.2, ran );
+
+			// Arbitrary initial column duals must not change the optimum.
+			final double[] v = new double[ cm.getNCols() ];
+			for ( int j = 0; j < v.length; j++ )
+				v[ j ] = 50. * ran.nextDouble();
+
+			final ShortestAugmentingPathLAP sap = new ShortestAugmentingPathLAP( cm );
+			sap.setInitialColumnDuals( v );
+			assertTrue( sap.getErrorMessage(), sap.checkInput() );
+			assertTrue( sap.getErrorMessage(), sap.process() );
+
+			final int[] x = sap.getResult();
+			assertIsPermutation( x, cm.getNCols() );
+			final double expected = RandomCostMatrices.optimalCost( cm );
+			assertEquals( "Matrix #" + t + ".", expected, cm.totalAssignmentCost( x ), 1e-9 * expected );
+		}
+	}
+
+	private static void assertIsPermutation( final int[] x, final int nCols )
+	{
+		assertEquals( nCols, x.length );
+		final boolean[] taken = new boolean[ nCols ];
+		for ( final int j : x )
+		{
+			assertTrue( "Column " + j + " assigned twice.", !taken[ j ] );
+			taken[ j ] = true;
+		}
+	}
+}